@@ -0,0 +1,66 @@
+package com.artemoons.webpush.benchmark;
+
+import com.artemoons.webpush.CryptoService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload encryption throughput, run with {@code -prof gc} to see allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptBenchmark {
+
+    @Param({"128", "1024", "3993"})
+    private int payloadSize;
+
+    private CryptoService cryptoService;
+
+    private ECPublicKey uaPublicKey;
+
+    private byte[] uaPublicKeyRaw;
+
+    private byte[] authSecret;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        uaPublicKey = (ECPublicKey) generator.generateKeyPair().getPublic();
+        uaPublicKeyRaw = CryptoService.toUncompressedECPublicKey(uaPublicKey);
+        authSecret = new byte[16];
+        random.nextBytes(authSecret);
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        cryptoService = new CryptoService();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        return cryptoService.encrypt(payload, uaPublicKey, uaPublicKeyRaw, authSecret, 0);
+    }
+
+}
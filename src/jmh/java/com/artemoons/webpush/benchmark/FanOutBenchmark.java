@@ -0,0 +1,125 @@
+package com.artemoons.webpush.benchmark;
+
+import com.artemoons.webpush.CryptoService;
+import com.artemoons.webpush.MessageService;
+import com.artemoons.webpush.StubPushServer;
+import com.artemoons.webpush.WebpushApplication;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.dto.JobStatus;
+import com.artemoons.webpush.dto.PushMessage;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import com.artemoons.webpush.subscription.SubscriptionStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end broadcast: serialization, per-subscriber encryption, VAPID headers, scheduling and HTTP delivery
+ * to an in-process stub push server. Every operation is one broadcast to all subscribers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int subscribers;
+
+    private StubPushServer pushServer;
+
+    private Path keysDirectory;
+
+    private ConfigurableApplicationContext context;
+
+    private MessageService messageService;
+
+    private final PushMessage message = PushMessage.builder()
+            .title("Benchmark")
+            .body("Fan-out benchmark message")
+            .build();
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+        pushServer = new StubPushServer();
+        pushServer.recording(false);
+        keysDirectory = Files.createTempDirectory("webpush-keys");
+        // command line arguments, unlike default properties, take precedence over application.yml
+        context = new SpringApplicationBuilder(WebpushApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(
+                        "--spring.main.banner-mode=off",
+                        "--logging.level.root=warn",
+                        "--encryption.server.public-key-path=" + keysDirectory.resolve("key.public"),
+                        "--encryption.server.private-key-path=" + keysDirectory.resolve("key.private"),
+                        "--subscription.store.type=memory",
+                        "--delivery.queue.directory=" + keysDirectory.resolve("queue"),
+                        "--delivery.transport.version=http_1_1",
+                        "--delivery.rate-limit.permits-per-second=1000000000",
+                        "--delivery.rate-limit.burst=1000000",
+                        "--delivery.concurrency.initial-limit=256",
+                        "--delivery.concurrency.max-limit=256");
+        messageService = context.getBean(MessageService.class);
+
+        SubscriptionStore store = context.getBean(SubscriptionStore.class);
+        SubscriberFactory subscriberFactory = context.getBean(SubscriberFactory.class);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        byte[] p256dh = CryptoService.toUncompressedECPublicKey((ECPublicKey) generator.generateKeyPair().getPublic());
+        byte[] auth = new byte[16];
+        new SecureRandom().nextBytes(auth);
+        for (int i = 0; i < subscribers; i++) {
+            store.put(subscriberFactory.create(pushServer.endpoint("s" + i).toString(), null, p256dh, auth));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        pushServer.close();
+        try (Stream<Path> files = Files.walk(keysDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public JobStatus broadcast() throws InterruptedException {
+        DeliveryJob job = messageService.sendMessage(message);
+        while (job.getState() == DeliveryJob.State.RUNNING) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        JobStatus status = job.toStatus();
+        if (status.getSent() != subscribers) {
+            throw new IllegalStateException("Sent " + status.getSent() + " of " + subscribers);
+        }
+        return status;
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.artemoons.webpush.benchmark;
+
+import com.artemoons.webpush.Configuration;
+import com.artemoons.webpush.CryptoService;
+import com.artemoons.webpush.ServerKeysService;
+import com.artemoons.webpush.delivery.DeliveryMetrics;
+import com.artemoons.webpush.delivery.VapidTokenCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriber key parsing and VAPID token signing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeysBenchmark {
+
+    private static final String ORIGIN = "https://push.example.com";
+
+    private CryptoService cryptoService;
+
+    private byte[] uaPublicKeyRaw;
+
+    private Path keysDirectory;
+
+    private AnnotationConfigApplicationContext context;
+
+    private ServerKeysService serverKeysService;
+
+    private DeliveryMetrics deliveryMetrics;
+
+    private VapidTokenCache vapidTokenCache;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        uaPublicKeyRaw = CryptoService.toUncompressedECPublicKey((ECPublicKey) generator.generateKeyPair().getPublic());
+        cryptoService = new CryptoService();
+
+        keysDirectory = Files.createTempDirectory("webpush-keys");
+        Configuration configuration = new Configuration();
+        configuration.setPublicKeyPath(keysDirectory.resolve("key.public").toString());
+        configuration.setPrivateKeyPath(keysDirectory.resolve("key.private").toString());
+        context = new AnnotationConfigApplicationContext();
+        context.registerBean(Configuration.class, () -> configuration);
+        context.registerBean(CryptoService.class, () -> cryptoService);
+        context.registerBean(ServerKeysService.class);
+        context.registerBean(DeliveryMetrics.class, () -> new DeliveryMetrics(new SimpleMeterRegistry()));
+        context.registerBean(VapidTokenCache.class);
+        context.refresh();
+        serverKeysService = context.getBean(ServerKeysService.class);
+        vapidTokenCache = context.getBean(VapidTokenCache.class);
+        deliveryMetrics = context.getBean(DeliveryMetrics.class);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        Files.deleteIfExists(keysDirectory.resolve("key.public"));
+        Files.deleteIfExists(keysDirectory.resolve("key.private"));
+        Files.deleteIfExists(keysDirectory);
+    }
+
+    @Benchmark
+    public ECPublicKey parseUncompressedKey() throws InvalidKeySpecException {
+        return cryptoService.fromUncompressedECPublicKey(uaPublicKeyRaw);
+    }
+
+    @Benchmark
+    public String signVapidToken() {
+        return new VapidTokenCache(serverKeysService, deliveryMetrics).authorization(ORIGIN);
+    }
+
+    @Benchmark
+    public String cachedVapidToken() {
+        return vapidTokenCache.authorization(ORIGIN);
+    }
+
+}
@@ -0,0 +1,289 @@
+package com.artemoons.webpush.benchmark;
+
+import com.artemoons.webpush.StubPushServer;
+import com.artemoons.webpush.dto.Subscription;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator driving a running instance against an embedded {@link StubPushServer}. Registers synthetic
+ * subscriptions pointing at the simulator through the import API, sends messages through {@code /send} targeted
+ * at those subscriptions only, waits for the delivery jobs and reports {@code /send} and delivery throughput,
+ * delivery latency percentiles (from the {@code /send} call to arrival at the push service), response mix and
+ * requests the simulator rejected. Synthetic subscriptions are removed at the end.
+ * <p>
+ * Options: {@code --target http://localhost:8080 --subscribers 1000 --messages 10 --concurrency 4 --port 0
+ * --latency fixed:20ms --status 201:100 --retry-after 1 --timeout 120}; latency is {@code fixed:D},
+ * {@code uniform:MIN:MAX} or {@code lognormal:MEDIAN:SIGMA}, status is a weighted mix like
+ * {@code 201:90,410:2,429:5,500:3}.
+ */
+public final class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "target", "http://localhost:8080",
+            "subscribers", "1000",
+            "messages", "10",
+            "concurrency", "4",
+            "port", "0",
+            "latency", "fixed:20ms",
+            "status", "201:100",
+            "retry-after", "1",
+            "timeout", "120");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    private final Map<String, String> options;
+
+    private final String target;
+
+    private final String run = UUID.randomUUID().toString().substring(0, 8);
+
+    private LoadGenerator(final Map<String, String> arguments) {
+        this.options = arguments;
+        this.target = arguments.get("target");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !DEFAULTS.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", known are " + DEFAULTS.keySet());
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private int option(final String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private void run() throws Exception {
+        int subscribers = option("subscribers");
+        int messages = option("messages");
+        try (StubPushServer simulator = new StubPushServer(option("port"))) {
+            simulator.recording(false);
+            simulator.latency(StubPushServer.latencyOf(options.get("latency")));
+            simulator.statusMix(StubPushServer.statusMixOf(options.get("status")));
+            simulator.retryAfter(option("retry-after"));
+            simulator.expectVapidKey(get("/api/v1/publicSigningKey", HttpResponse.BodyHandlers.ofByteArray()));
+
+            List<Subscription> subscriptions = register(simulator, subscribers);
+            long[] latencies = new long[subscribers * messages];
+            AtomicInteger recorded = new AtomicInteger();
+            Set<Long> delivered = ConcurrentHashMap.newKeySet();
+            AtomicLong duplicates = new AtomicLong();
+            simulator.onDelivery(delivery -> {
+                JsonNode payload = readTree(delivery.payload());
+                String[] title = payload.path("title").asText().split(" ");
+                long key = Long.parseLong(delivery.subscription().substring(run.length() + 1)) * messages
+                        + Integer.parseInt(title[title.length - 1]);
+                if (!delivered.add(key)) {
+                    duplicates.incrementAndGet();
+                    return;
+                }
+                int index = recorded.getAndIncrement();
+                if (index < latencies.length) {
+                    latencies[index] = delivery.arrivedAt() - payload.path("body").asLong();
+                }
+            });
+
+            long start = System.nanoTime();
+            long[] sendLatencies = new long[messages];
+            List<String> jobs = send(messages, sendLatencies);
+            long sent = System.nanoTime();
+            List<JsonNode> statuses = await(jobs);
+            long finished = System.nanoTime();
+
+            report(subscribers, messages, start, sent, finished, sendLatencies,
+                    Arrays.copyOf(latencies, Math.min(recorded.get(), latencies.length)), duplicates.get(),
+                    statuses, simulator);
+            unregister(subscriptions);
+        }
+    }
+
+    private List<Subscription> register(final StubPushServer simulator, final int count)
+            throws IOException, InterruptedException {
+        List<Subscription> subscriptions = new ArrayList<>(count);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            Subscription subscription = simulator.subscribe(run + "-" + i, List.of(tag()));
+            subscriptions.add(subscription);
+            body.write(objectMapper.writeValueAsBytes(subscription));
+            body.write('\n');
+        }
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target
+                        + "/api/v1/subscriptions/import"))
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        JsonNode result = objectMapper.readTree(response.body());
+        if (response.statusCode() != 200 || result.path("imported").asLong() != count) {
+            throw new IllegalStateException("Subscriptions weren't imported: " + response.body());
+        }
+        System.out.printf("Registered %d subscriptions tagged %s at %s%n", count, tag(), simulator.origin());
+        return subscriptions;
+    }
+
+    private List<String> send(final int messages, final long[] sendLatencies) throws Exception {
+        ExecutorService senders = Executors.newFixedThreadPool(option("concurrency"));
+        List<Future<String>> jobs = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            int index = i;
+            jobs.add(senders.submit(() -> {
+                long sentAt = System.nanoTime();
+                ObjectNode message = objectMapper.createObjectNode()
+                        .put("title", "Load test " + run + " " + index)
+                        .put("body", Long.toString(sentAt))
+                        .put("target", tag());
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target
+                                + "/api/v1/send"))
+                        .header("Content-Type", "application/json")
+                        .header("Idempotency-Key", run + "-" + index)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(message)))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+                sendLatencies[index] = System.nanoTime() - sentAt;
+                if (response.statusCode() != 202) {
+                    throw new IllegalStateException("Send failed with " + response.statusCode() + ": "
+                            + response.body());
+                }
+                return objectMapper.readTree(response.body()).path("id").asText();
+            }));
+        }
+        List<String> ids = new ArrayList<>(messages);
+        try {
+            for (Future<String> job : jobs) {
+                ids.add(job.get());
+            }
+        } finally {
+            senders.shutdownNow();
+        }
+        return ids;
+    }
+
+    private List<JsonNode> await(final List<String> jobs) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(option("timeout"));
+        List<JsonNode> statuses = new ArrayList<>(jobs.size());
+        for (String job : jobs) {
+            JsonNode status = objectMapper.readTree(get("/api/v1/jobs/" + job, HttpResponse.BodyHandlers.ofString()));
+            while (!"COMPLETED".equals(status.path("state").asText()) && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+                status = objectMapper.readTree(get("/api/v1/jobs/" + job, HttpResponse.BodyHandlers.ofString()));
+            }
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+    private void unregister(final List<Subscription> subscriptions) throws Exception {
+        ExecutorService removers = Executors.newFixedThreadPool(option("concurrency"));
+        List<Future<?>> removed = new ArrayList<>(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            removed.add(removers.submit(() -> client.send(HttpRequest.newBuilder(URI.create(target
+                            + "/api/v1/unsubscribe"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(
+                            Map.of("endpoint", subscription.getEndpoint()))))
+                    .build(), HttpResponse.BodyHandlers.discarding())));
+        }
+        try {
+            for (Future<?> future : removed) {
+                future.get();
+            }
+        } finally {
+            removers.shutdownNow();
+        }
+    }
+
+    private void report(final int subscribers, final int messages, final long start, final long sent,
+                        final long finished, final long[] sendLatencies, final long[] latencies,
+                        final long duplicates, final List<JsonNode> statuses, final StubPushServer simulator) {
+        Map<String, Long> outcomes = new TreeMap<>();
+        for (JsonNode status : statuses) {
+            for (String field : List.of("sent", "gone", "failed", "throttled", "collapsed", "skipped", "queued")) {
+                outcomes.merge(field, status.path(field).asLong(), Long::sum);
+            }
+            if (!"COMPLETED".equals(status.path("state").asText())) {
+                System.out.printf("Job %s hasn't completed in time%n", status.path("id").asText());
+            }
+        }
+        double sendSeconds = (sent - start) / 1e9;
+        double totalSeconds = (finished - start) / 1e9;
+        System.out.printf("%n%d messages to %d subscribers in %.2f s%n", messages, subscribers, totalSeconds);
+        System.out.printf("/send:      %.1f requests/s, latency %s%n", messages / sendSeconds,
+                percentiles(sendLatencies));
+        System.out.printf("deliveries: %.1f/s accepted by the push service, latency %s%n",
+                latencies.length / totalSeconds, percentiles(latencies));
+        System.out.printf("jobs:       %s%n", outcomes);
+        System.out.printf("responses:  %s%n", simulator.responses());
+        System.out.printf("rejected:   %s%n", simulator.rejections());
+        System.out.printf("duplicates: %d%n", duplicates);
+    }
+
+    private static String percentiles(final long[] nanos) {
+        if (nanos.length == 0) {
+            return "n/a";
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms",
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(final long[] sorted, final double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private String tag() {
+        return "loadtest-" + run;
+    }
+
+    private <T> T get(final String path, final HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        HttpResponse<T> response = client.send(HttpRequest.newBuilder(URI.create(target + path))
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build(), handler);
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("GET " + path + " failed with " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private JsonNode readTree(final byte[] json) {
+        try {
+            return objectMapper.readTree(json);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Delivered payload isn't JSON", ex);
+        }
+    }
+
+}
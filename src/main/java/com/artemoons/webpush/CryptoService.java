@@ -1,21 +1,22 @@
 package com.artemoons.webpush;
 
+import com.artemoons.webpush.delivery.DeliveryMetrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -28,10 +29,9 @@ import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -43,25 +43,63 @@ import java.util.List;
 public class CryptoService {
 
     /**
-     * Allocation number.
+     * Salt length.
      */
-    public static final int ALLOCATION_NUMBER = 4;
+    public static final int SALT_LENGTH = 16;
     /**
-     * Range number 16.
+     * Record size field length.
      */
-    public static final int TO_RANGE_16 = 16;
+    public static final int RECORD_SIZE_LENGTH = 4;
     /**
-     * Range number 12.
+     * Tag length, bits.
      */
-    public static final int TO_RANGE_12 = 12;
+    public static final int TAG_LENGTH = 128;
     /**
-     * Tag length.
+     * Tag length, bytes.
      */
-    public static final int TAG_LENGTH = 128;
+    public static final int TAG_BYTES = TAG_LENGTH / Byte.SIZE;
     /**
-     * Number 65.
+     * Uncompressed P-256 public key length.
      */
     public static final int NUMBER_65 = 65;
+    /**
+     * Content encryption key length.
+     */
+    public static final int CEK_LENGTH = 16;
+    /**
+     * Nonce length.
+     */
+    public static final int NONCE_LENGTH = 12;
+    /**
+     * HMAC-SHA-256 output length.
+     */
+    public static final int HASH_LENGTH = 32;
+    /**
+     * Header length: salt, record size, key id length and key id (application server public key).
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc8188#section-2.1">RFC 8188 2.1</a>
+     */
+    public static final int HEADER_LENGTH = SALT_LENGTH + RECORD_SIZE_LENGTH + 1 + NUMBER_65;
+    /**
+     * Padding delimiter of the last record.
+     */
+    public static final byte PADDING_DELIMITER = 2;
+    /**
+     * HMAC algorithm.
+     */
+    private static final String HMAC_SHA_256 = "HmacSHA256";
+    /**
+     * Key info prefix, "WebPush: info" || 0x00.
+     */
+    private static final byte[] KEY_INFO = "WebPush: info\0".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Content encryption key info, "Content-Encoding: aes128gcm" || 0x00.
+     */
+    private static final byte[] CEK_INFO = "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Nonce info, "Content-Encoding: nonce" || 0x00.
+     */
+    private static final byte[] NONCE_INFO = "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8);
     /**
      * Secure random initializer.
      */
@@ -77,6 +115,48 @@ public class CryptoService {
      */
     private KeyFactory keyFactory;
 
+    /**
+     * Pre-generated ephemeral keys, null if keys are always generated inline.
+     */
+    @Getter(AccessLevel.NONE)
+    private final EphemeralKeyPool ephemeralKeyPool;
+
+    /**
+     * Encryption timer, null if not measured.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Timer encryptionTimer;
+
+    /**
+     * ECDH stage timer, null if not measured.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Timer keyAgreementTimer;
+
+    /**
+     * HKDF stage timer, null if not measured.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Timer keyDerivationTimer;
+
+    /**
+     * AES-GCM stage timer, null if not measured.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Timer cipherTimer;
+
+    /**
+     * Record size classes and buffers, null if records aren't padded.
+     */
+    @Getter(AccessLevel.NONE)
+    private final RecordBufferPool recordBufferPool;
+
+    /**
+     * Per-thread crypto primitives, they aren't thread-safe and expensive to look up.
+     */
+    @Getter(AccessLevel.NONE)
+    private final ThreadLocal<Primitives> primitives = ThreadLocal.withInitial(Primitives::new);
+
     /**
      * X509 head without (byte) 4.
      *
@@ -86,9 +166,28 @@ public class CryptoService {
     private static final byte[] P256_HEAD = Base64.getDecoder().decode("MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgA");
 
     /**
-     * Constructor.
+     * Constructor, ephemeral keys are generated inline.
      */
     public CryptoService() {
+        this(null, null, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param keyPool    pre-generated ephemeral keys
+     * @param metrics    delivery metrics, encryption time is recorded in total and by stage if present
+     * @param bufferPool record size classes and buffers
+     */
+    @Autowired
+    public CryptoService(final EphemeralKeyPool keyPool, final DeliveryMetrics metrics,
+                         final RecordBufferPool bufferPool) {
+        this.ephemeralKeyPool = keyPool;
+        this.encryptionTimer = metrics == null ? null : metrics.getEncryption();
+        this.keyAgreementTimer = metrics == null ? null : metrics.getKeyAgreement();
+        this.keyDerivationTimer = metrics == null ? null : metrics.getKeyDerivation();
+        this.cipherTimer = metrics == null ? null : metrics.getCipher();
+        this.recordBufferPool = bufferPool;
         try {
             this.keyPairGenerator = KeyPairGenerator.getInstance("EC");
             this.keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
@@ -98,6 +197,16 @@ public class CryptoService {
         }
     }
 
+    /**
+     * Padding size putting the record of the given plain text into its size class.
+     *
+     * @param plainTextLength plain text length
+     * @return padding size, 0 if records aren't padded
+     */
+    public int paddingSize(final int plainTextLength) {
+        return recordBufferPool == null ? 0 : recordBufferPool.paddingSize(plainTextLength);
+    }
+
     /**
      * Encryption method.
      *
@@ -106,106 +215,172 @@ public class CryptoService {
      * @param authSecret        secret
      * @param paddingSize       padding
      * @return encrypted array of bytes
-     * @throws Exception exception
+     * @throws GeneralSecurityException exception
      * @see <a href="https://tools.ietf.org/html/rfc8291">3.4. Encryption Summary</a>
      */
     public byte[] encrypt(final String plainTextString,
                           final String uaPublicKeyString,
                           final String authSecret,
-                          final int paddingSize) throws Exception {
-        try {
-            // ecdh_secret = ECDH(as_private, ua_public)
-            // auth_secret = <from user agent>
-            // salt = random(16)
-            KeyPair asKeyPair = keyPairGenerator.genKeyPair();
-            ECPublicKey asPublicKey = (ECPublicKey) asKeyPair.getPublic();
-            byte[] uncompressedASPublicKey = toUncompressedECPublicKey(asPublicKey);
-
-            ECPublicKey uaPublicKey = fromUncompressedECPublicKey(uaPublicKeyString);
-
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-            keyAgreement.init(asKeyPair.getPrivate());
-            keyAgreement.doPhase(uaPublicKey, true);
-
-            byte[] ecdhSecret = keyAgreement.generateSecret();
-
-            byte[] salt = new byte[TO_RANGE_16];
-            this.secureRandom.nextBytes(salt);
-
-            // ## Use HKDF to combine the ECDH and authentication secrets
-            // # HKDF-Extract(salt=auth_secret, IKM=ecdh_secret)
-            // PRK_key = HMAC-SHA-256(auth_secret, ecdh_secret)
-            Mac hmacSHA256 = Mac.getInstance("HmacSHA256");
-            hmacSHA256
-                    .init(new SecretKeySpec(Base64.getUrlDecoder().decode(authSecret), "HmacSHA256"));
-            byte[] prkKey = hmacSHA256.doFinal(ecdhSecret);
-
-            // # HKDF-Expand(PRK_key, key_info, L_key=32)
-            // key_info = "WebPush: info" || 0x00 || ua_public || as_public
-
-            byte[] keyInfo = concat("WebPush: info\0".getBytes(StandardCharsets.UTF_8),
-                    toUncompressedECPublicKey(uaPublicKey), uncompressedASPublicKey);
-            // IKM = HMAC-SHA-256(PRK_key, key_info || 0x01)
-            hmacSHA256.init(new SecretKeySpec(prkKey, "HmacSHA256"));
-            hmacSHA256.update(keyInfo);
-            hmacSHA256.update((byte) 1);
-            byte[] ikm = hmacSHA256.doFinal();
-
-            // ## HKDF calculations from RFC 8188
-            // # HKDF-Extract(salt, IKM)
-            // PRK = HMAC-SHA-256(salt, IKM)
-            hmacSHA256.init(new SecretKeySpec(salt, "HmacSHA256"));
-            byte[] prk = hmacSHA256.doFinal(ikm);
-
-            // # HKDF-Expand(PRK, cek_info, L_cek=16)
-            // cek_info = "Content-Encoding: aes128gcm" || 0x00
-            byte[] cekInfo = "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8);
-            // CEK = HMAC-SHA-256(PRK, cek_info || 0x01)[0..15]
-            hmacSHA256.init(new SecretKeySpec(prk, "HmacSHA256"));
-            hmacSHA256.update(cekInfo);
-            hmacSHA256.update((byte) 1);
-            byte[] cek = hmacSHA256.doFinal();
-            cek = Arrays.copyOfRange(cek, 0, TO_RANGE_16);
-
-            // # HKDF-Expand(PRK, nonce_info, L_nonce=12)
-            // nonce_info = "Content-Encoding: nonce" || 0x00
-            byte[] nonceInfo = "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8);
-            // NONCE = HMAC-SHA-256(PRK, nonce_info || 0x01)[0..11]
-            hmacSHA256.init(new SecretKeySpec(prk, "HmacSHA256"));
-            hmacSHA256.update(nonceInfo);
-            hmacSHA256.update((byte) 1);
-            byte[] nonce = hmacSHA256.doFinal();
-            nonce = Arrays.copyOfRange(nonce, 0, TO_RANGE_12);
-
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"),
-                    new GCMParameterSpec(TAG_LENGTH, nonce));
-
-            List<byte[]> inputs = new ArrayList<>();
-            byte[] plainTextBytes = plainTextString.getBytes(StandardCharsets.UTF_8);
-            inputs.add(plainTextBytes);
-            inputs.add(new byte[]{2}); // padding delimiter
-
-            int padSize = Math.max(0, paddingSize - plainTextBytes.length);
-            if (padSize > 0) {
-                inputs.add(new byte[padSize]);
-            }
-
-            byte[] encrypted = cipher.doFinal(concat(inputs.toArray(new byte[0][])));
+                          final int paddingSize) throws GeneralSecurityException {
+        byte[] uaPublicKeyRaw = Base64.getUrlDecoder().decode(uaPublicKeyString);
+        return encrypt(plainTextString.getBytes(StandardCharsets.UTF_8),
+                fromUncompressedECPublicKey(uaPublicKeyRaw),
+                uaPublicKeyRaw,
+                Base64.getUrlDecoder().decode(authSecret),
+                paddingSize);
+    }
 
-            ByteBuffer encryptedArrayLength = ByteBuffer.allocate(ALLOCATION_NUMBER);
-            encryptedArrayLength.putInt(encrypted.length);
+    /**
+     * Encryption method working with decoded key material.
+     *
+     * @param plainText      message bytes
+     * @param uaPublicKey    user agent public key
+     * @param uaPublicKeyRaw user agent public key, uncompressed point
+     * @param authSecret     user agent authentication secret
+     * @param paddingSize    minimal size of the padded plain text
+     * @return encrypted record
+     * @throws GeneralSecurityException exception
+     * @see <a href="https://tools.ietf.org/html/rfc8291">3.4. Encryption Summary</a>
+     */
+    public byte[] encrypt(final byte[] plainText,
+                          final ECPublicKey uaPublicKey,
+                          final byte[] uaPublicKeyRaw,
+                          final byte[] authSecret,
+                          final int paddingSize) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        KeyPair asKeyPair = ephemeralKeyPool == null ? null : ephemeralKeyPool.poll();
+        if (asKeyPair == null) {
+            asKeyPair = primitives.get().keyPairGenerator.generateKeyPair();
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        this.secureRandom.nextBytes(salt);
+        byte[] record = encrypt(plainText, uaPublicKey, uaPublicKeyRaw, authSecret, paddingSize, asKeyPair, salt);
+        if (encryptionTimer != null) {
+            encryptionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return record;
+    }
 
-            byte[] header = concat(salt, encryptedArrayLength.array(),
-                    new byte[]{(byte) uncompressedASPublicKey.length}, uncompressedASPublicKey);
+    /**
+     * Encryption with the given application server key pair and salt. Whole record is assembled in a single
+     * output array: header is written first and the padded plain text, laid out in a pooled buffer if its size
+     * matches a size class, is encrypted right after it.
+     *
+     * @param plainText      message bytes
+     * @param uaPublicKey    user agent public key
+     * @param uaPublicKeyRaw user agent public key, uncompressed point
+     * @param authSecret     user agent authentication secret
+     * @param paddingSize    minimal size of the padded plain text
+     * @param asKeyPair      single-use application server key pair
+     * @param salt           random salt
+     * @return encrypted record
+     * @throws GeneralSecurityException exception
+     */
+    byte[] encrypt(final byte[] plainText,
+                   final ECPublicKey uaPublicKey,
+                   final byte[] uaPublicKeyRaw,
+                   final byte[] authSecret,
+                   final int paddingSize,
+                   final KeyPair asKeyPair,
+                   final byte[] salt) throws GeneralSecurityException {
+        Primitives crypto = primitives.get();
+        byte[] scratch = crypto.scratch;
+
+        int padSize = Math.max(0, paddingSize - plainText.length);
+        int recordLength = plainText.length + 1 + padSize + TAG_BYTES;
+        int resultLength = HEADER_LENGTH + recordLength;
+        byte[] result = new byte[resultLength];
+
+        // header = salt || rs || idlen || keyid
+        System.arraycopy(salt, 0, result, 0, SALT_LENGTH);
+        writeInt(result, SALT_LENGTH, recordLength);
+        result[SALT_LENGTH + RECORD_SIZE_LENGTH] = (byte) NUMBER_65;
+        int asPublicKeyOffset = SALT_LENGTH + RECORD_SIZE_LENGTH + 1;
+        byte[] asPublicKeyEncoded = asKeyPair.getPublic().getEncoded();
+        System.arraycopy(asPublicKeyEncoded, P256_HEAD.length, result, asPublicKeyOffset, NUMBER_65);
+
+        // ecdh_secret = ECDH(as_private, ua_public)
+        long stageStart = System.nanoTime();
+        crypto.keyAgreement.init(asKeyPair.getPrivate());
+        crypto.keyAgreement.doPhase(uaPublicKey, true);
+        crypto.keyAgreement.generateSecret(scratch, 0);
+        stageStart = recordStage(keyAgreementTimer, stageStart);
+
+        // ## Use HKDF to combine the ECDH and authentication secrets
+        // # HKDF-Extract(salt=auth_secret, IKM=ecdh_secret)
+        // PRK_key = HMAC-SHA-256(auth_secret, ecdh_secret)
+        Mac hmac = crypto.hmac;
+        hmac.init(new SecretKeySpec(authSecret, HMAC_SHA_256));
+        hmac.update(scratch, 0, HASH_LENGTH);
+        hmac.doFinal(scratch, 0);
+
+        // # HKDF-Expand(PRK_key, key_info, L_key=32)
+        // key_info = "WebPush: info" || 0x00 || ua_public || as_public
+        // IKM = HMAC-SHA-256(PRK_key, key_info || 0x01)
+        hmac.init(new SecretKeySpec(scratch, 0, HASH_LENGTH, HMAC_SHA_256));
+        hmac.update(KEY_INFO);
+        hmac.update(uaPublicKeyRaw);
+        hmac.update(result, asPublicKeyOffset, NUMBER_65);
+        hmac.update((byte) 1);
+        hmac.doFinal(scratch, 0);
+
+        // ## HKDF calculations from RFC 8188
+        // # HKDF-Extract(salt, IKM)
+        // PRK = HMAC-SHA-256(salt, IKM)
+        hmac.init(new SecretKeySpec(salt, HMAC_SHA_256));
+        hmac.update(scratch, 0, HASH_LENGTH);
+        hmac.doFinal(scratch, 0);
+        SecretKeySpec prk = new SecretKeySpec(scratch, 0, HASH_LENGTH, HMAC_SHA_256);
+
+        // # HKDF-Expand(PRK, cek_info, L_cek=16)
+        // CEK = HMAC-SHA-256(PRK, cek_info || 0x01)[0..15]
+        hmac.init(prk);
+        hmac.update(CEK_INFO);
+        hmac.update((byte) 1);
+        hmac.doFinal(scratch, 0);
+        SecretKeySpec cek = new SecretKeySpec(scratch, 0, CEK_LENGTH, "AES");
+
+        // # HKDF-Expand(PRK, nonce_info, L_nonce=12)
+        // NONCE = HMAC-SHA-256(PRK, nonce_info || 0x01)[0..11]
+        hmac.init(prk);
+        hmac.update(NONCE_INFO);
+        hmac.update((byte) 1);
+        hmac.doFinal(scratch, 0);
+        stageStart = recordStage(keyDerivationTimer, stageStart);
+
+        // plain text || 0x02 || zero padding, assembled in a pooled buffer and encrypted into the record, which
+        // is handed to the transport as is and never pooled: the HTTP client may still hold it after the response
+        byte[] padded = recordBufferPool == null ? new byte[resultLength] : recordBufferPool.acquire(resultLength);
+        try {
+            System.arraycopy(plainText, 0, padded, HEADER_LENGTH, plainText.length);
+            padded[HEADER_LENGTH + plainText.length] = PADDING_DELIMITER;
+            Arrays.fill(padded, HEADER_LENGTH + plainText.length + 1, resultLength - TAG_BYTES, (byte) 0);
+
+            Cipher cipher = crypto.cipher;
+            cipher.init(Cipher.ENCRYPT_MODE, cek, new GCMParameterSpec(TAG_LENGTH, scratch, 0, NONCE_LENGTH));
+            cipher.doFinal(padded, HEADER_LENGTH, recordLength - TAG_BYTES, result, HEADER_LENGTH);
+            recordStage(cipherTimer, stageStart);
+        } finally {
+            if (recordBufferPool != null) {
+                recordBufferPool.release(padded);
+            }
+        }
+        return result;
+    }
 
-            return concat(header, encrypted);
-        } catch (InvalidKeyException | NoSuchAlgorithmException | InvalidKeySpecException
-                 | InvalidAlgorithmParameterException | NoSuchPaddingException
-                 | IllegalBlockSizeException | BadPaddingException ex) {
-            log.error("Encryption error occurred");
-            throw new Exception("Detailed message: ", ex);
+    /**
+     * Records time of an encryption stage.
+     *
+     * @param timer stage timer, null if not measured
+     * @param start stage start, {@link System#nanoTime()}
+     * @return stage end, start of the next stage
+     */
+    private static long recordStage(final Timer timer, final long start) {
+        long end = System.nanoTime();
+        if (timer != null) {
+            timer.record(end - start, TimeUnit.NANOSECONDS);
         }
+        return end;
     }
 
     /**
@@ -241,8 +416,17 @@ public class CryptoService {
      */
     // String must start with (byte)4
     public ECPublicKey fromUncompressedECPublicKey(final String encodedPublicKey) throws InvalidKeySpecException {
+        return fromUncompressedECPublicKey(Base64.getUrlDecoder().decode(encodedPublicKey));
+    }
 
-        byte[] w = Base64.getUrlDecoder().decode(encodedPublicKey);
+    /**
+     * Converter to elliptic curve (EC) public key.
+     *
+     * @param w uncompressed public key, starts with (byte)4
+     * @return elliptic curve public key
+     * @throws InvalidKeySpecException exception
+     */
+    public ECPublicKey fromUncompressedECPublicKey(final byte[] w) throws InvalidKeySpecException {
         byte[] encodedKey = new byte[P256_HEAD.length + w.length];
         System.arraycopy(P256_HEAD, 0, encodedKey, 0, P256_HEAD.length);
         System.arraycopy(w, 0, encodedKey, P256_HEAD.length, w.length);
@@ -265,29 +449,58 @@ public class CryptoService {
     }
 
     /**
-     * Auxiliary concatenation method.
+     * Writes big-endian integer.
      *
-     * @param arrays arrays of bytes
-     * @return concatenated array of bytes
-     */
-    byte[] concat(final byte[]... arrays) {
-        // Determine the length of the result array
-        int totalLength = 0;
-        for (byte[] array : arrays) {
-            totalLength += array.length;
+     * @param target target array
+     * @param offset position
+     * @param value  value
+     */
+    private static void writeInt(final byte[] target, final int offset, final int value) {
+        for (int i = 0; i < RECORD_SIZE_LENGTH; i++) {
+            target[offset + i] = (byte) (value >>> (Byte.SIZE * (RECORD_SIZE_LENGTH - 1 - i)));
         }
+    }
 
-        // create the result array
-        byte[] result = new byte[totalLength];
-
-        // copy the source arrays into the result array
-        int currentIndex = 0;
-        for (byte[] array : arrays) {
-            System.arraycopy(array, 0, result, currentIndex, array.length);
-            currentIndex += array.length;
+    /**
+     * Crypto primitives reused by a single thread.
+     */
+    private static final class Primitives {
+
+        /**
+         * Ephemeral key pair generator.
+         */
+        private final KeyPairGenerator keyPairGenerator;
+        /**
+         * ECDH key agreement.
+         */
+        private final KeyAgreement keyAgreement;
+        /**
+         * HMAC-SHA-256 for HKDF.
+         */
+        private final Mac hmac;
+        /**
+         * AES-GCM cipher.
+         */
+        private final Cipher cipher;
+        /**
+         * Intermediate secrets buffer.
+         */
+        private final byte[] scratch = new byte[HASH_LENGTH];
+
+        /**
+         * Constructor.
+         */
+        Primitives() {
+            try {
+                keyPairGenerator = KeyPairGenerator.getInstance("EC");
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+                keyAgreement = KeyAgreement.getInstance("ECDH");
+                hmac = Mac.getInstance(HMAC_SHA_256);
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException | NoSuchPaddingException ex) {
+                throw new IllegalStateException("Crypto primitives are not available", ex);
+            }
         }
-
-        return result;
     }
 
 }
@@ -0,0 +1,199 @@
+package com.artemoons.webpush;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of pre-generated single-use ephemeral ECDH key pairs. Background thread keeps the bounded queue topped up,
+ * every key pair is handed out exactly once. When the pool is empty or disabled, callers generate keys inline.
+ */
+@Slf4j
+@Component
+public class EphemeralKeyPool {
+
+    /**
+     * Pool configuration.
+     */
+    private final KeyPoolConfiguration properties;
+    /**
+     * Pre-generated key pairs.
+     */
+    private final BlockingQueue<KeyPair> keyPairs;
+    /**
+     * Key pairs served from the pool.
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * Requests served inline because the pool was empty.
+     */
+    private final LongAdder misses = new LongAdder();
+    /**
+     * Time when the pool stopped being full, nanoseconds, 0 if the pool is full.
+     */
+    private final AtomicLong deficitSince = new AtomicLong();
+    /**
+     * Time it took to fill the pool up last time, nanoseconds.
+     */
+    private final AtomicLong lastRefillLag = new AtomicLong();
+    /**
+     * Longest time it took to fill the pool up, nanoseconds.
+     */
+    private final AtomicLong maxRefillLag = new AtomicLong();
+    /**
+     * Refill thread.
+     */
+    private Thread refiller;
+
+    /**
+     * Constructor.
+     *
+     * @param config pool configuration
+     */
+    @Autowired
+    public EphemeralKeyPool(final KeyPoolConfiguration config) {
+        this.properties = config;
+        this.keyPairs = new ArrayBlockingQueue<>(Math.max(1, config.getSize()));
+    }
+
+    /**
+     * Starts refill thread.
+     */
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        refiller = new Thread(this::refill, "ephemeral-key-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    /**
+     * Stops refill thread.
+     */
+    @PreDestroy
+    public void stop() {
+        if (refiller != null) {
+            refiller.interrupt();
+        }
+    }
+
+    /**
+     * Takes pre-generated key pair.
+     *
+     * @return key pair or null if the pool is disabled or empty
+     */
+    public KeyPair poll() {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPair == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            deficitSince.compareAndSet(0, System.nanoTime());
+        }
+        return keyPair;
+    }
+
+    /**
+     * Number of key pairs ready to use.
+     *
+     * @return pool size
+     */
+    public int size() {
+        return keyPairs.size();
+    }
+
+    /**
+     * Key pairs served from the pool.
+     *
+     * @return hits count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Requests served inline.
+     *
+     * @return misses count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Share of requests served from the pool.
+     *
+     * @return hit rate from 0 to 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Time it took to fill the pool up last time.
+     *
+     * @return refill lag
+     */
+    public Duration getLastRefillLag() {
+        return Duration.ofNanos(lastRefillLag.get());
+    }
+
+    /**
+     * Longest time it took to fill the pool up.
+     *
+     * @return refill lag
+     */
+    public Duration getMaxRefillLag() {
+        return Duration.ofNanos(maxRefillLag.get());
+    }
+
+    /**
+     * Refill loop, blocks while the pool is full.
+     */
+    private void refill() {
+        KeyPairGenerator generator;
+        try {
+            generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException ex) {
+            log.error("Ephemeral key pool can't be started", ex);
+            return;
+        }
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                keyPairs.put(generator.generateKeyPair());
+                if (keyPairs.remainingCapacity() == 0) {
+                    long since = deficitSince.getAndSet(0);
+                    if (since != 0) {
+                        long lag = System.nanoTime() - since;
+                        lastRefillLag.set(lag);
+                        maxRefillLag.accumulateAndGet(lag, Math::max);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.artemoons.webpush;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Ephemeral key pool configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "encryption.key-pool")
+public class KeyPoolConfiguration {
+
+    /**
+     * Default pool size.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * Whether key pairs are pre-generated in background.
+     */
+    private boolean enabled;
+
+    /**
+     * Maximum number of pre-generated key pairs.
+     */
+    private int size = DEFAULT_SIZE;
+
+}
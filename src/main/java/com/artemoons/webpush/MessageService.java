@@ -1,32 +1,45 @@
 package com.artemoons.webpush;
 
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.DeliveryOutcome;
+import com.artemoons.webpush.delivery.DeliveryQueue;
+import com.artemoons.webpush.delivery.DeliveryScheduler;
+import com.artemoons.webpush.delivery.FanOutEngine;
+import com.artemoons.webpush.delivery.JobRegistry;
+import com.artemoons.webpush.delivery.MessageCollapsedException;
+import com.artemoons.webpush.delivery.MessagePreparer;
+import com.artemoons.webpush.delivery.PreparedMessage;
+import com.artemoons.webpush.delivery.PushRequest;
+import com.artemoons.webpush.delivery.PushResponse;
+import com.artemoons.webpush.delivery.VapidTokenCache;
+import com.artemoons.webpush.dto.BatchItem;
 import com.artemoons.webpush.dto.PushMessage;
-import com.artemoons.webpush.dto.Subscription;
-import com.auth0.jwt.JWT;
-import com.auth0.jwt.algorithms.Algorithm;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriptionStore;
+import com.artemoons.webpush.subscription.TagExpression;
+import com.artemoons.webpush.subscription.Targeting;
+import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
-
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
-import java.net.http.HttpResponse;
-import java.util.Date;
-import java.util.HashSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Message send service.
@@ -39,17 +52,17 @@ import java.util.concurrent.ConcurrentHashMap;
 public class MessageService {
 
     /**
-     * Subject mail.
+     * Time to live header.
      */
-    public static final String SUBJECT_MAIL = "mailto:example@example.com";
+    public static final String TTL = "TTL";
     /**
-     * Conversion coefficient.
+     * Urgency header.
      */
-    public static final int COEFFICIENT = 12 * 60 * 60 * 1000;
+    public static final String URGENCY = "Urgency";
     /**
-     * Time to live.
+     * Collapse topic header.
      */
-    public static final String TTL_TIME = "180";
+    public static final String TOPIC = "Topic";
     /**
      * Encoding type.
      */
@@ -59,144 +72,353 @@ public class MessageService {
      */
     private final CryptoService cryptoService;
     /**
-     * Server keys.
+     * Message serializer.
+     */
+    private final MessagePreparer messagePreparer;
+    /**
+     * Concurrent fan-out engine.
+     */
+    private final FanOutEngine fanOutEngine;
+    /**
+     * Durable queue of broadcast deliveries.
      */
-    private final ServerKeysService serverKeysService;
+    private final DeliveryQueue deliveryQueue;
     /**
-     * JSON object mapper.
+     * Delivery jobs registry.
      */
-    private final ObjectMapper objectMapper;
+    private final JobRegistry jobRegistry;
     /**
-     * Subscribers list.
+     * VAPID tokens.
      */
-    private Map<String, Subscription> subscriberList = new ConcurrentHashMap<>();
+    private final VapidTokenCache vapidTokenCache;
+    /**
+     * Rate limited and retrying push sender.
+     */
+    private final DeliveryScheduler deliveryScheduler;
+    /**
+     * Subscribers storage.
+     */
+    private final SubscriptionStore subscriptionStore;
 
     /**
      * Constructor.
      *
      * @param cryptoSvc   cryptographic service
-     * @param keysService server keys
-     * @param jsonMapper  object mapper
+     * @param preparer    message serializer
+     * @param queue       durable delivery queue, also provides fan-out engine
+     * @param jobs        delivery jobs registry
+     * @param vapidTokens VAPID tokens cache
+     * @param scheduler   rate limited and retrying push sender
+     * @param store       subscribers storage
      */
     @Autowired
     public MessageService(final CryptoService cryptoSvc,
-                          final ServerKeysService keysService,
-                          final ObjectMapper jsonMapper) {
+                          final MessagePreparer preparer,
+                          final DeliveryQueue queue,
+                          final JobRegistry jobs,
+                          final VapidTokenCache vapidTokens,
+                          final DeliveryScheduler scheduler,
+                          final SubscriptionStore store) {
         this.cryptoService = cryptoSvc;
-        this.serverKeysService = keysService;
-        this.objectMapper = jsonMapper;
+        this.messagePreparer = preparer;
+        this.deliveryQueue = queue;
+        this.fanOutEngine = queue.getFanOutEngine();
+        this.jobRegistry = jobs;
+        this.vapidTokenCache = vapidTokens;
+        this.deliveryScheduler = scheduler;
+        this.subscriptionStore = store;
     }
 
     /**
-     * Method for sending push notifications.
+     * Starts consumer of the delivery queue, unfinished broadcasts are resumed.
+     *
+     * @throws IOException if the queue can't be opened
+     */
+    @PostConstruct
+    public void startQueue() throws IOException {
+        if (deliveryQueue.isEnabled()) {
+            deliveryQueue.start(this::deliverQueued, (job, gone) -> finish(job, gone, null));
+        }
+    }
+
+    /**
+     * Method for sending push notifications. Message is serialized and validated right away, delivery runs
+     * in background. Message with target expression is sent only to matching subscribers. When the delivery
+     * queue is enabled, recipients are written to the queue before returning, so the broadcast survives restart.
      *
      * @param message input message
+     * @return delivery job
+     * @throws com.artemoons.webpush.subscription.InvalidExpressionException if target expression is malformed
+     * @throws com.artemoons.webpush.delivery.QueueFullException            if too many deliveries are queued
      */
-    public void sendMessage(final PushMessage message) {
-        if (subscriberList.isEmpty()) {
+    public DeliveryJob sendMessage(final PushMessage message) {
+        TagExpression target = message.getTarget() == null ? null : TagExpression.parse(message.getTarget());
+        PreparedMessage preparedMessage = messagePreparer.prepare(message);
+        DeliveryJob job = jobRegistry.create();
+        if (subscriptionStore.isEmpty()) {
             log.warn("Subscribers list is empty, push messages won't be sent");
+            job.complete();
         } else {
-            sendPushMessageToSubscribers(subscriberList, message);
+            Iterable<Subscriber> recipients = target == null
+                    ? subscriptionStore.subscribers() : subscriptionStore.subscribers(target);
+            if (deliveryQueue.isEnabled()) {
+                deliveryQueue.enqueue(job, preparedMessage, () -> StreamSupport.stream(recipients.spliterator(), false)
+                        .map(Subscriber::getEndpoint)
+                        .iterator());
+            } else {
+                sendPushMessageToSubscribers(recipients, preparedMessage, job);
+            }
         }
+        return job;
     }
 
     /**
-     * Auxiliary method supporting message sending.
+     * Method for sending personalized messages. Items are read, resolved to recipients and handed to the fan-out
+     * engine one by one in the calling thread, so the batch is never held in memory as a whole: reading is paused
+     * while the global in-flight limit is reached. Returns once all items are submitted, delivery continues
+     * in background.
      *
-     * @param subscribers subscribers map
-     * @param payload     incoming message
-     */
-    private void sendPushMessageToSubscribers(final Map<String, Subscription> subscribers,
-                                              final Object payload) {
-
-        Set<String> failedSubscriptions = new HashSet<>();
-
-        for (Subscription subscriber : subscribers.values()) {
-            try {
-                byte[] message = cryptoService.encrypt(objectMapper.writeValueAsString(payload),
-                        subscriber.getKeys().getP256dh(),
-                        subscriber.getKeys().getAuth(),
-                        0);
-                boolean remove = sendPushMessage(subscriber, message);
-                if (remove) {
-                    failedSubscriptions.add(subscriber.getEndpoint());
+     * @param items batch items addressed by endpoint or user identifier
+     * @return delivery job, items without recipients or with invalid payload are counted as skipped
+     */
+    public DeliveryJob sendBatch(final Iterable<BatchItem> items) {
+        DeliveryJob job = jobRegistry.create();
+        Set<String> failedSubscriptions = ConcurrentHashMap.newKeySet();
+        Iterable<Delivery> deliveries = StreamSupport.stream(items.spliterator(), false)
+                .flatMap(item -> resolve(item, job))
+                .peek(delivery -> job.enqueued())::iterator;
+
+        fanOutEngine.fanOutFromCaller(deliveries,
+                        delivery -> deliver(delivery.subscriber(), delivery.payload(), job, failedSubscriptions))
+                .whenComplete((result, ex) -> finish(job, failedSubscriptions, ex));
+        return job;
+    }
+
+    /**
+     * Auxiliary method supporting message sending. Every subscriber is processed as a separate task
+     * of the fan-out engine, the job is completed when all deliveries are finished. Subscriber met twice,
+     * e.g. moved while the store is being iterated, gets the message once.
+     *
+     * @param subscribers recipients
+     * @param payload     prepared message shared by all deliveries
+     * @param job         delivery job
+     */
+    private void sendPushMessageToSubscribers(final Iterable<Subscriber> subscribers,
+                                              final PreparedMessage payload,
+                                              final DeliveryJob job) {
+
+        Set<String> failedSubscriptions = ConcurrentHashMap.newKeySet();
+        Iterable<Subscriber> recipients = StreamSupport.stream(subscribers.spliterator(), false)
+                .peek(subscriber -> job.enqueued())::iterator;
+
+        fanOutEngine.fanOutAsync(recipients, subscriber -> {
+            if (!job.claim(subscriber.getEndpoint())) {
+                job.cancelled();
+                return CompletableFuture.completedFuture(null);
+            }
+            return deliver(subscriber, payload, job, failedSubscriptions);
+        }).whenComplete((result, ex) -> finish(job, failedSubscriptions, ex));
+    }
+
+    /**
+     * Auxiliary method resolving batch item to deliveries.
+     *
+     * @param item batch item
+     * @param job  delivery job
+     * @return deliveries, empty if item is skipped
+     */
+    private Stream<Delivery> resolve(final BatchItem item, final DeliveryJob job) {
+        if (item.getPayload() == null || (item.getEndpoint() == null) == (item.getUserId() == null)) {
+            log.debug("Batch item must have payload and either endpoint or user id");
+            job.skipped();
+            return Stream.empty();
+        }
+        PreparedMessage payload;
+        List<Subscriber> recipients;
+        try {
+            payload = messagePreparer.prepare(item.getPayload());
+            if (item.getEndpoint() != null) {
+                Subscriber subscriber = subscriptionStore.get(item.getEndpoint());
+                recipients = subscriber == null ? List.of() : List.of(subscriber);
+            } else {
+                String userId = Targeting.of(null, null, item.getUserId()).getUserId();
+                recipients = new ArrayList<>();
+                if (userId != null) {
+                    subscriptionStore.subscribers(TagExpression.parse(Targeting.USER + ":" + userId))
+                            .forEach(recipients::add);
                 }
-            } catch (Exception ex) {
-                log.error("Error occurred when sending push message", ex);
             }
+        } catch (RuntimeException ex) {
+            log.debug("Batch item is skipped: {}", ex.getMessage());
+            job.skipped();
+            return Stream.empty();
         }
-        failedSubscriptions.forEach(subscribers::remove);
+        if (recipients.isEmpty()) {
+            job.skipped();
+        }
+        return recipients.stream().map(subscriber -> new Delivery(subscriber, payload));
     }
 
     /**
-     * Auxiliary method supporting message sending.
+     * Auxiliary method sending queued delivery, subscription may have been removed since it was queued.
      *
-     * @param subscriber subscriber record
-     * @param body       push message body
-     * @return true if the subscription is no longer valid and can be removed, false if
-     * everything is okay
+     * @param job                 delivery job
+     * @param endpoint            recipient endpoint URL
+     * @param payload             prepared message
+     * @param failedSubscriptions collector of subscriptions to remove
+     * @return future completed when outcome is recorded
+     */
+    private CompletableFuture<Void> deliverQueued(final DeliveryJob job, final String endpoint,
+                                                  final PreparedMessage payload,
+                                                  final Set<String> failedSubscriptions) {
+        Subscriber subscriber = subscriptionStore.get(endpoint);
+        if (subscriber == null) {
+            job.cancelled();
+            return CompletableFuture.completedFuture(null);
+        }
+        return deliver(subscriber, payload, job, failedSubscriptions);
+    }
+
+    /**
+     * Auxiliary method encrypting and sending message to a single subscriber. Outcome is recorded by the job,
+     * nothing is logged per successful delivery. Message with a topic is encrypted only when it's about to be sent,
+     * so it isn't encrypted at all if a newer message with the same topic supersedes it meanwhile.
+     *
+     * @param subscriber          recipient
+     * @param payload             prepared message
+     * @param job                 delivery job
+     * @param failedSubscriptions collector of subscriptions to remove
+     * @return future completed when outcome is recorded
      */
-    private boolean sendPushMessage(final Subscription subscriber, final byte[] body) {
+    private CompletableFuture<Void> deliver(final Subscriber subscriber, final PreparedMessage payload,
+                                            final DeliveryJob job, final Set<String> failedSubscriptions) {
+        CompletableFuture<PushResponse> delivery;
+        AtomicReference<byte[]> message = new AtomicReference<>();
+        try {
+            if (payload.getTopic() == null) {
+                message.set(encrypt(subscriber, payload));
+            }
+            delivery = sendPushMessage(subscriber, payload, () -> message.updateAndGet(
+                    encrypted -> encrypted == null ? encrypt(subscriber, payload) : encrypted));
+        } catch (RuntimeException ex) {
+            delivery = CompletableFuture.failedFuture(ex);
+        }
+        return delivery.handle((response, ex) -> {
+            int status = response == null ? -1 : response.statusCode();
+            DeliveryOutcome outcome = response == null ? DeliveryOutcome.FAILED : toOutcome(status);
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof MessageCollapsedException) {
+                outcome = DeliveryOutcome.COLLAPSED;
+            }
+            if (outcome == DeliveryOutcome.GONE) {
+                failedSubscriptions.add(subscriber.getEndpoint());
+            }
+            job.record(subscriber.getEndpoint(), subscriber.getOrigin(), status, outcome, ex);
+            return null;
+        });
+    }
 
-        Algorithm jwtAlgorithm = Algorithm.ECDSA256(serverKeysService.getPublicKey(),
-                serverKeysService.getPrivateKey());
-        String origin;
+    /**
+     * Auxiliary method finishing delivery job.
+     *
+     * @param job                 delivery job
+     * @param failedSubscriptions subscriptions to remove
+     * @param error               fan-out error
+     */
+    private void finish(final DeliveryJob job, final Set<String> failedSubscriptions, final Throwable error) {
+        if (error != null) {
+            log.error("Broadcast {} has been interrupted", job.getId(), error);
+        }
+        failedSubscriptions.forEach(subscriptionStore::bury);
+        job.complete();
+    }
 
+    /**
+     * Auxiliary method encrypting message for a single subscriber, record is padded up to its size class.
+     *
+     * @param subscriber recipient
+     * @param payload    prepared message
+     * @return encrypted push message body
+     * @throws IllegalStateException if encryption fails
+     */
+    private byte[] encrypt(final Subscriber subscriber, final PreparedMessage payload) {
         try {
-            URL url = new URL(subscriber.getEndpoint());
-            origin = url.getProtocol() + "://" + url.getHost();
-        } catch (MalformedURLException ex) {
-            log.error("Can't get endpoint for subscriber ", ex);
-            return true;
+            return cryptoService.encrypt(payload.getPayload(),
+                    subscriber.getPublicKey(),
+                    subscriber.getP256dh(),
+                    subscriber.getAuth(),
+                    cryptoService.paddingSize(payload.getPayload().length));
+        } catch (Exception ex) {
+            throw new IllegalStateException("Push message encryption failed", ex);
         }
+    }
 
-        Date expires = new Date(new Date().getTime() + COEFFICIENT);
-
-        String token = JWT.create()
-                .withAudience(origin)
-                .withExpiresAt(expires)
-                .withSubject(SUBJECT_MAIL)
-                .sign(jwtAlgorithm);
-
-        URI endpointURI = URI.create(subscriber.getEndpoint());
-
-        HttpHeaders httpHeaders = prepareHeaders(token);
-        HttpEntity<byte[]> entity = new HttpEntity<>(body, httpHeaders);
-        RestTemplate restTemplate = new RestTemplate();
-        ResponseEntity<HttpResponse> response = restTemplate.exchange(endpointURI,
-                HttpMethod.POST,
-                entity,
-                HttpResponse.class);
-
-        int responseStatusCode = response.getStatusCode().value();
-        HttpStatus httpStatusCode = HttpStatus.valueOf(responseStatusCode);
-        switch (httpStatusCode) {
-            case CREATED -> log.info("Push message successfully sent: {}", subscriber.getEndpoint());
-            case NOT_FOUND, GONE -> {
-                log.warn("Subscription not found or gone: {}", subscriber.getEndpoint());
-                return true;
-            }
-            case TOO_MANY_REQUESTS -> log.error("Too many requests: {}", entity);
-            case BAD_REQUEST -> log.error("Invalid request: {}", entity);
-            case PAYLOAD_TOO_LARGE -> log.error("Payload size too large: {}", entity);
-            default -> log.error("Unhandled status code: {} / {}", response.getStatusCode(), entity);
+    /**
+     * Auxiliary method supporting message sending. Throttled and failed requests are retried by the scheduler,
+     * every attempt gets fresh VAPID authorization. Message with a topic is collapsed with newer messages
+     * of the same topic to the same subscriber.
+     *
+     * @param subscriber subscriber record
+     * @param payload    prepared message
+     * @param body       push message body, requested once the request is about to be sent
+     * @return future response of the last attempt
+     */
+    private CompletableFuture<PushResponse> sendPushMessage(final Subscriber subscriber,
+                                                            final PreparedMessage payload,
+                                                            final Supplier<byte[]> body) {
+        String collapseKey = payload.getTopic() == null ? null : subscriber.getEndpoint() + " " + payload.getTopic();
+        return deliveryScheduler.send(subscriber.getOrigin(), collapseKey, () -> new PushRequest(subscriber.getUri(),
+                prepareHeaders(vapidTokenCache.authorization(subscriber.getOrigin()), payload), body.get()));
+    }
+
+    /**
+     * Auxiliary method for interpreting push service response.
+     *
+     * @param statusCode response status
+     * @return delivery outcome, GONE if the subscription is no longer valid and can be removed
+     */
+    private static DeliveryOutcome toOutcome(final int statusCode) {
+        HttpStatus httpStatusCode = HttpStatus.resolve(statusCode);
+        if (httpStatusCode == null) {
+            return DeliveryOutcome.FAILED;
         }
-        return false;
+        return switch (httpStatusCode) {
+            case CREATED -> DeliveryOutcome.SENT;
+            case NOT_FOUND, GONE -> DeliveryOutcome.GONE;
+            case TOO_MANY_REQUESTS -> DeliveryOutcome.THROTTLED;
+            default -> DeliveryOutcome.FAILED;
+        };
+    }
+
+    /**
+     * Message prepared for a single recipient.
+     *
+     * @param subscriber recipient
+     * @param payload    prepared message
+     */
+    private record Delivery(Subscriber subscriber, PreparedMessage payload) {
     }
 
     /**
      * Auxiliary method for preparing HTTP headers.
      *
-     * @param token authorization token
-     * @return HttpHeaders
-     */
-    private HttpHeaders prepareHeaders(final String token) {
-        HttpHeaders httpHeaders = new HttpHeaders();
-        httpHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        httpHeaders.put("Content-Encoding", List.of(ENCODING));
-        httpHeaders.put("TTL", List.of(TTL_TIME));
-        httpHeaders.put("Authorization", List.of("vapid t=" + token + ", k=" + serverKeysService.getPublicKeyBase64()));
-        return httpHeaders;
+     * @param authorization prebuilt VAPID authorization header value
+     * @param payload       prepared message with delivery options
+     * @return request headers
+     */
+    private Map<String, String> prepareHeaders(final String authorization, final PreparedMessage payload) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        headers.put(HttpHeaders.CONTENT_ENCODING, ENCODING);
+        headers.put(TTL, Integer.toString(payload.getTtl()));
+        headers.put(HttpHeaders.AUTHORIZATION, authorization);
+        if (payload.getUrgency() != null) {
+            headers.put(URGENCY, payload.getUrgency().getValue());
+        }
+        if (payload.getTopic() != null) {
+            headers.put(TOPIC, payload.getTopic());
+        }
+        return headers;
     }
 
 }
@@ -0,0 +1,49 @@
+package com.artemoons.webpush;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload compression and padding configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "encryption.payload")
+public class PayloadConfiguration {
+
+    /**
+     * Default minimal payload size worth compressing, bytes.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    /**
+     * Default number of pooled buffers per size class.
+     */
+    public static final int DEFAULT_POOL_SIZE = 256;
+
+    /**
+     * Whether payloads are deflate-compressed, service worker inflates them.
+     */
+    private boolean compression;
+
+    /**
+     * Payloads shorter than this are sent as is.
+     */
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Record size classes, bytes: record is padded up to the smallest class it fits. Empty list disables padding.
+     */
+    private List<Integer> sizeClasses = new ArrayList<>();
+
+    /**
+     * Maximum number of pooled record buffers per size class.
+     */
+    private int poolSize = DEFAULT_POOL_SIZE;
+
+}
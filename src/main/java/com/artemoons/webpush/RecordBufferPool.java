@@ -0,0 +1,101 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.MessagePreparer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encrypted record size classes and pools of record buffers, one per class. Padding every record up to a size
+ * class hides the payload length and makes records of the same class interchangeable, so the buffer the padded
+ * plain text is assembled in goes back to the pool as soon as it's encrypted and serves the next record. The
+ * encrypted record itself is never pooled, the HTTP client may keep reading it until the exchange is over.
+ */
+@Component
+public class RecordBufferPool {
+
+    /**
+     * Record sizes, ascending.
+     */
+    private final int[] classes;
+    /**
+     * Free buffers by class index.
+     */
+    private final List<BlockingQueue<byte[]>> buffers;
+
+    /**
+     * Constructor.
+     *
+     * @param config payload configuration
+     */
+    @Autowired
+    public RecordBufferPool(final PayloadConfiguration config) {
+        int minimum = CryptoService.HEADER_LENGTH + 1 + CryptoService.TAG_BYTES;
+        this.classes = config.getSizeClasses().stream()
+                .mapToInt(Integer::intValue)
+                .filter(size -> size > minimum && size <= MessagePreparer.MAX_RECORD_SIZE)
+                .sorted()
+                .distinct()
+                .toArray();
+        this.buffers = new ArrayList<>(classes.length);
+        for (int i = 0; i < classes.length; i++) {
+            buffers.add(new ArrayBlockingQueue<>(Math.max(1, config.getPoolSize())));
+        }
+    }
+
+    /**
+     * Minimal padded plain text size putting the record into its size class.
+     *
+     * @param plainTextLength plain text length
+     * @return padding size for {@link CryptoService#encrypt}, 0 if padding is disabled or record is too large
+     */
+    public int paddingSize(final int plainTextLength) {
+        int index = classOf(CryptoService.HEADER_LENGTH + plainTextLength + 1 + CryptoService.TAG_BYTES);
+        return index < 0 ? 0 : classes[index] - CryptoService.HEADER_LENGTH - 1 - CryptoService.TAG_BYTES;
+    }
+
+    /**
+     * Takes buffer of the given length, pooled one if the length is a size class. Pooled buffer isn't cleared.
+     *
+     * @param length record length
+     * @return buffer
+     */
+    public byte[] acquire(final int length) {
+        int index = classOf(length);
+        byte[] buffer = index < 0 || classes[index] != length ? null : buffers.get(index).poll();
+        return buffer == null ? new byte[length] : buffer;
+    }
+
+    /**
+     * Returns buffer to the pool, buffers not matching a size class and buffers over the pool size are dropped.
+     * Caller must not use the buffer afterwards.
+     *
+     * @param buffer record buffer
+     */
+    public void release(final byte[] buffer) {
+        int index = classOf(buffer.length);
+        if (index >= 0 && classes[index] == buffer.length) {
+            buffers.get(index).offer(buffer);
+        }
+    }
+
+    /**
+     * Finds the smallest size class fitting the record.
+     *
+     * @param length record length
+     * @return class index, -1 if there is none
+     */
+    private int classOf(final int length) {
+        for (int i = 0; i < classes.length; i++) {
+            if (length <= classes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -1,19 +1,36 @@
 package com.artemoons.webpush;
 
+import com.artemoons.webpush.cluster.ClusterConfiguration;
+import com.artemoons.webpush.cluster.ClusterRouter;
+import com.artemoons.webpush.delivery.BatchReader;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.JobRegistry;
+import com.artemoons.webpush.dto.JobStatus;
 import com.artemoons.webpush.dto.PushMessage;
 import com.artemoons.webpush.dto.Subscription;
 import com.artemoons.webpush.dto.SubscriptionEndpoint;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import com.artemoons.webpush.subscription.SubscriptionStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Optional;
+import java.util.function.Supplier;
+
 /**
  * Subscription controller.
  */
@@ -21,6 +38,14 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 @RequestMapping(value = "/api/v1")
 public class SubscriptionController {
+    /**
+     * Client idempotency key header of {@code /send}.
+     */
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    /**
+     * Response header marking job started by an earlier request with the same idempotency key.
+     */
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
     /**
      * Message service.
      */
@@ -29,17 +54,53 @@ public class SubscriptionController {
      * Server keys service.
      */
     private final ServerKeysService serverKeysService;
+    /**
+     * Delivery jobs registry.
+     */
+    private final JobRegistry jobRegistry;
+    /**
+     * Subscriptions validator.
+     */
+    private final SubscriberFactory subscriberFactory;
+    /**
+     * Subscribers storage.
+     */
+    private final SubscriptionStore subscriptionStore;
+    /**
+     * Message batch reader.
+     */
+    private final BatchReader batchReader;
+    /**
+     * Routing between cluster members.
+     */
+    private final ClusterRouter clusterRouter;
 
     /**
      * Constructor.
      *
      * @param msgService  message service
      * @param keysService server keys service
+     * @param jobs        delivery jobs registry
+     * @param factory     subscriptions validator
+     * @param store       subscribers storage
+     * @param reader      message batch reader
+     * @param router      routing between cluster members
      */
     @Autowired
-    public SubscriptionController(final MessageService msgService, final ServerKeysService keysService) {
+    public SubscriptionController(final MessageService msgService,
+                                  final ServerKeysService keysService,
+                                  final JobRegistry jobs,
+                                  final SubscriberFactory factory,
+                                  final SubscriptionStore store,
+                                  final BatchReader reader,
+                                  final ClusterRouter router) {
         this.messageService = msgService;
         this.serverKeysService = keysService;
+        this.jobRegistry = jobs;
+        this.subscriberFactory = factory;
+        this.subscriptionStore = store;
+        this.batchReader = reader;
+        this.clusterRouter = router;
     }
 
     /**
@@ -54,51 +115,147 @@ public class SubscriptionController {
     }
 
     /**
-     * Controller for subscribing.
+     * Controller for subscribing. Keys are validated and decoded once, malformed subscriptions are rejected
+     * with 400 Bad Request. In cluster mode subscription is stored by the member owning the endpoint.
      *
      * @param subscription subscription info
+     * @param forwardedBy  member which has forwarded the request, null if request came from a client
      */
     @PostMapping("/subscribe")
     @ResponseStatus(HttpStatus.CREATED)
-    public void subscribe(final @RequestBody Subscription subscription) {
+    public void subscribe(final @RequestBody Subscription subscription,
+                          final @RequestHeader(name = ClusterRouter.FORWARDED_HEADER, required = false)
+                          String forwardedBy) {
         log.info("Requested subscription");
-        messageService.getSubscriberList().put(subscription.getEndpoint(), subscription);
+        Optional<ClusterConfiguration.Member> owner = clusterRouter.remoteOwner(subscription.getEndpoint(),
+                forwardedBy);
+        if (owner.isPresent()) {
+            clusterRouter.forward(owner.get(), "/subscribe", subscription, Void.class);
+            return;
+        }
+        Subscriber subscriber = subscriberFactory.create(subscription);
+        subscriptionStore.put(subscriber);
     }
 
     /**
      * Controller for unsubscription.
      *
      * @param subscription subscription info
+     * @param forwardedBy  member which has forwarded the request, null if request came from a client
      */
     @PostMapping("/unsubscribe")
-    public void unsubscribe(final @RequestBody SubscriptionEndpoint subscription) {
+    public void unsubscribe(final @RequestBody SubscriptionEndpoint subscription,
+                            final @RequestHeader(name = ClusterRouter.FORWARDED_HEADER, required = false)
+                            String forwardedBy) {
         log.info("Requested unsubscription");
-        messageService.getSubscriberList().remove(subscription.getEndpoint());
+        Optional<ClusterConfiguration.Member> owner = clusterRouter.remoteOwner(subscription.getEndpoint(),
+                forwardedBy);
+        if (owner.isPresent()) {
+            clusterRouter.forward(owner.get(), "/unsubscribe", subscription, Void.class);
+            return;
+        }
+        subscriptionStore.remove(subscription.getEndpoint());
     }
 
     /**
      * Controller for checking subscription status.
      *
      * @param subscription subscription info
+     * @param forwardedBy  member which has forwarded the request, null if request came from a client
      * @return true if subscribed, otherwise false
      */
     @PostMapping("/isSubscribed")
-    public boolean isSubscribed(final @RequestBody SubscriptionEndpoint subscription) {
+    public boolean isSubscribed(final @RequestBody SubscriptionEndpoint subscription,
+                                final @RequestHeader(name = ClusterRouter.FORWARDED_HEADER, required = false)
+                                String forwardedBy) {
         log.info("Requested subscription status");
-        return messageService.getSubscriberList().containsKey(subscription.getEndpoint());
+        Optional<ClusterConfiguration.Member> owner = clusterRouter.remoteOwner(subscription.getEndpoint(),
+                forwardedBy);
+        if (owner.isPresent()) {
+            return Boolean.TRUE.equals(clusterRouter.forward(owner.get(), "/isSubscribed", subscription,
+                    Boolean.class));
+        }
+        return subscriptionStore.contains(subscription.getEndpoint());
     }
 
     /**
-     * Controller for sending push notification.
+     * Controller for sending push notification. Delivery runs in background. In cluster mode message is also
+     * forwarded to all other members, each of them delivers to its own subscribers; their job identifiers
+     * are listed as job shards. A retried request with the same {@code Idempotency-Key} gets the job started
+     * by the first one, marked with {@code Idempotent-Replayed: true}.
      *
-     * @param message request payload
-     * @return 200 OK if it's OK
+     * @param message        request payload
+     * @param idempotencyKey client idempotency key, null if the request isn't deduplicated
+     * @param forwardedBy    member which has forwarded the request, null if request came from a client
+     * @return 202 Accepted with delivery job status
      */
     @PostMapping("/send")
-    public ResponseEntity<String> sendMessage(final @RequestBody PushMessage message) {
+    public ResponseEntity<JobStatus> sendMessage(final @RequestBody PushMessage message,
+                                                 final @RequestHeader(name = IDEMPOTENCY_KEY, required = false)
+                                                 String idempotencyKey,
+                                                 final @RequestHeader(name = ClusterRouter.FORWARDED_HEADER,
+                                                         required = false) String forwardedBy) {
         log.info("Send message executed");
-        messageService.sendMessage(message);
-        return ResponseEntity.ok("Message sent");
+        Supplier<DeliveryJob> starter = () -> {
+            DeliveryJob started = messageService.sendMessage(message);
+            if (forwardedBy == null) {
+                clusterRouter.broadcast(message, started);
+            }
+            return started;
+        };
+        JobRegistry.Submission submission = idempotencyKey == null || forwardedBy != null
+                ? new JobRegistry.Submission(starter.get(), false)
+                : jobRegistry.submit(idempotencyKey, starter);
+        DeliveryJob job = submission.job();
+        ResponseEntity.BodyBuilder response = ResponseEntity.accepted()
+                .location(URI.create("/api/v1/jobs/" + job.getId()));
+        if (submission.replayed()) {
+            log.info("Send with idempotency key {} replayed job {}", idempotencyKey, job.getId());
+            response.header(IDEMPOTENT_REPLAYED, Boolean.TRUE.toString());
+        }
+        return response.body(job.toStatus());
+    }
+
+    /**
+     * Controller for sending personalized messages. Body is a JSON array or NDJSON of items addressed either
+     * by {@code endpoint} or by {@code userId}; items are parsed and delivered as they arrive, so the request
+     * is answered once the whole body is read. Malformed body stops reading: items read before are still
+     * delivered and 400 Bad Request with the job status is returned. In cluster mode items of other members are
+     * forwarded to them once the local part is submitted, their jobs are recorded as shards.
+     *
+     * @param body        request body
+     * @param forwardedBy member which has forwarded the request, null if request came from a client
+     * @return 202 Accepted with delivery job status
+     */
+    @PostMapping(path = "/send/batch",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<JobStatus> sendBatch(final InputStream body,
+                                               final @RequestHeader(name = ClusterRouter.FORWARDED_HEADER,
+                                                       required = false) String forwardedBy) {
+        log.info("Send batch executed");
+        BatchReader.MessageBatch batch = batchReader.read(body);
+        ClusterRouter.BatchSplit split = clusterRouter.split(batch, forwardedBy);
+        DeliveryJob job = messageService.sendBatch(split);
+        clusterRouter.forwardBatch(split, job);
+        if (batch.getError() != null) {
+            log.warn("{} after {} items", batch.getError(), batch.getCount());
+        }
+        return ResponseEntity.status(batch.getError() == null ? HttpStatus.ACCEPTED : HttpStatus.BAD_REQUEST)
+                .location(URI.create("/api/v1/jobs/" + job.getId()))
+                .body(job.toStatus());
+    }
+
+    /**
+     * Controller for obtaining delivery job status.
+     *
+     * @param id job identifier
+     * @return job status or 404 if job is unknown
+     */
+    @GetMapping("/jobs/{id}")
+    public ResponseEntity<JobStatus> jobStatus(final @PathVariable String id) {
+        return jobRegistry.find(id)
+                .map(job -> ResponseEntity.ok(job.toStatus()))
+                .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
 }
@@ -0,0 +1,92 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.dto.ImportResult;
+import com.artemoons.webpush.subscription.SubscriptionTransfer;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Subscription export and import controller. Both directions are streamed, so any number of subscriptions
+ * moves in a single request.
+ */
+@Slf4j
+@RestController
+@RequestMapping(value = "/api/v1/subscriptions")
+public class SubscriptionTransferController {
+
+    /**
+     * Subscription export and import.
+     */
+    private final SubscriptionTransfer subscriptionTransfer;
+
+    /**
+     * Constructor.
+     *
+     * @param transfer subscription export and import
+     */
+    @Autowired
+    public SubscriptionTransferController(final SubscriptionTransfer transfer) {
+        this.subscriptionTransfer = transfer;
+    }
+
+    /**
+     * Controller for exporting all subscriptions, written directly to the response as they are read.
+     *
+     * @param format   {@code ndjson} or {@code binary}
+     * @param response HTTP response
+     * @throws IOException if response can't be written
+     */
+    @GetMapping("/export")
+    public void export(final @RequestParam(defaultValue = "ndjson") String format,
+                       final HttpServletResponse response) throws IOException {
+        log.info("Requested subscriptions export");
+        SubscriptionTransfer.Format transferFormat;
+        try {
+            transferFormat = SubscriptionTransfer.Format.of(format);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown format " + format);
+        }
+        response.setContentType(transferFormat.getMediaType());
+        subscriptionTransfer.export(response.getOutputStream(), transferFormat);
+    }
+
+    /**
+     * Controller for importing subscriptions, NDJSON or binary export chosen by content type. Malformed body
+     * stops reading: subscriptions read before are still stored and 400 Bad Request with the counters
+     * is returned.
+     *
+     * @param contentType request content type
+     * @param body        request body
+     * @return import result
+     */
+    @PostMapping(path = "/import",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<ImportResult> importSubscriptions(final @RequestHeader(HttpHeaders.CONTENT_TYPE)
+                                                            String contentType,
+                                                            final InputStream body) {
+        log.info("Requested subscriptions import");
+        SubscriptionTransfer.Format format = MediaType.APPLICATION_OCTET_STREAM.isCompatibleWith(
+                MediaType.parseMediaType(contentType))
+                ? SubscriptionTransfer.Format.BINARY
+                : SubscriptionTransfer.Format.NDJSON;
+        ImportResult result = subscriptionTransfer.importFrom(body, format);
+        return ResponseEntity.status(result.getError() == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST)
+                .body(result);
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.artemoons.webpush.cluster;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cluster configuration. Membership is static, every node must be given the same member list.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "cluster")
+public class ClusterConfiguration {
+
+    /**
+     * Default number of ring points per member.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+    /**
+     * Default timeout of requests to other members, seconds.
+     */
+    public static final int DEFAULT_FORWARD_TIMEOUT = 5;
+
+    /**
+     * Whether subscribers are partitioned between members.
+     */
+    private boolean enabled;
+
+    /**
+     * Identifier of this node, must be one of the members.
+     */
+    private String nodeId;
+
+    /**
+     * All cluster members including this node.
+     */
+    private List<Member> members = new ArrayList<>();
+
+    /**
+     * Number of points every member gets on the hash ring, more points give more even partitioning.
+     */
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+    /**
+     * Timeout of requests forwarded to other members.
+     */
+    private Duration forwardTimeout = Duration.ofSeconds(DEFAULT_FORWARD_TIMEOUT);
+
+    /**
+     * Cluster member.
+     */
+    @Setter
+    @Getter
+    public static class Member {
+
+        /**
+         * Node identifier, it's hashed onto the ring so it must be stable across restarts.
+         */
+        private String id;
+
+        /**
+         * Base URL of the node, e.g. {@code http://10.0.0.2:8080}.
+         */
+        private String url;
+
+    }
+
+}
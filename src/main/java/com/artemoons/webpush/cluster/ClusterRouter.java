@@ -0,0 +1,390 @@
+package com.artemoons.webpush.cluster;
+
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.dto.BatchItem;
+import com.artemoons.webpush.dto.PushMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.StreamSupport;
+
+/**
+ * Routing of requests between cluster members. Subscribers are partitioned by consistent hash of the endpoint:
+ * subscription requests are forwarded to the owner node, broadcasts are forwarded to all other members, so every
+ * node encrypts and delivers to its own shard only. Batch items are split the same way: items addressed by endpoint
+ * go to the owner, items addressed by user go to every member. Forwarded requests carry {@link #FORWARDED_HEADER}
+ * and are always handled locally, so a request is never forwarded twice. In standalone mode everything is local.
+ */
+@Slf4j
+@Component
+public class ClusterRouter {
+
+    /**
+     * Header marking request forwarded by another member, its value is the sender node identifier.
+     */
+    public static final String FORWARDED_HEADER = "X-Webpush-Forwarded-By";
+    /**
+     * API path prefix of the members.
+     */
+    private static final String API_PATH = "/api/v1";
+    /**
+     * Cluster configuration.
+     */
+    private final ClusterConfiguration configuration;
+    /**
+     * JSON mapper.
+     */
+    private final ObjectMapper objectMapper;
+    /**
+     * Hash ring, null in standalone mode.
+     */
+    private final HashRing<ClusterConfiguration.Member> ring;
+    /**
+     * This node.
+     */
+    private final ClusterConfiguration.Member self;
+    /**
+     * Other members.
+     */
+    private final List<ClusterConfiguration.Member> peers;
+    /**
+     * Client of the other members.
+     */
+    private final HttpClient httpClient;
+
+    /**
+     * Constructor.
+     *
+     * @param config     cluster configuration
+     * @param jsonMapper JSON mapper
+     */
+    @Autowired
+    public ClusterRouter(final ClusterConfiguration config, final ObjectMapper jsonMapper) {
+        this.configuration = config;
+        this.objectMapper = jsonMapper;
+        if (!config.isEnabled()) {
+            this.ring = null;
+            this.self = null;
+            this.peers = List.of();
+            this.httpClient = null;
+            return;
+        }
+        Set<String> ids = new HashSet<>();
+        for (ClusterConfiguration.Member member : config.getMembers()) {
+            if (member.getId() == null || member.getUrl() == null || !ids.add(member.getId())) {
+                throw new IllegalStateException("Cluster members must have unique ids and urls");
+            }
+        }
+        this.self = config.getMembers().stream()
+                .filter(member -> member.getId().equals(config.getNodeId()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Node " + config.getNodeId() + " isn't a cluster member"));
+        this.peers = config.getMembers().stream().filter(member -> member != self).toList();
+        this.ring = new HashRing<>(config.getMembers(), ClusterConfiguration.Member::getId, config.getVirtualNodes());
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(config.getForwardTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        log.info("Cluster mode, node {} of {}", self.getId(), ids);
+    }
+
+    /**
+     * Finds member the subscription request must be forwarded to.
+     *
+     * @param endpoint    subscription endpoint URL
+     * @param forwardedBy value of {@link #FORWARDED_HEADER}, null if request came from a client
+     * @return owner node, empty if request is handled locally
+     */
+    public Optional<ClusterConfiguration.Member> remoteOwner(final String endpoint, final String forwardedBy) {
+        if (ring == null || forwardedBy != null || endpoint == null) {
+            return Optional.empty();
+        }
+        ClusterConfiguration.Member owner = ring.owner(endpoint);
+        return owner == self ? Optional.empty() : Optional.of(owner);
+    }
+
+    /**
+     * Forwards request to another member and waits for its response.
+     *
+     * @param member       target member
+     * @param path         API path, e.g. {@code /subscribe}
+     * @param body         request body
+     * @param responseType response body type, {@link Void} if body isn't needed
+     * @param <T>          response body type
+     * @return response body
+     * @throws NodeUnavailableException if member couldn't be reached
+     * @throws ResponseStatusException  if member has rejected the request, with the same status
+     */
+    public <T> T forward(final ClusterConfiguration.Member member, final String path, final Object body,
+                         final Class<T> responseType) {
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request(member, path, MediaType.APPLICATION_JSON_VALUE,
+                    HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body))),
+                    HttpResponse.BodyHandlers.ofString());
+        } catch (IOException ex) {
+            throw new NodeUnavailableException("Node " + member.getId() + " is unavailable", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new NodeUnavailableException("Interrupted while waiting for node " + member.getId(), ex);
+        }
+        if (response.statusCode() >= HttpStatus.BAD_REQUEST.value()) {
+            throw new ResponseStatusException(HttpStatus.valueOf(response.statusCode()), response.body());
+        }
+        if (responseType == Void.class) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(response.body(), responseType);
+        } catch (JsonProcessingException ex) {
+            throw new NodeUnavailableException("Node " + member.getId() + " has sent malformed response", ex);
+        }
+    }
+
+    /**
+     * Forwards broadcast to all other members in parallel. Waits until every member has accepted the message
+     * or forward timeout has passed, job identifiers on the members are recorded as job shards.
+     *
+     * @param message message with target expression, if any
+     * @param job     local delivery job
+     */
+    public void broadcast(final PushMessage message, final DeliveryJob job) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        String body;
+        try {
+            body = objectMapper.writeValueAsString(toTree(message));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Message can't be serialized", ex);
+        }
+        Map<ClusterConfiguration.Member, CompletableFuture<HttpResponse<String>>> responses = new LinkedHashMap<>();
+        for (ClusterConfiguration.Member peer : peers) {
+            responses.put(peer, httpClient.sendAsync(request(peer, "/send", MediaType.APPLICATION_JSON_VALUE,
+                    HttpRequest.BodyPublishers.ofString(body)), HttpResponse.BodyHandlers.ofString()));
+        }
+        awaitShards(responses, job);
+    }
+
+    /**
+     * Splits batch between members while it's being read. The returned items are the local part of the batch;
+     * items of other members are collected meanwhile as NDJSON, one buffer per member, and are sent by
+     * {@link #forwardBatch} once the local part has been consumed. Only the remote part of the batch is held
+     * in memory, and only in its serialized form.
+     *
+     * @param items       batch items
+     * @param forwardedBy value of {@link #FORWARDED_HEADER}, null if request came from a client
+     * @return local part of the batch
+     */
+    public BatchSplit split(final Iterable<BatchItem> items, final String forwardedBy) {
+        return new BatchSplit(items, ring == null || forwardedBy != null);
+    }
+
+    /**
+     * Forwards the remote parts of a consumed batch to their members in parallel. Waits until every member has
+     * accepted its part or forward timeout has passed, job identifiers on the members are recorded as job shards.
+     *
+     * @param split batch split, its local part must have been consumed
+     * @param job   local delivery job
+     */
+    public void forwardBatch(final BatchSplit split, final DeliveryJob job) {
+        Map<ClusterConfiguration.Member, CompletableFuture<HttpResponse<String>>> responses = new LinkedHashMap<>();
+        split.remote.forEach((peer, body) -> responses.put(peer, httpClient.sendAsync(
+                request(peer, "/send/batch", MediaType.APPLICATION_NDJSON_VALUE,
+                        HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())),
+                HttpResponse.BodyHandlers.ofString())));
+        awaitShards(responses, job);
+    }
+
+    /**
+     * Serializes message for another member.
+     *
+     * @param message message
+     * @return JSON tree
+     */
+    private ObjectNode toTree(final PushMessage message) {
+        ObjectNode tree = objectMapper.valueToTree(message);
+        // target and delivery options are write-only in the payload, but members need them as well
+        tree.put("target", message.getTarget());
+        tree.put("ttl", message.getTtl());
+        tree.put("urgency", message.getUrgency() == null ? null : message.getUrgency().getValue());
+        tree.put("topic", message.getTopic());
+        return tree;
+    }
+
+    /**
+     * Waits for responses of members and records their job identifiers as job shards.
+     *
+     * @param responses future responses by member
+     * @param job       local delivery job
+     */
+    private void awaitShards(final Map<ClusterConfiguration.Member, CompletableFuture<HttpResponse<String>>> responses,
+                             final DeliveryJob job) {
+        long deadline = System.nanoTime() + configuration.getForwardTimeout().toNanos();
+        responses.forEach((peer, response) -> job.shard(peer.getId(), remoteJobId(peer, response, deadline)));
+    }
+
+    /**
+     * Waits for broadcast response of a member.
+     *
+     * @param member   member
+     * @param response future response
+     * @param deadline wait deadline, {@link System#nanoTime()} based
+     * @return job identifier on the member, null if broadcast hasn't been accepted
+     */
+    private String remoteJobId(final ClusterConfiguration.Member member,
+                               final CompletableFuture<HttpResponse<String>> response, final long deadline) {
+        try {
+            HttpResponse<String> result = response.get(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+            if (result.statusCode() != HttpStatus.ACCEPTED.value()) {
+                log.warn("Node {} has rejected broadcast with status {}", member.getId(), result.statusCode());
+                return null;
+            }
+            JsonNode id = objectMapper.readTree(result.body()).get("id");
+            return id == null ? null : id.asText();
+        } catch (ExecutionException | TimeoutException | JsonProcessingException ex) {
+            log.warn("Broadcast hasn't been forwarded to node {}: {}", member.getId(), ex.toString());
+            response.cancel(true);
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Builds request to another member.
+     *
+     * @param member      target member
+     * @param path        API path
+     * @param contentType body content type
+     * @param body        body
+     * @return request
+     */
+    private HttpRequest request(final ClusterConfiguration.Member member, final String path, final String contentType,
+                                final HttpRequest.BodyPublisher body) {
+        return HttpRequest.newBuilder(URI.create(member.getUrl() + API_PATH + path))
+                .timeout(configuration.getForwardTimeout())
+                .header(HttpHeaders.CONTENT_TYPE, contentType)
+                .header(FORWARDED_HEADER, self.getId())
+                .POST(body)
+                .build();
+    }
+
+    /**
+     * Batch split between members, see {@link #split}.
+     */
+    public final class BatchSplit implements Iterable<BatchItem> {
+
+        /**
+         * Batch items.
+         */
+        private final Iterable<BatchItem> items;
+        /**
+         * Whether all items are handled locally.
+         */
+        private final boolean local;
+        /**
+         * Serialized items by member.
+         */
+        private final Map<ClusterConfiguration.Member, ByteArrayOutputStream> remote = new LinkedHashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param batchItems batch items
+         * @param allLocal   whether all items are handled locally
+         */
+        private BatchSplit(final Iterable<BatchItem> batchItems, final boolean allLocal) {
+            this.items = batchItems;
+            this.local = allLocal;
+        }
+
+        /**
+         * Iterates local items, collecting the rest on the way. Single pass only.
+         *
+         * @return local items
+         */
+        @Override
+        public Iterator<BatchItem> iterator() {
+            if (local) {
+                return items.iterator();
+            }
+            return StreamSupport.stream(items.spliterator(), false)
+                    .filter(this::route)
+                    .iterator();
+        }
+
+        /**
+         * Buffers item for the members it belongs to.
+         *
+         * @param item batch item
+         * @return true if item is handled locally as well
+         */
+        private boolean route(final BatchItem item) {
+            if (item.getPayload() == null || (item.getEndpoint() == null) == (item.getUserId() == null)) {
+                // malformed items are skipped and counted locally
+                return true;
+            }
+            if (item.getEndpoint() == null) {
+                peers.forEach(peer -> append(peer, item));
+                return true;
+            }
+            ClusterConfiguration.Member owner = ring.owner(item.getEndpoint());
+            if (owner == self) {
+                return true;
+            }
+            append(owner, item);
+            return false;
+        }
+
+        /**
+         * Appends item to the buffer of member.
+         *
+         * @param member member
+         * @param item   batch item
+         */
+        private void append(final ClusterConfiguration.Member member, final BatchItem item) {
+            ObjectNode tree = objectMapper.createObjectNode();
+            tree.put("endpoint", item.getEndpoint());
+            tree.put("userId", item.getUserId());
+            tree.set("payload", toTree(item.getPayload()));
+            ByteArrayOutputStream buffer = remote.computeIfAbsent(member, key -> new ByteArrayOutputStream());
+            try {
+                objectMapper.writeValue(buffer, tree);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Batch item can't be serialized", ex);
+            }
+            buffer.write('\n');
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.artemoons.webpush.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Consistent hash ring. Every member is placed on the ring at a number of pseudo-random points, a key belongs
+ * to the member of the first point at or after its hash. Adding or removing a member moves only the keys
+ * of its own points, other assignments stay the same. Immutable.
+ *
+ * @param <T> member type
+ */
+public final class HashRing<T> {
+
+    /**
+     * Bytes of the digest used as a ring position.
+     */
+    private static final int POSITION_BYTES = Long.BYTES;
+    /**
+     * Bits in a byte.
+     */
+    private static final int BYTE_BITS = 8;
+    /**
+     * Byte mask.
+     */
+    private static final int BYTE_MASK = 0xff;
+    /**
+     * Ring positions, sorted.
+     */
+    private final long[] positions;
+    /**
+     * Members of the positions.
+     */
+    private final Object[] owners;
+
+    /**
+     * Constructor.
+     *
+     * @param members      ring members
+     * @param memberKey    stable key of the member, e.g. node identifier
+     * @param virtualNodes number of points per member
+     */
+    public HashRing(final List<T> members, final Function<T, String> memberKey,
+                    final int virtualNodes) {
+        if (members.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("Hash ring needs at least one member and one point per member");
+        }
+        int count = members.size() * virtualNodes;
+        long[][] points = new long[count][];
+        int index = 0;
+        for (int member = 0; member < members.size(); member++) {
+            String key = memberKey.apply(members.get(member));
+            for (int point = 0; point < virtualNodes; point++) {
+                points[index++] = new long[]{hash(key + "#" + point), member};
+            }
+        }
+        // ties are broken by member order, so all nodes build identical rings
+        Arrays.sort(points, (left, right) -> left[0] == right[0]
+                ? Long.compare(left[1], right[1]) : Long.compare(left[0], right[0]));
+        this.positions = new long[count];
+        this.owners = new Object[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = points[i][0];
+            owners[i] = members.get((int) points[i][1]);
+        }
+    }
+
+    /**
+     * Finds member owning the key.
+     *
+     * @param key key, e.g. endpoint URL
+     * @return owner
+     */
+    @SuppressWarnings("unchecked")
+    public T owner(final String key) {
+        int index = Arrays.binarySearch(positions, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // several equal positions are possible, the first one wins
+            while (index > 0 && positions[index - 1] == positions[index]) {
+                index--;
+            }
+        }
+        return (T) owners[index == positions.length ? 0 : index];
+    }
+
+    /**
+     * Ring position of the key: the first bytes of its SHA-256 digest, well spread regardless of key similarity.
+     *
+     * @param key key
+     * @return position
+     */
+    static long hash(final String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 isn't available", ex);
+        }
+        long position = 0;
+        for (int i = 0; i < POSITION_BYTES; i++) {
+            position = (position << BYTE_BITS) | (digest[i] & BYTE_MASK);
+        }
+        return position;
+    }
+
+}
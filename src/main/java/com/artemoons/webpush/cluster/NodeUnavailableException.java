@@ -0,0 +1,22 @@
+package com.artemoons.webpush.cluster;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Request can't be handled because the cluster member owning the subscription couldn't be reached.
+ */
+@ResponseStatus(HttpStatus.BAD_GATEWAY)
+public class NodeUnavailableException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     * @param cause   cause
+     */
+    public NodeUnavailableException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Cluster mode package: consistent-hash partitioning of subscribers between statically configured nodes.
+ *
+ * @author <a href="mailto:github@eeel.ru">Artem Utkin</a>
+ */
+package com.artemoons.webpush.cluster;
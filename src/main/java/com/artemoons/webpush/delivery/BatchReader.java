@@ -0,0 +1,187 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.dto.BatchItem;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Incremental reader of message batches. Accepts either JSON array of items or NDJSON (items separated by
+ * whitespace), only the item being read is kept in memory.
+ */
+@Component
+public class BatchReader {
+
+    /**
+     * JSON object mapper.
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Constructor.
+     *
+     * @param jsonMapper object mapper
+     */
+    @Autowired
+    public BatchReader(final ObjectMapper jsonMapper) {
+        this.objectMapper = jsonMapper;
+    }
+
+    /**
+     * Opens batch, nothing is read until iteration.
+     *
+     * @param input request body
+     * @return single-use batch
+     */
+    public MessageBatch read(final InputStream input) {
+        return new MessageBatch(input);
+    }
+
+    /**
+     * Single-use stream of batch items. Malformed input ends the iteration, the error is available afterwards.
+     */
+    public final class MessageBatch implements Iterable<BatchItem> {
+
+        /**
+         * Request body.
+         */
+        private final InputStream input;
+        /**
+         * Parser, created on first read.
+         */
+        private JsonParser parser;
+        /**
+         * Whether items are wrapped into array.
+         */
+        private boolean array;
+        /**
+         * Whether the end of input is reached.
+         */
+        private boolean finished;
+        /**
+         * Read-ahead item.
+         */
+        private BatchItem next;
+        /**
+         * Number of items read.
+         */
+        private long count;
+        /**
+         * Reason the input was rejected.
+         */
+        private String error;
+
+        /**
+         * Constructor.
+         *
+         * @param body request body
+         */
+        private MessageBatch(final InputStream body) {
+            this.input = body;
+        }
+
+        /**
+         * Reason the input was rejected, null if the whole input was read.
+         *
+         * @return error message
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Number of items read so far.
+         *
+         * @return item count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public Iterator<BatchItem> iterator() {
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    if (next == null && !finished) {
+                        next = readNext();
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public BatchItem next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    BatchItem item = next;
+                    next = null;
+                    return item;
+                }
+            };
+        }
+
+        /**
+         * Reads next item.
+         *
+         * @return item or null at the end of input
+         */
+        private BatchItem readNext() {
+            try {
+                JsonToken token;
+                if (parser == null) {
+                    parser = objectMapper.createParser(input);
+                    token = parser.nextToken();
+                    array = token == JsonToken.START_ARRAY;
+                    if (array) {
+                        token = parser.nextToken();
+                    }
+                } else {
+                    token = parser.nextToken();
+                }
+                if (token == null && array) {
+                    return fail("unterminated array");
+                }
+                if (token == null || array && token == JsonToken.END_ARRAY) {
+                    if (array && parser.nextToken() != null) {
+                        return fail("unexpected content after array");
+                    }
+                    finished = true;
+                    return null;
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    return fail("item " + count + " is not an object");
+                }
+                BatchItem item = parser.readValueAs(BatchItem.class);
+                count++;
+                return item;
+            } catch (IOException ex) {
+                String reason = ex instanceof JsonProcessingException json
+                        ? json.getOriginalMessage()
+                        : ex.getMessage();
+                return fail("item " + count + ": " + reason);
+            }
+        }
+
+        /**
+         * Stops iteration.
+         *
+         * @param reason error message
+         * @return null
+         */
+        private BatchItem fail(final String reason) {
+            error = "Malformed batch, " + reason;
+            finished = true;
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,406 @@
+package com.artemoons.webpush.delivery;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * Delivery pipeline configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "delivery")
+public class DeliveryConfiguration {
+
+    /**
+     * Default global in-flight deliveries limit.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    /**
+     * Default number of concurrently running broadcasts.
+     */
+    public static final int DEFAULT_DISPATCHER_THREADS = 2;
+
+    /**
+     * Number of threads encrypting push messages, sending itself doesn't block them.
+     */
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of deliveries being processed at the same time, across all broadcasts.
+     */
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * Number of threads feeding broadcasts into the sender pool.
+     */
+    private int dispatcherThreads = DEFAULT_DISPATCHER_THREADS;
+
+    /**
+     * How long completed jobs are available via jobs API.
+     */
+    private Duration jobRetention = Duration.ofHours(1);
+
+    /**
+     * Push transport settings.
+     */
+    private Transport transport = new Transport();
+
+    /**
+     * Per-origin rate limit settings.
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * Retry settings.
+     */
+    private Retry retry = new Retry();
+
+    /**
+     * Per-origin circuit breaker settings.
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Per-origin adaptive concurrency settings.
+     */
+    private Concurrency concurrency = new Concurrency();
+
+    /**
+     * Delivery logging settings.
+     */
+    private Logging logging = new Logging();
+
+    /**
+     * Durable delivery queue settings.
+     */
+    private Queue queue = new Queue();
+
+    /**
+     * Idempotency key settings.
+     */
+    private Idempotency idempotency = new Idempotency();
+
+    /**
+     * Push transport configuration.
+     */
+    @Setter
+    @Getter
+    public static class Transport {
+
+        /**
+         * Default connect timeout, seconds.
+         */
+        public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+        /**
+         * Default request timeout, seconds.
+         */
+        public static final int DEFAULT_REQUEST_TIMEOUT = 30;
+
+        /**
+         * Preferred HTTP version, HTTP/1.1 is used for push services not supporting HTTP/2.
+         */
+        private HttpClient.Version version = HttpClient.Version.HTTP_2;
+
+        /**
+         * Connection establishment timeout.
+         */
+        private Duration connectTimeout = Duration.ofSeconds(DEFAULT_CONNECT_TIMEOUT);
+
+        /**
+         * Whole request timeout.
+         */
+        private Duration requestTimeout = Duration.ofSeconds(DEFAULT_REQUEST_TIMEOUT);
+
+    }
+
+    /**
+     * Token bucket limiting requests to every push service origin.
+     */
+    @Setter
+    @Getter
+    public static class RateLimit {
+
+        /**
+         * Default sustained rate, requests per second.
+         */
+        public static final double DEFAULT_PERMITS_PER_SECOND = 500;
+        /**
+         * Default bucket capacity.
+         */
+        public static final int DEFAULT_BURST = 100;
+
+        /**
+         * Sustained request rate to one origin, requests per second.
+         */
+        private double permitsPerSecond = DEFAULT_PERMITS_PER_SECOND;
+
+        /**
+         * Number of requests which can be sent to an idle origin at once.
+         */
+        private int burst = DEFAULT_BURST;
+
+    }
+
+    /**
+     * Retries of throttled and failed deliveries.
+     */
+    @Setter
+    @Getter
+    public static class Retry {
+
+        /**
+         * Default maximum number of attempts.
+         */
+        public static final int DEFAULT_MAX_ATTEMPTS = 5;
+        /**
+         * Default first backoff, milliseconds.
+         */
+        public static final int DEFAULT_INITIAL_BACKOFF = 500;
+        /**
+         * Default backoff limit, seconds.
+         */
+        public static final int DEFAULT_MAX_BACKOFF = 60;
+        /**
+         * Default retry queue capacity.
+         */
+        public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+        /**
+         * Maximum number of attempts including the first one.
+         */
+        private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+        /**
+         * Backoff before the first retry, doubled with every attempt.
+         */
+        private Duration initialBackoff = Duration.ofMillis(DEFAULT_INITIAL_BACKOFF);
+
+        /**
+         * Backoff limit, deliveries asked to retry later than that are given up.
+         */
+        private Duration maxBackoff = Duration.ofSeconds(DEFAULT_MAX_BACKOFF);
+
+        /**
+         * Maximum number of deliveries waiting for retry. Deliveries waiting for retry give their fan-out slot back,
+         * and so do as many deliveries waiting for a rate limit token; further ones keep it and hold back the fan-out.
+         */
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    }
+
+    /**
+     * Circuit breaker isolating failing push service origins.
+     */
+    @Setter
+    @Getter
+    public static class CircuitBreaker {
+
+        /**
+         * Default number of last requests failure rate is calculated for.
+         */
+        public static final int DEFAULT_WINDOW_SIZE = 50;
+        /**
+         * Default minimum number of requests before the breaker may open.
+         */
+        public static final int DEFAULT_MINIMUM_CALLS = 20;
+        /**
+         * Default failure rate opening the breaker.
+         */
+        public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+        /**
+         * Default open state duration, seconds.
+         */
+        public static final int DEFAULT_OPEN_DURATION = 30;
+
+        /**
+         * Number of last requests failure rate is calculated for.
+         */
+        private int windowSize = DEFAULT_WINDOW_SIZE;
+
+        /**
+         * Minimum number of requests in the window before the breaker may open.
+         */
+        private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+
+        /**
+         * Share of failed requests (5xx, network errors) opening the breaker.
+         */
+        private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+
+        /**
+         * How long requests to the origin are rejected before a probe request is let through.
+         */
+        private Duration openDuration = Duration.ofSeconds(DEFAULT_OPEN_DURATION);
+
+    }
+
+    /**
+     * AIMD in-flight limit of every push service origin: the limit grows by one per round trip while
+     * the origin is healthy and is cut when it fails, throttles or responds slower than threshold.
+     */
+    @Setter
+    @Getter
+    public static class Concurrency {
+
+        /**
+         * Default starting limit.
+         */
+        public static final int DEFAULT_INITIAL_LIMIT = 20;
+        /**
+         * Default upper limit.
+         */
+        public static final int DEFAULT_MAX_LIMIT = 200;
+        /**
+         * Default multiplicative decrease factor.
+         */
+        public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+        /**
+         * Default latency threshold, seconds.
+         */
+        public static final int DEFAULT_LATENCY_THRESHOLD = 2;
+        /**
+         * Default number of requests waiting for a free slot of the origin without holding a fan-out slot.
+         */
+        public static final int DEFAULT_MAX_QUEUED = 1000;
+
+        /**
+         * Starting in-flight limit.
+         */
+        private int initialLimit = DEFAULT_INITIAL_LIMIT;
+
+        /**
+         * Lower in-flight limit.
+         */
+        private int minLimit = 1;
+
+        /**
+         * Upper in-flight limit.
+         */
+        private int maxLimit = DEFAULT_MAX_LIMIT;
+
+        /**
+         * Factor the limit is multiplied by on congestion.
+         */
+        private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+        /**
+         * Response time treated as congestion, slower responses also count as failures for the circuit breaker.
+         */
+        private Duration latencyThreshold = Duration.ofSeconds(DEFAULT_LATENCY_THRESHOLD);
+
+        /**
+         * Maximum number of requests waiting for a free slot of the origin which give their fan-out slot back
+         * meanwhile, the rest keep it and so hold back the fan-out.
+         */
+        private int maxQueued = DEFAULT_MAX_QUEUED;
+
+    }
+
+    /**
+     * Delivery logging: one summary per job and rate limited details of failed deliveries.
+     */
+    @Setter
+    @Getter
+    public static class Logging {
+
+        /**
+         * Default sustained rate of failure details, lines per second.
+         */
+        public static final double DEFAULT_FAILURE_DETAILS_PER_SECOND = 10;
+        /**
+         * Default number of failure details logged at once.
+         */
+        public static final int DEFAULT_FAILURE_DETAILS_BURST = 20;
+
+        /**
+         * Sustained rate of failure details across all jobs, the rest is only counted.
+         */
+        private double failureDetailsPerSecond = DEFAULT_FAILURE_DETAILS_PER_SECOND;
+
+        /**
+         * Number of failure details which can be logged at once.
+         */
+        private int failureDetailsBurst = DEFAULT_FAILURE_DETAILS_BURST;
+
+    }
+
+    /**
+     * Disk-backed queue between broadcasts and sender workers.
+     */
+    @Setter
+    @Getter
+    public static class Queue {
+
+        /**
+         * Default segment size, megabytes.
+         */
+        public static final int DEFAULT_SEGMENT_SIZE = 64;
+        /**
+         * Default limit of unconsumed deliveries, megabytes.
+         */
+        public static final int DEFAULT_MAX_PENDING = 512;
+
+        /**
+         * Whether broadcasts are queued on disk before delivery.
+         */
+        private boolean enabled;
+
+        /**
+         * Queue directory.
+         */
+        private String directory = "data/queue";
+
+        /**
+         * Size of a single memory-mapped segment.
+         */
+        private DataSize segmentSize = DataSize.ofMegabytes(DEFAULT_SEGMENT_SIZE);
+
+        /**
+         * Size of queued but not yet delivered records above which new broadcasts are rejected.
+         */
+        private DataSize maxPending = DataSize.ofMegabytes(DEFAULT_MAX_PENDING);
+
+        /**
+         * How often consumer progress is saved, deliveries after the last checkpoint are repeated after restart.
+         */
+        private Duration checkpointInterval = Duration.ofSeconds(1);
+
+        /**
+         * Whether every queued broadcast and checkpoint is forced to disk.
+         */
+        private boolean fsync;
+
+    }
+
+    /**
+     * Cache of recent idempotency keys, a retried send with a known key returns the existing job.
+     */
+    @Setter
+    @Getter
+    public static class Idempotency {
+
+        /**
+         * Default number of remembered keys.
+         */
+        public static final int DEFAULT_MAX_KEYS = 10_000;
+
+        /**
+         * How long a key is remembered.
+         */
+        private Duration ttl = Duration.ofHours(1);
+
+        /**
+         * Maximum number of remembered keys, the oldest ones are forgotten first.
+         */
+        private int maxKeys = DEFAULT_MAX_KEYS;
+
+    }
+
+}
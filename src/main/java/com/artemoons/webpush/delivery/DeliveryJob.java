@@ -0,0 +1,295 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.dto.JobStatus;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background delivery job with live counters. Outcomes are also aggregated by response status and origin,
+ * the aggregate is logged once when the job completes.
+ */
+public class DeliveryJob {
+
+    /**
+     * Job state.
+     */
+    public enum State {
+        /**
+         * Deliveries are in progress.
+         */
+        RUNNING,
+        /**
+         * All deliveries are finished.
+         */
+        COMPLETED
+    }
+
+    /**
+     * Job identifier.
+     */
+    @Getter
+    private final String id;
+    /**
+     * Creation time.
+     */
+    @Getter
+    private final Instant createdAt = Instant.now();
+    /**
+     * Completion time, null while running.
+     */
+    @Getter
+    private volatile Instant finishedAt;
+    /**
+     * Deliveries waiting for the result.
+     */
+    private final AtomicLong queued = new AtomicLong();
+    /**
+     * Successful deliveries.
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * Removed subscriptions.
+     */
+    private final AtomicLong gone = new AtomicLong();
+    /**
+     * Failed deliveries.
+     */
+    private final AtomicLong failed = new AtomicLong();
+    /**
+     * Deliveries rejected by rate limiting.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+    /**
+     * Deliveries superseded by a newer message with the same topic.
+     */
+    private final AtomicLong collapsed = new AtomicLong();
+    /**
+     * Batch items without recipients or with invalid payload, deliveries to removed subscriptions or to
+     * subscribers which have already got the message.
+     */
+    private final AtomicLong skipped = new AtomicLong();
+    /**
+     * Deliveries by response status, -1 if there was no response.
+     */
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    /**
+     * Deliveries by origin, indexed by outcome ordinal.
+     */
+    private final Map<String, AtomicLongArray> origins = new ConcurrentHashMap<>();
+    /**
+     * Failure details not logged due to rate limit.
+     */
+    private final AtomicLong suppressed = new AtomicLong();
+    /**
+     * Job identifiers on other cluster members, null if member hasn't accepted the job.
+     */
+    private final Map<String, Optional<String>> shards = new ConcurrentSkipListMap<>();
+    /**
+     * Endpoints the broadcast message has been sent to or is being sent to, cleared on completion. The set is kept
+     * per job, not per message: it holds an entry for every recipient until the whole broadcast is finished.
+     */
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+    /**
+     * Delivery log.
+     */
+    private final DeliveryLog deliveryLog;
+
+    /**
+     * Constructor.
+     *
+     * @param log delivery log
+     */
+    DeliveryJob(final DeliveryLog log) {
+        this(UUID.randomUUID().toString(), log);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param jobId job identifier
+     * @param log   delivery log
+     */
+    DeliveryJob(final String jobId, final DeliveryLog log) {
+        this.id = jobId;
+        this.deliveryLog = log;
+    }
+
+    /**
+     * Registers new delivery.
+     */
+    public void enqueued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Registers delivery result. Failure details are logged subject to rate limit.
+     *
+     * @param endpoint endpoint URL
+     * @param origin   push service origin
+     * @param status   response status, -1 if there was no response
+     * @param outcome  delivery outcome
+     * @param error    delivery error, null if there was a response
+     */
+    public void record(final String endpoint, final String origin, final int status, final DeliveryOutcome outcome,
+                       final Throwable error) {
+        statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        origins.computeIfAbsent(origin, key -> new AtomicLongArray(DeliveryOutcome.values().length))
+                .incrementAndGet(outcome.ordinal());
+        boolean failure = outcome != DeliveryOutcome.SENT && outcome != DeliveryOutcome.COLLAPSED;
+        if (failure && !deliveryLog.failure(this, endpoint, status, outcome, error)) {
+            suppressed.incrementAndGet();
+        }
+        switch (outcome) {
+            case SENT -> sent.incrementAndGet();
+            case GONE -> gone.incrementAndGet();
+            case THROTTLED -> throttled.incrementAndGet();
+            case COLLAPSED -> collapsed.incrementAndGet();
+            default -> failed.incrementAndGet();
+        }
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Registers batch item which hasn't produced any delivery.
+     */
+    public void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Claims broadcast delivery to the endpoint, so the same message isn't delivered to a subscriber twice,
+     * e.g. when a resumed or repeated delivery loop meets the subscriber again. Claims are held until the job
+     * completes, so a running broadcast costs a hash set entry per recipient, roughly 50 bytes plus the endpoint
+     * string. Endpoints from the subscription store are shared with it. Endpoints read back from the delivery
+     * queue are copies, so there an entry costs about 200 bytes, e.g. 200 MB for a million recipients.
+     *
+     * @param endpoint endpoint URL
+     * @return true if the message hasn't been delivered to the endpoint yet
+     */
+    public boolean claim(final String endpoint) {
+        return claimed.add(endpoint);
+    }
+
+    /**
+     * Registers delivery dropped before sending: its subscription has been removed or the subscriber has already
+     * got the message.
+     */
+    public void cancelled() {
+        skipped.incrementAndGet();
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Registers part of the job delivered by another cluster member.
+     *
+     * @param node  member identifier
+     * @param jobId job identifier on the member, null if the member hasn't accepted the job
+     */
+    public void shard(final String node, final String jobId) {
+        shards.put(node, Optional.ofNullable(jobId));
+    }
+
+    /**
+     * Marks job as completed.
+     */
+    public void complete() {
+        claimed.clear();
+        finishedAt = Instant.now();
+        deliveryLog.summary(this);
+    }
+
+    /**
+     * Current job state.
+     *
+     * @return state
+     */
+    public State getState() {
+        return finishedAt == null ? State.RUNNING : State.COMPLETED;
+    }
+
+    /**
+     * Snapshot of deliveries by response status.
+     *
+     * @return counts, ordered by status
+     */
+    public Map<Integer, Long> statusCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        statuses.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Snapshot of deliveries by origin and outcome.
+     *
+     * @return counts, ordered by origin, zero counts are omitted
+     */
+    public Map<String, Map<DeliveryOutcome, Long>> originCounts() {
+        Map<String, Map<DeliveryOutcome, Long>> counts = new TreeMap<>();
+        origins.forEach((origin, outcomes) -> {
+            Map<DeliveryOutcome, Long> byOutcome = new EnumMap<>(DeliveryOutcome.class);
+            for (DeliveryOutcome outcome : DeliveryOutcome.values()) {
+                long count = outcomes.get(outcome.ordinal());
+                if (count > 0) {
+                    byOutcome.put(outcome, count);
+                }
+            }
+            counts.put(origin, byOutcome);
+        });
+        return counts;
+    }
+
+    /**
+     * Number of failure details not logged due to rate limit.
+     *
+     * @return count
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Snapshot of job counters.
+     *
+     * @return job status
+     */
+    public JobStatus toStatus() {
+        return JobStatus.builder()
+                .id(id)
+                .state(getState().name())
+                .createdAt(createdAt)
+                .finishedAt(finishedAt)
+                .queued(queued.get())
+                .sent(sent.get())
+                .gone(gone.get())
+                .failed(failed.get())
+                .throttled(throttled.get())
+                .collapsed(collapsed.get())
+                .skipped(skipped.get())
+                .shards(shards.isEmpty() ? null : toShardStatus())
+                .build();
+    }
+
+    /**
+     * Snapshot of job shards.
+     *
+     * @return job identifiers by member
+     */
+    private Map<String, String> toShardStatus() {
+        Map<String, String> status = new TreeMap<>();
+        shards.forEach((node, jobId) -> status.put(node, jobId.orElse(null)));
+        return status;
+    }
+
+}
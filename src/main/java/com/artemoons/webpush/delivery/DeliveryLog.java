@@ -0,0 +1,104 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.dto.JobStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Delivery logging. Instead of a line per recipient every job logs one summary with counts by status and origin;
+ * details of failed deliveries are logged at a limited rate shared by all jobs, the rest is only counted.
+ * Request bodies and headers are never logged.
+ */
+@Slf4j
+@Component
+public class DeliveryLog {
+
+    /**
+     * Failure details rate limit.
+     */
+    private final TokenBucket failureDetails;
+
+    /**
+     * Constructor.
+     *
+     * @param config delivery configuration
+     */
+    @Autowired
+    public DeliveryLog(final DeliveryConfiguration config) {
+        DeliveryConfiguration.Logging logging = config.getLogging();
+        this.failureDetails = new TokenBucket(logging.getFailureDetailsPerSecond(), logging.getFailureDetailsBurst(),
+                System.nanoTime());
+    }
+
+    /**
+     * Logs details of unsuccessful delivery. Removed subscriptions are expected and logged at debug level only.
+     *
+     * @param job      delivery job
+     * @param endpoint endpoint URL
+     * @param status   response status, -1 if there was no response
+     * @param outcome  delivery outcome
+     * @param error    delivery error, null if there was a response
+     * @return false if details were dropped due to rate limit
+     */
+    boolean failure(final DeliveryJob job, final String endpoint, final int status, final DeliveryOutcome outcome,
+                    final Throwable error) {
+        if (outcome == DeliveryOutcome.GONE) {
+            log.debug("Job {}: subscription not found or gone: {}", job.getId(), endpoint);
+            return true;
+        }
+        if (!failureDetails.tryAcquire(System.nanoTime())) {
+            return false;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause == null) {
+            log.warn("Job {}: push service responded {} ({}): {}", job.getId(), status, describe(status), endpoint);
+        } else if (cause instanceof OriginUnavailableException) {
+            log.warn("Job {}: push message not sent, {}: {}", job.getId(), cause.getMessage(), endpoint);
+        } else {
+            log.warn("Job {}: error occurred when sending push message: {}", job.getId(), endpoint, cause);
+        }
+        return true;
+    }
+
+    /**
+     * Logs job summary.
+     *
+     * @param job completed delivery job
+     */
+    void summary(final DeliveryJob job) {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        JobStatus status = job.toStatus();
+        log.info("Job {} completed in {} ms: sent {}, gone {}, throttled {}, collapsed {}, failed {},"
+                        + " skipped {}; by status {}; by origin {}; {} failure details suppressed",
+                status.getId(),
+                Duration.between(status.getCreatedAt(), status.getFinishedAt()).toMillis(),
+                status.getSent(),
+                status.getGone(),
+                status.getThrottled(),
+                status.getCollapsed(),
+                status.getFailed(),
+                status.getSkipped(),
+                job.statusCounts(),
+                job.originCounts(),
+                job.getSuppressed());
+    }
+
+    /**
+     * Human-readable response status.
+     *
+     * @param status response status
+     * @return reason phrase
+     */
+    private static String describe(final int status) {
+        HttpStatus httpStatus = HttpStatus.resolve(status);
+        return httpStatus == null ? "unknown status" : httpStatus.getReasonPhrase();
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.EphemeralKeyPool;
+import com.artemoons.webpush.subscription.SubscriptionStore;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gauges of subscription store, ephemeral key pool and delivery pipeline state, sampled on scrape.
+ */
+@Component
+public final class DeliveryMeterBinder implements MeterBinder {
+
+    /**
+     * Subscribers storage.
+     */
+    private final SubscriptionStore subscriptionStore;
+    /**
+     * Fan-out engine.
+     */
+    private final FanOutEngine fanOutEngine;
+    /**
+     * Delivery scheduler.
+     */
+    private final DeliveryScheduler deliveryScheduler;
+    /**
+     * Durable delivery queue.
+     */
+    private final DeliveryQueue deliveryQueue;
+    /**
+     * Pre-generated ephemeral keys.
+     */
+    private final EphemeralKeyPool ephemeralKeyPool;
+
+    /**
+     * Constructor.
+     *
+     * @param store     subscribers storage
+     * @param engine    fan-out engine
+     * @param scheduler delivery scheduler
+     * @param queue     durable delivery queue
+     * @param keyPool   pre-generated ephemeral keys
+     */
+    @Autowired
+    public DeliveryMeterBinder(final SubscriptionStore store,
+                               final FanOutEngine engine,
+                               final DeliveryScheduler scheduler,
+                               final DeliveryQueue queue,
+                               final EphemeralKeyPool keyPool) {
+        this.subscriptionStore = store;
+        this.fanOutEngine = engine;
+        this.deliveryScheduler = scheduler;
+        this.deliveryQueue = queue;
+        this.ephemeralKeyPool = keyPool;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder(DeliveryMetrics.PREFIX + "subscribers", subscriptionStore, SubscriptionStore::size)
+                .description("Stored subscriptions")
+                .register(registry);
+        Gauge.builder(DeliveryMetrics.PREFIX + "deliveries.in.flight", fanOutEngine, FanOutEngine::getInFlight)
+                .description("Deliveries being encrypted or sent")
+                .register(registry);
+        Gauge.builder(DeliveryMetrics.PREFIX + "deliveries.retry.queued", deliveryScheduler,
+                        DeliveryScheduler::getQueued)
+                .description("Deliveries waiting for retry")
+                .register(registry);
+        Gauge.builder(DeliveryMetrics.PREFIX + "queue.pending", deliveryQueue, DeliveryQueue::getPendingBytes)
+                .description("Queued deliveries not yet finished")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder(DeliveryMetrics.PREFIX + "deliveries.retries", deliveryScheduler,
+                        DeliveryScheduler::getRetries)
+                .description("Retried attempts")
+                .register(registry);
+        FunctionCounter.builder(DeliveryMetrics.PREFIX + "deliveries.collapsed", deliveryScheduler,
+                        DeliveryScheduler::getCollapsed)
+                .description("Deliveries superseded by a newer message with the same topic")
+                .register(registry);
+        FunctionCounter.builder(DeliveryMetrics.PREFIX + "deliveries.exhausted", deliveryScheduler,
+                        DeliveryScheduler::getExhausted)
+                .description("Deliveries given up after the last attempt")
+                .register(registry);
+        bindKeyPool(registry);
+    }
+
+    /**
+     * Registers ephemeral key pool meters.
+     *
+     * @param registry meter registry
+     */
+    private void bindKeyPool(final MeterRegistry registry) {
+        FunctionCounter.builder(DeliveryMetrics.PREFIX + "ephemeral.keys", ephemeralKeyPool,
+                        EphemeralKeyPool::getHits)
+                .description("Ephemeral key pairs requested from the pool")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder(DeliveryMetrics.PREFIX + "ephemeral.keys", ephemeralKeyPool,
+                        EphemeralKeyPool::getMisses)
+                .description("Ephemeral key pairs requested from the pool")
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder(DeliveryMetrics.PREFIX + "ephemeral.keys.hit.rate", ephemeralKeyPool,
+                        EphemeralKeyPool::getHitRate)
+                .description("Share of ephemeral key pairs served from the pool")
+                .register(registry);
+        Gauge.builder(DeliveryMetrics.PREFIX + "ephemeral.keys.pooled", ephemeralKeyPool, EphemeralKeyPool::size)
+                .description("Pre-generated ephemeral key pairs ready to use")
+                .register(registry);
+        TimeGauge.builder(DeliveryMetrics.PREFIX + "ephemeral.keys.refill.lag", ephemeralKeyPool,
+                        TimeUnit.NANOSECONDS, pool -> pool.getLastRefillLag().toNanos())
+                .description("Time it took to fill the pool up last time")
+                .register(registry);
+        TimeGauge.builder(DeliveryMetrics.PREFIX + "ephemeral.keys.refill.lag.max", ephemeralKeyPool,
+                        TimeUnit.NANOSECONDS, pool -> pool.getMaxRefillLag().toNanos())
+                .description("Longest time it took to fill the pool up")
+                .register(registry);
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.artemoons.webpush.delivery;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers of delivery pipeline stages. Meters are registered once and cached, recording doesn't go through
+ * registry lookup.
+ */
+@Getter
+@Component
+public class DeliveryMetrics {
+
+    /**
+     * Metric name prefix.
+     */
+    public static final String PREFIX = "webpush.";
+    /**
+     * Status tag value for requests failed before any response.
+     */
+    public static final String NO_RESPONSE = "none";
+    /**
+     * Meter registry.
+     */
+    private final MeterRegistry registry;
+    /**
+     * Message serialization time.
+     */
+    private final Timer serialization;
+    /**
+     * Payload encryption time: ECDH, HKDF and AES-GCM.
+     */
+    private final Timer encryption;
+    /**
+     * ECDH key agreement time, first stage of the encryption.
+     */
+    private final Timer keyAgreement;
+    /**
+     * HKDF key and nonce derivation time, second stage of the encryption.
+     */
+    private final Timer keyDerivation;
+    /**
+     * AES-GCM encryption time of the padded record, last stage of the encryption.
+     */
+    private final Timer cipher;
+    /**
+     * VAPID token signing time.
+     */
+    private final Timer signing;
+    /**
+     * Push service round trip timers by origin and status.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<String, Map<Integer, Timer>> requests = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry meter registry
+     */
+    @Autowired
+    public DeliveryMetrics(final MeterRegistry meterRegistry) {
+        this.registry = meterRegistry;
+        this.serialization = Timer.builder(PREFIX + "payload.serialization")
+                .description("Message serialization time")
+                .register(meterRegistry);
+        this.encryption = Timer.builder(PREFIX + "payload.encryption")
+                .description("Payload encryption time per subscriber")
+                .register(meterRegistry);
+        this.keyAgreement = encryptionStage("ecdh", meterRegistry);
+        this.keyDerivation = encryptionStage("hkdf", meterRegistry);
+        this.cipher = encryptionStage("aes", meterRegistry);
+        this.signing = Timer.builder(PREFIX + "vapid.signing")
+                .description("VAPID token signing time")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registers timer of a single encryption stage.
+     *
+     * @param stage         stage tag value
+     * @param meterRegistry meter registry
+     * @return stage timer
+     */
+    private static Timer encryptionStage(final String stage, final MeterRegistry meterRegistry) {
+        return Timer.builder(PREFIX + "payload.encryption.stage")
+                .description("Payload encryption stage time per subscriber")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records push service round trip of a single attempt.
+     *
+     * @param origin push service origin
+     * @param status response status code, -1 if there is no response
+     * @param nanos  round trip time, nanoseconds
+     */
+    public void recordRequest(final String origin, final int status, final long nanos) {
+        requests.computeIfAbsent(origin, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(status, key -> Timer.builder(PREFIX + "push.requests")
+                        .description("Push service round trip time")
+                        .tag("origin", origin)
+                        .tag("status", status < 0 ? NO_RESPONSE : Integer.toString(status))
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.artemoons.webpush.delivery;
+
+/**
+ * Result of a single push message delivery.
+ */
+public enum DeliveryOutcome {
+
+    /**
+     * Accepted by the push service.
+     */
+    SENT,
+    /**
+     * Subscription not found or gone, it should be removed.
+     */
+    GONE,
+    /**
+     * Rejected by the push service because of rate limiting.
+     */
+    THROTTLED,
+    /**
+     * Superseded by a newer message with the same topic before it was sent.
+     */
+    COLLAPSED,
+    /**
+     * Any other error.
+     */
+    FAILED
+
+}
@@ -0,0 +1,600 @@
+package com.artemoons.webpush.delivery;
+
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Durable queue between broadcasts and sender workers. Broadcast is written to a {@link QueueLog} as a message
+ * record, a delivery record per recipient and an end record before the API responds; a single consumer thread
+ * reads the log and feeds deliveries into the {@link FanOutEngine}, so the rate of sending is bounded by the global
+ * in-flight limit regardless of how fast broadcasts arrive. Broadcasts are rejected with
+ * {@link QueueFullException} once too much is pending.
+ * <p>
+ * Consumer offset is checkpointed periodically: the checkpoint is the lowest offset of a delivery still in flight.
+ * After restart unfinished broadcasts are resumed from the checkpoint under their original job identifiers.
+ * Every finished delivery is marked with a done record, so only deliveries which were in flight at the crash
+ * are sent again. Segments are deleted once they are below the checkpoint and hold no message of an unfinished
+ * job.
+ */
+@Slf4j
+@Component
+public class DeliveryQueue {
+
+    /**
+     * Consumer wait for new records before rechecking shutdown, milliseconds.
+     */
+    private static final long POLL_TIMEOUT = 1000;
+    /**
+     * Time to wait for consumer on shutdown, milliseconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    /**
+     * Queue settings.
+     */
+    private final DeliveryConfiguration.Queue configuration;
+    /**
+     * Fan-out engine sending queued deliveries, also used directly when the queue is disabled.
+     */
+    @Getter
+    private final FanOutEngine fanOutEngine;
+    /**
+     * Delivery jobs registry.
+     */
+    private final JobRegistry jobRegistry;
+    /**
+     * Unfinished jobs by identifier.
+     */
+    private final Map<String, QueuedJob> jobs = new ConcurrentHashMap<>();
+    /**
+     * Offsets of deliveries read but not finished.
+     */
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    /**
+     * Checkpoint writer.
+     */
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "delivery-queue-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Queue log, null until started.
+     */
+    private volatile QueueLog queueLog;
+    /**
+     * Offset of the next record to read.
+     */
+    private volatile long readOffset;
+    /**
+     * Last saved checkpoint.
+     */
+    private long checkpoint;
+    /**
+     * Whether consumer is running.
+     */
+    private volatile boolean running;
+    /**
+     * Consumer thread.
+     */
+    private Thread consumer;
+
+    /**
+     * Constructor.
+     *
+     * @param config   delivery configuration
+     * @param engine   fan-out engine
+     * @param registry delivery jobs registry
+     */
+    @Autowired
+    public DeliveryQueue(final DeliveryConfiguration config, final FanOutEngine engine,
+                         final JobRegistry registry) {
+        this.configuration = config.getQueue();
+        this.fanOutEngine = engine;
+        this.jobRegistry = registry;
+    }
+
+    /**
+     * Whether broadcasts go through the queue.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return configuration.isEnabled();
+    }
+
+    /**
+     * Opens the log, resumes unfinished jobs and starts consumer.
+     *
+     * @param sender   sends single delivery, returned stage is completed when the outcome is recorded
+     * @param finisher called once all deliveries of a job are finished, with endpoints reported gone
+     * @throws IOException if the log can't be opened
+     */
+    public synchronized void start(final Sender sender, final BiConsumer<DeliveryJob, Set<String>> finisher)
+            throws IOException {
+        if (queueLog != null) {
+            throw new IllegalStateException("Delivery queue is already started");
+        }
+        QueueLog opened = new QueueLog(Paths.get(configuration.getDirectory()),
+                configuration.getSegmentSize().toBytes(), configuration.isFsync());
+        checkpoint = opened.readCheckpoint();
+        readOffset = checkpoint;
+        resume(opened);
+        queueLog = opened;
+
+        running = true;
+        consumer = new Thread(() -> consume(sender, finisher), "delivery-queue");
+        consumer.setDaemon(true);
+        consumer.start();
+        long interval = configuration.getCheckpointInterval().toMillis();
+        checkpointer.scheduleWithFixedDelay(this::saveCheckpoint, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues broadcast. Returns once all deliveries are written, they are sent in background. Job of a rejected
+     * broadcast is dropped from the registry. If writing fails midway, deliveries written so far are still sent and
+     * the job is finished by the consumer; if even its end can't be written, the rest of the job is dropped and
+     * the job is completed right away, so it isn't listed as running forever.
+     *
+     * @param job       delivery job
+     * @param message   prepared message
+     * @param endpoints recipients
+     * @throws QueueFullException if too many deliveries are pending
+     */
+    public void enqueue(final DeliveryJob job, final PreparedMessage message, final Iterable<String> endpoints) {
+        QueueLog current = queueLog;
+        if (current == null) {
+            jobRegistry.discard(job);
+            throw new IllegalStateException("Delivery queue isn't started");
+        }
+        long pending = getPendingBytes();
+        if (pending > configuration.getMaxPending().toBytes()) {
+            jobRegistry.discard(job);
+            throw new QueueFullException("Delivery queue is full, " + pending + " bytes are pending");
+        }
+        QueuedJob queued = new QueuedJob(job, message, current.end());
+        jobs.put(job.getId(), queued);
+        try {
+            current.append(QueueLog.MESSAGE, job.getId(), null, message);
+            for (String endpoint : endpoints) {
+                job.enqueued();
+                current.append(QueueLog.DELIVERY, job.getId(), endpoint, null);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Delivery queue write failed", ex);
+        } finally {
+            try {
+                current.append(QueueLog.END, job.getId(), null, null);
+                current.force();
+            } catch (IOException ex) {
+                log.error("Job {} can't be finished in delivery queue, its unread deliveries are dropped",
+                        job.getId(), ex);
+                jobs.remove(job.getId());
+                job.complete();
+            }
+        }
+    }
+
+    /**
+     * Size of records written but not yet consumed completely.
+     *
+     * @return bytes, 0 if the queue isn't started
+     */
+    public long getPendingBytes() {
+        QueueLog current = queueLog;
+        return current == null ? 0 : current.end() - committedOffset();
+    }
+
+    /**
+     * Stops consumer and saves checkpoint. Deliveries in flight aren't waited for, they are repeated after restart.
+     */
+    @PreDestroy
+    public void stop() {
+        QueueLog current = queueLog;
+        if (current == null) {
+            return;
+        }
+        running = false;
+        checkpointer.shutdownNow();
+        current.wakeUp();
+        consumer.interrupt();
+        try {
+            consumer.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        saveCheckpoint();
+        current.close();
+    }
+
+    /**
+     * Scans the log for jobs unfinished at the checkpoint and registers them again.
+     *
+     * @param opened queue log
+     * @throws IOException if end record of an interrupted job can't be written
+     */
+    private void resume(final QueueLog opened) throws IOException {
+        Map<String, Recovered> recovered = new LinkedHashMap<>();
+        for (QueueLog.Entry entry = opened.read(opened.start()); entry != null; entry = opened.read(entry.next())) {
+            if (entry.type() == QueueLog.MESSAGE) {
+                recovered.put(entry.jobId(), new Recovered(entry.offset(), entry.message()));
+            } else if (entry.type() == QueueLog.END && entry.offset() < checkpoint) {
+                recovered.remove(entry.jobId());
+            } else if (entry.offset() >= checkpoint && recovered.containsKey(entry.jobId())) {
+                Recovered job = recovered.get(entry.jobId());
+                job.ended |= entry.type() == QueueLog.END;
+                if (entry.type() == QueueLog.DELIVERY) {
+                    job.pending++;
+                    job.queued.add(entry.endpoint());
+                } else if (entry.type() == QueueLog.DONE) {
+                    job.done.add(entry.endpoint());
+                }
+            }
+        }
+        long deliveries = 0;
+        for (Map.Entry<String, Recovered> entry : recovered.entrySet()) {
+            Recovered job = entry.getValue();
+            // deliveries queued before the checkpoint may be finished after it, they aren't read again
+            job.done.retainAll(job.queued);
+            DeliveryJob deliveryJob = jobRegistry.restore(entry.getKey());
+            for (long i = job.done.size(); i < job.pending; i++) {
+                deliveryJob.enqueued();
+            }
+            deliveries += job.pending - job.done.size();
+            QueuedJob queuedJob = new QueuedJob(deliveryJob, job.message, job.offset);
+            queuedJob.delivered.addAll(job.done);
+            jobs.put(entry.getKey(), queuedJob);
+            if (!job.ended) {
+                // broadcast was interrupted while being queued, deliver what has been queued
+                opened.append(QueueLog.END, entry.getKey(), null, null);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Resumed {} unfinished jobs, {} deliveries", recovered.size(), deliveries);
+        }
+    }
+
+    /**
+     * Consumer loop, runs until shutdown.
+     *
+     * @param sender   delivery sender
+     * @param finisher job finisher
+     */
+    private void consume(final Sender sender, final BiConsumer<DeliveryJob, Set<String>> finisher) {
+        Iterable<Delivery> deliveries = () -> new DeliveryIterator(finisher);
+        while (running) {
+            try {
+                fanOutEngine.fanOutFromCaller(deliveries, delivery -> send(delivery, sender, finisher));
+            } catch (RuntimeException ex) {
+                log.error("Delivery queue consumer failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Sends single delivery, the offset is released when its outcome is recorded. Delivery finished before
+     * restart is passed over, delivery to a subscriber which has already got the message is dropped. Finished
+     * delivery is marked with a done record.
+     *
+     * @param delivery queued delivery
+     * @param sender   delivery sender
+     * @param finisher job finisher
+     * @return future completed when the outcome is recorded
+     */
+    private CompletionStage<?> send(final Delivery delivery, final Sender sender,
+                                    final BiConsumer<DeliveryJob, Set<String>> finisher) {
+        QueuedJob job = delivery.job();
+        boolean repeated = job.delivered.remove(delivery.endpoint());
+        boolean claimed = job.deliveryJob.claim(delivery.endpoint());
+        CompletionStage<?> result;
+        try {
+            if (repeated) {
+                result = CompletableFuture.completedFuture(null);
+            } else if (claimed) {
+                result = sender.send(job.deliveryJob, delivery.endpoint(), job.message, job.gone);
+            } else {
+                job.deliveryJob.cancelled();
+                result = CompletableFuture.completedFuture(null);
+            }
+        } catch (RuntimeException ex) {
+            log.error("Queued delivery of job {} failed", job.deliveryJob.getId(), ex);
+            result = CompletableFuture.completedFuture(null);
+        }
+        return result.whenComplete((ignored, ex) -> {
+            if (claimed && !repeated && running) {
+                markDone(job, delivery.endpoint());
+            }
+            inFlight.remove(delivery.offset());
+            if (job.finished()) {
+                complete(job, finisher);
+            }
+        });
+    }
+
+    /**
+     * Writes done record, failure only means the delivery may be repeated after restart.
+     *
+     * @param job      queued job
+     * @param endpoint recipient endpoint URL
+     */
+    private void markDone(final QueuedJob job, final String endpoint) {
+        try {
+            queueLog.append(QueueLog.DONE, job.deliveryJob.getId(), endpoint, null);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Delivery of job {} can't be marked as done: {}", job.deliveryJob.getId(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Completes job.
+     *
+     * @param job      queued job
+     * @param finisher job finisher
+     */
+    private void complete(final QueuedJob job, final BiConsumer<DeliveryJob, Set<String>> finisher) {
+        jobs.remove(job.deliveryJob.getId());
+        finisher.accept(job.deliveryJob, job.gone);
+    }
+
+    /**
+     * Offset of the first record not consumed completely.
+     *
+     * @return offset
+     */
+    private long committedOffset() {
+        long read = readOffset;
+        Iterator<Long> first = inFlight.iterator();
+        return first.hasNext() ? Math.min(read, first.next()) : read;
+    }
+
+    /**
+     * Saves checkpoint if the consumer has advanced and deletes segments which are no longer needed.
+     */
+    private synchronized void saveCheckpoint() {
+        QueueLog current = queueLog;
+        long committed = committedOffset();
+        try {
+            if (committed != checkpoint) {
+                current.writeCheckpoint(committed);
+                checkpoint = committed;
+            }
+            long retained = checkpoint;
+            for (QueuedJob job : jobs.values()) {
+                retained = Math.min(retained, job.messageOffset);
+            }
+            int released = current.release(retained);
+            if (released > 0) {
+                log.debug("Released {} delivery queue segments", released);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Delivery queue checkpoint failed", ex);
+        }
+    }
+
+    /**
+     * Sends single queued delivery.
+     */
+    @FunctionalInterface
+    public interface Sender {
+
+        /**
+         * Sends delivery.
+         *
+         * @param job      delivery job
+         * @param endpoint recipient endpoint URL
+         * @param message  prepared message
+         * @param gone     collector of endpoints reported gone
+         * @return future completed when the outcome is recorded
+         */
+        CompletionStage<?> send(DeliveryJob job, String endpoint, PreparedMessage message, Set<String> gone);
+    }
+
+    /**
+     * Delivery read from the log.
+     *
+     * @param offset   record offset
+     * @param job      queued job
+     * @param endpoint recipient endpoint URL
+     */
+    private record Delivery(long offset, QueuedJob job, String endpoint) {
+    }
+
+    /**
+     * Job found in the log on startup.
+     */
+    private static final class Recovered {
+
+        /**
+         * Message record offset.
+         */
+        private final long offset;
+        /**
+         * Prepared message.
+         */
+        private final PreparedMessage message;
+        /**
+         * Deliveries after the checkpoint.
+         */
+        private long pending;
+        /**
+         * Endpoints of deliveries after the checkpoint.
+         */
+        private final Set<String> queued = new HashSet<>();
+        /**
+         * Whether end record has been written.
+         */
+        private boolean ended;
+        /**
+         * Endpoints of deliveries finished after the checkpoint.
+         */
+        private final Set<String> done = new HashSet<>();
+
+        /**
+         * Constructor.
+         *
+         * @param messageOffset message record offset
+         * @param prepared      prepared message
+         */
+        Recovered(final long messageOffset, final PreparedMessage prepared) {
+            this.offset = messageOffset;
+            this.message = prepared;
+        }
+    }
+
+    /**
+     * Unfinished job.
+     */
+    private static final class QueuedJob {
+
+        /**
+         * Delivery job.
+         */
+        private final DeliveryJob deliveryJob;
+        /**
+         * Prepared message.
+         */
+        private final PreparedMessage message;
+        /**
+         * Offset of the message record, or a lower bound while it's being written.
+         */
+        private final long messageOffset;
+        /**
+         * Endpoints reported gone.
+         */
+        private final Set<String> gone = ConcurrentHashMap.newKeySet();
+        /**
+         * Endpoints delivered to before restart, their deliveries are passed over when read again.
+         */
+        private final Set<String> delivered = ConcurrentHashMap.newKeySet();
+        /**
+         * Deliveries read but not finished.
+         */
+        private int pending;
+        /**
+         * Whether end record has been read.
+         */
+        private boolean ended;
+
+        /**
+         * Constructor.
+         *
+         * @param job      delivery job
+         * @param prepared prepared message
+         * @param offset   message record offset
+         */
+        QueuedJob(final DeliveryJob job, final PreparedMessage prepared, final long offset) {
+            this.deliveryJob = job;
+            this.message = prepared;
+            this.messageOffset = offset;
+        }
+
+        /**
+         * Registers delivery read from the log.
+         */
+        synchronized void started() {
+            pending++;
+        }
+
+        /**
+         * Registers finished delivery.
+         *
+         * @return true if it was the last delivery of the job
+         */
+        synchronized boolean finished() {
+            pending--;
+            return ended && pending == 0;
+        }
+
+        /**
+         * Registers end record.
+         *
+         * @return true if all deliveries are already finished
+         */
+        synchronized boolean end() {
+            ended = true;
+            return pending == 0;
+        }
+    }
+
+    /**
+     * Blocking iterator over deliveries in the log, handles message and end records on the way.
+     */
+    private final class DeliveryIterator implements Iterator<Delivery> {
+
+        /**
+         * Job finisher.
+         */
+        private final BiConsumer<DeliveryJob, Set<String>> finisher;
+        /**
+         * Next delivery.
+         */
+        private Delivery next;
+
+        /**
+         * Constructor.
+         *
+         * @param jobFinisher job finisher
+         */
+        DeliveryIterator(final BiConsumer<DeliveryJob, Set<String>> jobFinisher) {
+            this.finisher = jobFinisher;
+        }
+
+        @Override
+        public boolean hasNext() {
+            QueueLog current = queueLog;
+            while (next == null && running) {
+                QueueLog.Entry entry = current.read(readOffset);
+                if (entry == null) {
+                    try {
+                        current.await(readOffset, POLL_TIMEOUT);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    continue;
+                }
+                QueuedJob job = jobs.get(entry.jobId());
+                if (job != null && entry.type() == QueueLog.DELIVERY) {
+                    job.started();
+                    inFlight.add(entry.offset());
+                    next = new Delivery(entry.offset(), job, entry.endpoint());
+                } else if (job != null && entry.type() == QueueLog.END && job.end()) {
+                    complete(job, finisher);
+                }
+                readOffset = entry.next();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Delivery next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Delivery delivery = next;
+            next = null;
+            return delivery;
+        }
+    }
+
+}
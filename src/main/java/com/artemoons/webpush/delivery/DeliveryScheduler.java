@@ -0,0 +1,536 @@
+package com.artemoons.webpush.delivery;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends push requests respecting push service limits. Requests to every origin pass a token bucket,
+ * throttled (429) and failed (5xx, network error) requests are put into a bounded retry queue and sent
+ * again after {@code Retry-After} or exponential backoff with full jitter. When an origin asks to retry later,
+ * the whole origin is paused, not just the throttled request.
+ * <p>
+ * Requests may carry a collapse key, e.g. subscriber and topic: a request still waiting for its token or retry
+ * when a newer request with the same key is sent is dropped with {@link MessageCollapsedException}. The request
+ * factory isn't called for dropped requests, so their payload doesn't even have to be encrypted.
+ * <p>
+ * Every origin also has its own {@link OriginGuard}: adaptive in-flight limit and circuit breaker. Requests to
+ * an isolated origin fail fast with {@link OriginUnavailableException} instead of holding sender slots, and
+ * requests waiting for a free slot of their origin give the {@link FanOutEngine} slot back, so one slow origin
+ * doesn't hold up the others. So do requests waiting for a token of their origin or for a retry: a throttled or
+ * failing origin may keep them waiting for up to the maximum backoff. Retries are bounded by the retry queue;
+ * requests waiting for a token beyond its capacity keep their slots, so a broadcast to a paused origin is slowed
+ * down instead of being buffered as a whole.
+ * <p>
+ * Attempts delayed by a rate limit or a retry are handed back to the {@link FanOutEngine} sender pool when they
+ * are due, so requests are prepared and encrypted there and the timer thread stays free for the other origins.
+ */
+@Slf4j
+@Component
+public class DeliveryScheduler {
+
+    /**
+     * Retry-After response header.
+     */
+    public static final String RETRY_AFTER = "Retry-After";
+    /**
+     * Push transport.
+     */
+    private final PushTransport transport;
+    /**
+     * Rate limit settings.
+     */
+    private final DeliveryConfiguration.RateLimit rateLimit;
+    /**
+     * Retry settings.
+     */
+    private final DeliveryConfiguration.Retry retry;
+    /**
+     * Circuit breaker settings.
+     */
+    private final DeliveryConfiguration.CircuitBreaker circuitBreaker;
+    /**
+     * Adaptive concurrency settings.
+     */
+    private final DeliveryConfiguration.Concurrency concurrency;
+    /**
+     * Delivery metrics.
+     */
+    private final DeliveryMetrics metrics;
+    /**
+     * Sender pool running delayed attempts.
+     */
+    private final FanOutEngine senders;
+    /**
+     * Token buckets by origin.
+     */
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    /**
+     * Health guards by origin.
+     */
+    private final Map<String, OriginGuard> guards = new ConcurrentHashMap<>();
+    /**
+     * Latest attempts by collapse key.
+     */
+    private final Map<String, Attempt> collapsible = new ConcurrentHashMap<>();
+    /**
+     * Timer handing delayed attempts to the sender pool.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "push-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Deliveries waiting for retry.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+    /**
+     * Deliveries waiting for a token.
+     */
+    private final AtomicInteger throttled = new AtomicInteger();
+    /**
+     * Number of retries.
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * Number of deliveries given up.
+     */
+    private final AtomicLong exhausted = new AtomicLong();
+    /**
+     * Number of deliveries superseded by a newer one.
+     */
+    private final AtomicLong collapsed = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param pushTransport   push transport
+     * @param config          delivery configuration
+     * @param deliveryMetrics delivery metrics
+     * @param fanOutEngine    fan-out engine whose sender pool runs delayed attempts
+     */
+    @Autowired
+    public DeliveryScheduler(final PushTransport pushTransport, final DeliveryConfiguration config,
+                             final DeliveryMetrics deliveryMetrics, final FanOutEngine fanOutEngine) {
+        this.transport = pushTransport;
+        this.metrics = deliveryMetrics;
+        this.senders = fanOutEngine;
+        this.rateLimit = config.getRateLimit();
+        this.retry = config.getRetry();
+        this.circuitBreaker = config.getCircuitBreaker();
+        this.concurrency = config.getConcurrency();
+    }
+
+    /**
+     * Sends push request, retrying it if needed.
+     *
+     * @param origin  push service origin
+     * @param request request factory, called for every attempt
+     * @return future final response; fails if request couldn't be sent at all
+     */
+    public CompletableFuture<PushResponse> send(final String origin, final Supplier<PushRequest> request) {
+        return send(origin, null, request);
+    }
+
+    /**
+     * Sends push request, retrying it if needed. Request is dropped if a newer request with the same collapse key
+     * is sent before this one is.
+     *
+     * @param origin      push service origin
+     * @param collapseKey collapse key, null if request must not be collapsed
+     * @param request     request factory, called for every attempt
+     * @return future final response; fails with {@link MessageCollapsedException} if superseded
+     */
+    public CompletableFuture<PushResponse> send(final String origin, final String collapseKey,
+                                                final Supplier<PushRequest> request) {
+        Attempt attempt = new Attempt(origin, collapseKey, request);
+        if (collapseKey != null) {
+            collapsible.put(collapseKey, attempt);
+            attempt.result.whenComplete((response, ex) -> collapsible.remove(collapseKey, attempt));
+        }
+        dispatch(attempt);
+        return attempt.result;
+    }
+
+    /**
+     * Number of deliveries waiting for retry.
+     *
+     * @return queue size
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Total number of retries.
+     *
+     * @return retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of deliveries given up after retries.
+     *
+     * @return given up deliveries
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * Number of deliveries superseded by a newer one with the same collapse key.
+     *
+     * @return collapsed deliveries
+     */
+    public long getCollapsed() {
+        return collapsed.get();
+    }
+
+    /**
+     * Whether origin is isolated by its circuit breaker.
+     *
+     * @param origin push service origin
+     * @return true if requests to the origin are rejected
+     */
+    public boolean isIsolated(final String origin) {
+        OriginGuard guard = guards.get(origin);
+        return guard != null && guard.isOpen();
+    }
+
+    /**
+     * Current in-flight limit of origin.
+     *
+     * @param origin push service origin
+     * @return limit
+     */
+    public int getLimit(final String origin) {
+        return guard(origin).getLimit();
+    }
+
+    /**
+     * Stops timer, pending retries are dropped.
+     */
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Takes origin token and sends request once it may be used.
+     *
+     * @param attempt delivery attempt
+     */
+    private void dispatch(final Attempt attempt) {
+        OriginGuard guard = guard(attempt.origin);
+        if (guard.isOpen()) {
+            attempt.result.completeExceptionally(
+                    new OriginUnavailableException(attempt.origin + ": circuit breaker is open"));
+            return;
+        }
+        long wait = bucket(attempt.origin).reserve(System.nanoTime());
+        if (wait <= 0) {
+            admit(guard, attempt);
+            return;
+        }
+        boolean parked = throttled.incrementAndGet() <= retry.getQueueCapacity();
+        try {
+            timer.schedule(() -> {
+                throttled.decrementAndGet();
+                resume(() -> admit(guard, attempt), attempt);
+            }, wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            throttled.decrementAndGet();
+            attempt.result.completeExceptionally(ex);
+            return;
+        }
+        if (parked) {
+            attempt.fanOutSlot.run();
+        }
+    }
+
+    /**
+     * Hands delayed attempt from the timer to the sender pool.
+     *
+     * @param step    next step of the attempt
+     * @param attempt delivery attempt
+     */
+    private void resume(final Runnable step, final Attempt attempt) {
+        try {
+            senders.execute(step);
+        } catch (RejectedExecutionException ex) {
+            attempt.result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Prepares request and passes it to origin guard.
+     *
+     * @param guard   origin guard
+     * @param attempt delivery attempt
+     */
+    private void admit(final OriginGuard guard, final Attempt attempt) {
+        if (attempt.collapseKey != null && collapsible.get(attempt.collapseKey) != attempt) {
+            collapsed.incrementAndGet();
+            attempt.result.completeExceptionally(
+                    new MessageCollapsedException("superseded by a newer message with the same topic"));
+            return;
+        }
+        PushRequest request;
+        try {
+            request = attempt.request.get();
+        } catch (RuntimeException ex) {
+            attempt.result.completeExceptionally(ex);
+            return;
+        }
+        guard.submit(() -> execute(guard, attempt, request), attempt.fanOutSlot,
+                attempt.result::completeExceptionally);
+    }
+
+    /**
+     * Sends request, the guard slot is released when response is received.
+     *
+     * @param guard   origin guard
+     * @param attempt delivery attempt
+     * @param request push request
+     */
+    private void execute(final OriginGuard guard, final Attempt attempt, final PushRequest request) {
+        long start = System.nanoTime();
+        CompletableFuture<PushResponse> response;
+        try {
+            response = transport.send(request);
+        } catch (RuntimeException ex) {
+            response = CompletableFuture.failedFuture(ex);
+        }
+        response.whenComplete((result, ex) -> {
+            long elapsed = System.nanoTime() - start;
+            metrics.recordRequest(attempt.origin, result == null ? -1 : result.statusCode(), elapsed);
+            guard.release(elapsed, classify(result, ex));
+            onResult(attempt, result, ex);
+        });
+    }
+
+    /**
+     * Completes delivery or queues it for retry.
+     *
+     * @param attempt  delivery attempt
+     * @param response push service response, null on error
+     * @param error    transport error
+     */
+    private void onResult(final Attempt attempt, final PushResponse response, final Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        boolean retryable = cause == null ? isRetryable(response.statusCode()) : cause instanceof IOException;
+        if (!retryable) {
+            complete(attempt, response, cause);
+            return;
+        }
+        long now = System.nanoTime();
+        long retryAfter = response == null ? -1 : retryAfter(response);
+        if (retryAfter >= 0) {
+            bucket(attempt.origin).pause(now, retryAfter);
+        }
+        long delay = retryAfter >= 0 ? retryAfter : backoff(attempt.number);
+        if (attempt.number >= retry.getMaxAttempts() || delay > retry.getMaxBackoff().toNanos()
+                || !enqueue(attempt, delay)) {
+            exhausted.incrementAndGet();
+            log.warn("Delivery to {} given up after {} attempts", attempt.origin, attempt.number);
+            complete(attempt, response, cause);
+        }
+    }
+
+    /**
+     * Puts delivery into retry queue.
+     *
+     * @param attempt delivery attempt
+     * @param delay   delay, nanoseconds
+     * @return false if the queue is full
+     */
+    private boolean enqueue(final Attempt attempt, final long delay) {
+        if (queued.incrementAndGet() > retry.getQueueCapacity()) {
+            queued.decrementAndGet();
+            return false;
+        }
+        attempt.number++;
+        retries.incrementAndGet();
+        try {
+            timer.schedule(() -> {
+                queued.decrementAndGet();
+                resume(() -> dispatch(attempt), attempt);
+            }, delay, TimeUnit.NANOSECONDS);
+            attempt.fanOutSlot.run();
+            return true;
+        } catch (RejectedExecutionException ex) {
+            queued.decrementAndGet();
+            retries.decrementAndGet();
+            attempt.number--;
+            return false;
+        }
+    }
+
+    /**
+     * Completes delivery.
+     *
+     * @param attempt  delivery attempt
+     * @param response last response
+     * @param error    last error
+     */
+    private static void complete(final Attempt attempt, final PushResponse response, final Throwable error) {
+        if (error != null) {
+            attempt.result.completeExceptionally(error);
+        } else {
+            attempt.result.complete(response);
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter.
+     *
+     * @param attempt number of attempts made
+     * @return delay, nanoseconds
+     */
+    private long backoff(final int attempt) {
+        long initial = retry.getInitialBackoff().toNanos();
+        long max = retry.getMaxBackoff().toNanos();
+        long ceiling = attempt > Long.numberOfLeadingZeros(initial) ? max : Math.min(max, initial << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Token bucket of origin.
+     *
+     * @param origin push service origin
+     * @return token bucket
+     */
+    private TokenBucket bucket(final String origin) {
+        return buckets.computeIfAbsent(origin,
+                key -> new TokenBucket(rateLimit.getPermitsPerSecond(), rateLimit.getBurst(), System.nanoTime()));
+    }
+
+    /**
+     * Health guard of origin.
+     *
+     * @param origin push service origin
+     * @return guard
+     */
+    private OriginGuard guard(final String origin) {
+        return guards.computeIfAbsent(origin, key -> new OriginGuard(key, circuitBreaker, concurrency));
+    }
+
+    /**
+     * Interprets request result for origin guard.
+     *
+     * @param response push service response
+     * @param error    transport error
+     * @return result
+     */
+    private static OriginGuard.Result classify(final PushResponse response, final Throwable error) {
+        if (error != null || HttpStatus.Series.resolve(response.statusCode()) == HttpStatus.Series.SERVER_ERROR) {
+            return OriginGuard.Result.FAILURE;
+        }
+        if (response.statusCode() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+            return OriginGuard.Result.THROTTLED;
+        }
+        return OriginGuard.Result.SUCCESS;
+    }
+
+    /**
+     * Checks whether response status is worth retrying.
+     *
+     * @param statusCode response status
+     * @return true for 429 and 5xx
+     */
+    private static boolean isRetryable(final int statusCode) {
+        return statusCode == HttpStatus.TOO_MANY_REQUESTS.value()
+                || HttpStatus.Series.resolve(statusCode) == HttpStatus.Series.SERVER_ERROR;
+    }
+
+    /**
+     * Parses Retry-After header, either delay in seconds or HTTP date.
+     *
+     * @param response push service response
+     * @return delay, nanoseconds, or -1 if absent or malformed
+     */
+    static long retryAfter(final PushResponse response) {
+        String value = response.headers() == null ? null : response.headers().getFirst(RETRY_AFTER);
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toNanos(Long.parseLong(value.trim())));
+        } catch (NumberFormatException ex) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toNanos());
+            } catch (DateTimeParseException parseEx) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Delivery attempts state.
+     */
+    private static final class Attempt {
+
+        /**
+         * Push service origin.
+         */
+        private final String origin;
+        /**
+         * Collapse key, null if not collapsible.
+         */
+        private final String collapseKey;
+        /**
+         * Request factory.
+         */
+        private final Supplier<PushRequest> request;
+        /**
+         * Final response.
+         */
+        private final CompletableFuture<PushResponse> result = new CompletableFuture<>();
+        /**
+         * Releases the fan-out slot of the task which has sent the delivery.
+         */
+        private final Runnable fanOutSlot = FanOutEngine.releaseSlot();
+        /**
+         * Number of the current attempt.
+         */
+        private int number = 1;
+
+        /**
+         * Constructor.
+         *
+         * @param pushOrigin     push service origin
+         * @param key            collapse key or null
+         * @param requestFactory request factory
+         */
+        Attempt(final String pushOrigin, final String key, final Supplier<PushRequest> requestFactory) {
+            this.origin = pushOrigin;
+            this.collapseKey = key;
+            this.request = requestFactory;
+        }
+    }
+
+}
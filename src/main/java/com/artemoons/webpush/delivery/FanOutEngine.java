@@ -0,0 +1,339 @@
+package com.artemoons.webpush.delivery;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Concurrent fan-out engine. Every item is processed as a separate task on a shared sender pool,
+ * while the number of tasks in flight is limited globally. Task may finish asynchronously, its slot
+ * is held until the returned stage is completed or until the task hands it back with {@link #releaseSlot()},
+ * e.g. when it's parked in a bounded queue of its own and shouldn't keep the other tasks waiting.
+ */
+@Slf4j
+@Component
+public class FanOutEngine {
+
+    /**
+     * Time to wait for running tasks on shutdown, seconds.
+     */
+    private static final int SHUTDOWN_TIMEOUT = 10;
+    /**
+     * Slot release of the task being started in the current thread.
+     */
+    private static final ThreadLocal<Runnable> CURRENT_SLOT = new ThreadLocal<>();
+    /**
+     * Sender pool.
+     */
+    private final ExecutorService executor;
+    /**
+     * Pool running background broadcasts.
+     */
+    private final ExecutorService dispatcher;
+    /**
+     * Global in-flight limit.
+     */
+    private final int maxInFlight;
+    /**
+     * Free in-flight slots.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Constructor.
+     *
+     * @param config delivery configuration
+     */
+    @Autowired
+    public FanOutEngine(final DeliveryConfiguration config) {
+        this.executor = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("push-sender-"));
+        this.dispatcher = Executors.newFixedThreadPool(config.getDispatcherThreads(),
+                new NamedThreadFactory("push-dispatcher-"));
+        this.maxInFlight = config.getMaxInFlight();
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Runs fan-out in background.
+     *
+     * @param items items to process
+     * @param task  task to run for every item
+     * @param <T>   item type
+     * @return future completed when all items are processed
+     */
+    public <T> CompletableFuture<Void> fanOutAsync(final Iterable<T> items,
+                                                   final Function<T, ? extends CompletionStage<?>> task) {
+        return CompletableFuture.runAsync(() -> fanOut(items, task), dispatcher);
+    }
+
+    /**
+     * Runs task for every item and waits until all of them are finished. Submission blocks while
+     * the global in-flight limit is reached.
+     *
+     * @param items items to process
+     * @param task  task to run for every item
+     * @param <T>   item type
+     */
+    public <T> void fanOut(final Iterable<T> items, final Function<T, ? extends CompletionStage<?>> task) {
+        Completion completion = new Completion();
+        try {
+            submitAll(items, task, completion);
+            completion.seal();
+            completion.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            completion.seal();
+            log.warn("Fan-out has been interrupted, remaining items won't be processed");
+        }
+    }
+
+    /**
+     * Submits items from the calling thread and returns once all of them are submitted, e.g. when items are
+     * read from a request stream which is only available to the calling thread. Submission blocks while
+     * the global in-flight limit is reached.
+     *
+     * @param items items to process, iteration errors are rethrown after submitted items are left to finish
+     * @param task  task to run for every item
+     * @param <T>   item type
+     * @return future completed when all submitted items are processed
+     */
+    public <T> CompletableFuture<Void> fanOutFromCaller(final Iterable<T> items,
+                                                        final Function<T, ? extends CompletionStage<?>> task) {
+        Completion completion = new Completion();
+        try {
+            submitAll(items, task, completion);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.warn("Fan-out has been interrupted, remaining items won't be processed");
+        } finally {
+            completion.seal();
+        }
+        return completion.future();
+    }
+
+    /**
+     * Submits task for every item.
+     *
+     * @param items      items to process
+     * @param task       task to run for every item
+     * @param completion fan-out tracker
+     * @param <T>        item type
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    private <T> void submitAll(final Iterable<T> items, final Function<T, ? extends CompletionStage<?>> task,
+                               final Completion completion) throws InterruptedException {
+        for (T item : items) {
+            inFlight.acquire();
+            completion.started();
+            try {
+                executor.execute(() -> run(task, item, completion));
+            } catch (RuntimeException ex) {
+                inFlight.release();
+                completion.finished();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Returns slot release callback of the fan-out task being started in the calling thread. The callback must be
+     * captured synchronously while the task is called; calling it more than once, or after the task has finished,
+     * has no effect.
+     *
+     * @return slot release, does nothing outside of fan-out tasks
+     */
+    static Runnable releaseSlot() {
+        Runnable release = CURRENT_SLOT.get();
+        return release == null ? () -> { } : release;
+    }
+
+    /**
+     * Runs single task, the slot is released when the task is finished unless the task has released it earlier.
+     *
+     * @param task       task
+     * @param item       item to process
+     * @param completion fan-out tracker
+     * @param <T>        item type
+     */
+    private <T> void run(final Function<T, ? extends CompletionStage<?>> task, final T item,
+                         final Completion completion) {
+        AtomicBoolean held = new AtomicBoolean(true);
+        Runnable release = () -> {
+            if (held.compareAndSet(true, false)) {
+                inFlight.release();
+            }
+        };
+        CompletionStage<?> stage;
+        CURRENT_SLOT.set(release);
+        try {
+            stage = task.apply(item);
+        } catch (RuntimeException ex) {
+            log.error("Fan-out task failed", ex);
+            stage = CompletableFuture.completedFuture(null);
+        } finally {
+            CURRENT_SLOT.remove();
+        }
+        stage.whenComplete((result, ex) -> {
+            release.run();
+            completion.finished();
+        });
+    }
+
+    /**
+     * Runs task on the sender pool outside of any fan-out, e.g. a delivery coming back from a timer. The task
+     * doesn't take an in-flight slot.
+     *
+     * @param task task
+     * @throws java.util.concurrent.RejectedExecutionException if the pool has been stopped
+     */
+    void execute(final Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Number of deliveries currently holding a slot.
+     *
+     * @return in-flight deliveries
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Stops sender pool.
+     */
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tracks tasks of a single fan-out.
+     */
+    private static final class Completion {
+
+        /**
+         * Completed when all tasks are finished and no more tasks are expected.
+         */
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        /**
+         * Started but not finished tasks.
+         */
+        private int pending;
+        /**
+         * Whether all tasks are submitted.
+         */
+        private boolean sealed;
+
+        /**
+         * Registers started task.
+         */
+        synchronized void started() {
+            pending++;
+        }
+
+        /**
+         * Registers finished task.
+         */
+        synchronized void finished() {
+            pending--;
+            completeIfDone();
+        }
+
+        /**
+         * Marks that no more tasks will be started.
+         */
+        synchronized void seal() {
+            sealed = true;
+            completeIfDone();
+        }
+
+        /**
+         * Waits until all started tasks are finished.
+         *
+         * @throws InterruptedException if interrupted
+         */
+        synchronized void await() throws InterruptedException {
+            while (pending > 0) {
+                wait();
+            }
+        }
+
+        /**
+         * Completion future.
+         *
+         * @return future
+         */
+        CompletableFuture<Void> future() {
+            return done;
+        }
+
+        /**
+         * Wakes up waiters and completes the future. Must be called holding the lock.
+         */
+        private void completeIfDone() {
+            if (pending == 0) {
+                notifyAll();
+                if (sealed) {
+                    done.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Daemon threads factory.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        /**
+         * Thread name prefix.
+         */
+        private final String prefix;
+        /**
+         * Thread counter.
+         */
+        private final AtomicInteger counter = new AtomicInteger();
+
+        /**
+         * Constructor.
+         *
+         * @param namePrefix thread name prefix
+         */
+        NamedThreadFactory(final String namePrefix) {
+            this.prefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
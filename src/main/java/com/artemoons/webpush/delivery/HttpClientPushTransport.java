@@ -0,0 +1,73 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Default push transport. Uses single long-lived {@link HttpClient}, so connections to push services are pooled
+ * and, where supported, requests are multiplexed over HTTP/2. The JDK reads its connection pool settings once
+ * per JVM from {@code jdk.httpclient.keepalive.timeout} and {@code jdk.httpclient.connectionPoolSize}, so they
+ * are given as JVM flags, not as application properties.
+ */
+@Component
+public class HttpClientPushTransport implements PushTransport {
+
+    /**
+     * Transport configuration.
+     */
+    private final DeliveryConfiguration.Transport configuration;
+    /**
+     * Shared HTTP client.
+     */
+    private final HttpClient httpClient;
+
+    /**
+     * Constructor.
+     *
+     * @param config delivery configuration
+     */
+    @Autowired
+    public HttpClientPushTransport(final DeliveryConfiguration config) {
+        this.configuration = config.getTransport();
+        this.httpClient = HttpClient.newBuilder()
+                .version(configuration.getVersion())
+                .connectTimeout(configuration.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    /**
+     * Sends request asynchronously, response body is discarded.
+     *
+     * @param request push request
+     * @return future push service response
+     */
+    @Override
+    public CompletableFuture<PushResponse> send(final PushRequest request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.endpoint())
+                .timeout(configuration.getRequestTimeout())
+                .POST(HttpRequest.BodyPublishers.ofByteArray(request.body()));
+        request.headers().forEach(builder::header);
+        return httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> new PushResponse(response.statusCode(), toHeaders(response)));
+    }
+
+    /**
+     * Converts response headers.
+     *
+     * @param response HTTP response
+     * @return headers
+     */
+    private static HttpHeaders toHeaders(final HttpResponse<?> response) {
+        HttpHeaders headers = new HttpHeaders();
+        response.headers().map().forEach(headers::addAll);
+        return headers;
+    }
+
+}
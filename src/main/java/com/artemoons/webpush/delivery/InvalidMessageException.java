@@ -0,0 +1,21 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Message delivery options are malformed.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidMessageException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public InvalidMessageException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of delivery jobs. Completed jobs are kept for the configured retention period.
+ * <p>
+ * Jobs may be started under a client idempotency key: recent keys are remembered for a limited time and up to
+ * a limited number, a retried request with a known key gets the job started by the first one instead of a new
+ * broadcast. Concurrent requests with the same key wait for the first one to start its job.
+ */
+@Component
+public class JobRegistry {
+
+    /**
+     * Maximum idempotency key length.
+     */
+    private static final int MAX_KEY_LENGTH = 255;
+
+    /**
+     * Delivery configuration.
+     */
+    private final DeliveryConfiguration configuration;
+    /**
+     * Jobs by identifier.
+     */
+    private final Map<String, DeliveryJob> jobs = new ConcurrentHashMap<>();
+    /**
+     * Delivery log shared by all jobs.
+     */
+    private final DeliveryLog deliveryLog;
+    /**
+     * Jobs by idempotency key, oldest first.
+     */
+    private final LinkedHashMap<String, KeyedJob> keys = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param config delivery configuration
+     * @param log    delivery log
+     */
+    @Autowired
+    public JobRegistry(final DeliveryConfiguration config, final DeliveryLog log) {
+        this.configuration = config;
+        this.deliveryLog = log;
+    }
+
+    /**
+     * Creates and registers new job.
+     *
+     * @return new job
+     */
+    public DeliveryJob create() {
+        evictExpired();
+        DeliveryJob job = new DeliveryJob(deliveryLog);
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    /**
+     * Forgets job which hasn't been started after all, e.g. broadcast rejected by a full delivery queue.
+     *
+     * @param job job to forget
+     */
+    public void discard(final DeliveryJob job) {
+        jobs.remove(job.getId(), job);
+    }
+
+    /**
+     * Registers job resumed after restart under its original identifier.
+     *
+     * @param id job identifier
+     * @return resumed job, counters start from zero
+     */
+    public DeliveryJob restore(final String id) {
+        DeliveryJob job = new DeliveryJob(id, deliveryLog);
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Starts job under idempotency key, unless the key is already known.
+     *
+     * @param key     client idempotency key
+     * @param starter starts new job, called only for an unknown key
+     * @return started or existing job
+     * @throws InvalidMessageException if the key is too long
+     */
+    public Submission submit(final String key, final Supplier<DeliveryJob> starter) {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            throw new InvalidMessageException("Idempotency key must be 1 to " + MAX_KEY_LENGTH + " characters long");
+        }
+        CompletableFuture<DeliveryJob> started = new CompletableFuture<>();
+        KeyedJob known;
+        synchronized (keys) {
+            evictKeys();
+            known = keys.putIfAbsent(key, new KeyedJob(started, System.currentTimeMillis()));
+        }
+        if (known != null) {
+            try {
+                return new Submission(known.job().join(), true);
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+            }
+        }
+        try {
+            DeliveryJob job = starter.get();
+            started.complete(job);
+            return new Submission(job, false);
+        } catch (RuntimeException ex) {
+            // a failed starter leaves no running job: a broadcast rejected by the delivery queue has its job
+            // discarded. Only a queue write failing midway leaves the deliveries written so far to be sent, and
+            // the retry may repeat them. The key is forgotten, so the retry can start the job again
+            synchronized (keys) {
+                keys.remove(key);
+            }
+            started.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Looks up job by identifier.
+     *
+     * @param id job identifier
+     * @return job if known
+     */
+    public Optional<DeliveryJob> find(final String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Forgets expired keys and the oldest keys above the limit, caller holds the lock.
+     */
+    private void evictKeys() {
+        long threshold = System.currentTimeMillis() - configuration.getIdempotency().getTtl().toMillis();
+        int excess = keys.size() - configuration.getIdempotency().getMaxKeys() + 1;
+        Iterator<KeyedJob> oldest = keys.values().iterator();
+        while (oldest.hasNext()) {
+            KeyedJob keyed = oldest.next();
+            if (excess <= 0 && keyed.createdAt() >= threshold) {
+                break;
+            }
+            oldest.remove();
+            excess--;
+        }
+    }
+
+    /**
+     * Removes completed jobs older than retention period.
+     */
+    private void evictExpired() {
+        Instant threshold = Instant.now().minus(configuration.getJobRetention());
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(threshold));
+    }
+
+    /**
+     * Job started under idempotency key.
+     *
+     * @param job      delivery job
+     * @param replayed whether the job has been started by an earlier request with the same key
+     */
+    public record Submission(DeliveryJob job, boolean replayed) {
+    }
+
+    /**
+     * Remembered idempotency key.
+     *
+     * @param job       job being started or started
+     * @param createdAt time the key was first seen, milliseconds
+     */
+    private record KeyedJob(CompletableFuture<DeliveryJob> job, long createdAt) {
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.artemoons.webpush.delivery;
+
+/**
+ * Thrown when a request isn't sent because a newer message with the same topic is pending for the subscriber.
+ */
+public class MessageCollapsedException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public MessageCollapsedException(final String message) {
+        super(message);
+    }
+
+}
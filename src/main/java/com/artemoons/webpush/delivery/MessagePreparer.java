@@ -0,0 +1,103 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.CryptoService;
+import com.artemoons.webpush.PayloadConfiguration;
+import com.artemoons.webpush.dto.PushMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Serializes, compresses and validates messages before any network work starts.
+ */
+@Component
+public class MessagePreparer {
+
+    /**
+     * Maximum Web Push record size push services have to accept.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc8291#section-4">RFC 8291 4</a>
+     */
+    public static final int MAX_RECORD_SIZE = 4096;
+    /**
+     * Maximum payload size: record size without header, padding delimiter and authentication tag.
+     */
+    public static final int MAX_PAYLOAD_SIZE = MAX_RECORD_SIZE - CryptoService.HEADER_LENGTH - 1
+            - CryptoService.TAG_BYTES;
+    /**
+     * Allowed collapse topic: up to 32 characters of URL-safe base64 alphabet.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc8030#section-5.4">RFC 8030 5.4</a>
+     */
+    private static final Pattern TOPIC = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    /**
+     * JSON object mapper.
+     */
+    private final ObjectMapper objectMapper;
+    /**
+     * Delivery metrics.
+     */
+    private final DeliveryMetrics metrics;
+    /**
+     * Payload configuration.
+     */
+    private final PayloadConfiguration payloadConfiguration;
+
+    /**
+     * Constructor.
+     *
+     * @param jsonMapper      object mapper
+     * @param deliveryMetrics delivery metrics
+     * @param payloadConfig   payload configuration
+     */
+    @Autowired
+    public MessagePreparer(final ObjectMapper jsonMapper, final DeliveryMetrics deliveryMetrics,
+                           final PayloadConfiguration payloadConfig) {
+        this.objectMapper = jsonMapper;
+        this.metrics = deliveryMetrics;
+        this.payloadConfiguration = payloadConfig;
+    }
+
+    /**
+     * Serializes message to UTF-8 JSON once, compresses it if enabled and validates its delivery options.
+     * Size limit applies to the compressed payload.
+     *
+     * @param message message
+     * @return prepared message
+     * @throws PayloadTooLargeException if the message doesn't fit into a single record
+     * @throws InvalidMessageException  if TTL is negative or topic is malformed
+     */
+    public PreparedMessage prepare(final PushMessage message) {
+        if (message.getTtl() != null && message.getTtl() < 0) {
+            throw new InvalidMessageException("TTL must not be negative");
+        }
+        if (message.getTopic() != null && !TOPIC.matcher(message.getTopic()).matches()) {
+            throw new InvalidMessageException("Topic must be up to 32 URL-safe base64 characters");
+        }
+        byte[] payload;
+        long start = System.nanoTime();
+        try {
+            payload = objectMapper.writeValueAsBytes(message);
+            if (payloadConfiguration.isCompression()) {
+                payload = PayloadCodec.encode(payload, payloadConfiguration.getCompressionThreshold());
+            }
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Message can't be serialized", ex);
+        } finally {
+            metrics.getSerialization().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (payload.length > MAX_PAYLOAD_SIZE) {
+            throw new PayloadTooLargeException("Message is " + payload.length + " bytes, maximum is "
+                    + MAX_PAYLOAD_SIZE);
+        }
+        return new PreparedMessage(payload,
+                message.getTtl() == null ? PreparedMessage.DEFAULT_TTL : message.getTtl(),
+                message.getUrgency(),
+                message.getTopic());
+    }
+
+}
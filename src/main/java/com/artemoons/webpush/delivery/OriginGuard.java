@@ -0,0 +1,324 @@
+package com.artemoons.webpush.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Health tracking of a single push service origin: circuit breaker over the failure rate of last requests
+ * and AIMD in-flight limit driven by latency. Responses slower than the latency threshold count as failures,
+ * so an origin which keeps answering 2xx but too slowly is isolated as well; throttling doesn't, an origin
+ * asking to slow down is handled by the limit alone.
+ * <p>
+ * Requests above the limit wait in a queue. The first {@code maxQueued} of them hand their fan-out slot back
+ * while waiting, so a degraded origin can't take over the global in-flight limit and stall healthy origins;
+ * requests beyond that keep their slot, which pushes back on the fan-out instead of dropping messages.
+ */
+final class OriginGuard {
+
+    /**
+     * Weight of a new sample in the average latency.
+     */
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    /**
+     * Circuit breaker state.
+     */
+    enum State {
+        /**
+         * Requests pass.
+         */
+        CLOSED,
+        /**
+         * Requests are rejected.
+         */
+        OPEN,
+        /**
+         * Single probe request passes.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Request result as seen by the guard.
+     */
+    enum Result {
+        /**
+         * Origin has handled the request, it still counts as failure if it took longer than the latency threshold.
+         */
+        SUCCESS,
+        /**
+         * Origin asked to slow down.
+         */
+        THROTTLED,
+        /**
+         * Origin failed or couldn't be reached.
+         */
+        FAILURE
+    }
+
+    /**
+     * Origin.
+     */
+    private final String origin;
+    /**
+     * Breaker settings.
+     */
+    private final DeliveryConfiguration.CircuitBreaker breaker;
+    /**
+     * Concurrency settings.
+     */
+    private final DeliveryConfiguration.Concurrency concurrency;
+    /**
+     * Failures of last requests, ring buffer.
+     */
+    private final boolean[] window;
+    /**
+     * Requests waiting for a free slot.
+     */
+    private final Deque<Pending> waiting = new ArrayDeque<>();
+    /**
+     * Next position in window.
+     */
+    private int windowPosition;
+    /**
+     * Requests in window.
+     */
+    private int windowCalls;
+    /**
+     * Failures in window.
+     */
+    private int windowFailures;
+    /**
+     * Breaker state.
+     */
+    private State state = State.CLOSED;
+    /**
+     * Time the breaker was opened.
+     */
+    private long openedAt;
+    /**
+     * Whether half-open probe is in flight.
+     */
+    private boolean probing;
+    /**
+     * Current in-flight limit.
+     */
+    private double limit;
+    /**
+     * Requests in flight.
+     */
+    private int inFlight;
+    /**
+     * Time of the last limit decrease.
+     */
+    private long decreasedAt;
+    /**
+     * Average latency, nanoseconds.
+     */
+    private double latency;
+
+    /**
+     * Constructor.
+     *
+     * @param pushOrigin        origin
+     * @param breakerConfig     breaker settings
+     * @param concurrencyConfig concurrency settings
+     */
+    OriginGuard(final String pushOrigin, final DeliveryConfiguration.CircuitBreaker breakerConfig,
+                final DeliveryConfiguration.Concurrency concurrencyConfig) {
+        this.origin = pushOrigin;
+        this.breaker = breakerConfig;
+        this.concurrency = concurrencyConfig;
+        this.window = new boolean[Math.max(1, breakerConfig.getWindowSize())];
+        this.limit = concurrencyConfig.getInitialLimit();
+    }
+
+    /**
+     * Checks whether requests are rejected right now, cheap pre-check before rate limiting.
+     *
+     * @return true if breaker is open
+     */
+    synchronized boolean isOpen() {
+        return state == State.OPEN && System.nanoTime() - openedAt < breaker.getOpenDuration().toNanos();
+    }
+
+    /**
+     * Runs task once origin has a free slot. Every started task must be followed by {@link #release}.
+     *
+     * @param task     task sending request
+     * @param parked   called if the task has to wait and may give its fan-out slot back meanwhile
+     * @param rejected called instead of the task if origin is isolated
+     */
+    void submit(final Runnable task, final Runnable parked,
+                final Consumer<? super OriginUnavailableException> rejected) {
+        boolean open = false;
+        boolean run = false;
+        boolean park = false;
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= breaker.getOpenDuration().toNanos()) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.OPEN || state == State.HALF_OPEN && probing) {
+                open = true;
+            } else if (inFlight < currentLimit()) {
+                probing = state == State.HALF_OPEN;
+                inFlight++;
+                run = true;
+            } else {
+                park = waiting.size() < concurrency.getMaxQueued();
+                waiting.add(new Pending(task, rejected));
+            }
+        }
+        if (open) {
+            rejected.accept(new OriginUnavailableException(origin + ": circuit breaker is open"));
+        } else if (run) {
+            task.run();
+        } else if (park) {
+            parked.run();
+        }
+    }
+
+    /**
+     * Records request result, adjusts breaker and limit and starts waiting requests.
+     *
+     * @param elapsed request duration, nanoseconds
+     * @param result  request result
+     */
+    void release(final long elapsed, final Result result) {
+        List<Pending> ready = new ArrayList<>();
+        List<Pending> rejected = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            boolean saturated = inFlight >= currentLimit();
+            inFlight--;
+            latency = latency == 0 ? elapsed : latency + (elapsed - latency) * LATENCY_WEIGHT;
+            boolean slow = elapsed > concurrency.getLatencyThreshold().toNanos();
+            recordOutcome(result == Result.FAILURE || slow, now);
+            if (result != Result.SUCCESS || slow) {
+                if (now - decreasedAt > latency) {
+                    limit = Math.max(concurrency.getMinLimit(), limit * concurrency.getBackoffRatio());
+                    decreasedAt = now;
+                }
+            } else if (saturated) {
+                limit = Math.min(concurrency.getMaxLimit(), limit + 1 / limit);
+            }
+            if (state == State.OPEN) {
+                rejected.addAll(waiting);
+                waiting.clear();
+            }
+            while (!waiting.isEmpty() && inFlight < currentLimit()) {
+                inFlight++;
+                ready.add(waiting.poll());
+            }
+        }
+        rejected.forEach(pending -> pending.rejected()
+                .accept(new OriginUnavailableException(origin + ": circuit breaker is open")));
+        ready.forEach(pending -> pending.task().run());
+    }
+
+    /**
+     * Breaker state.
+     *
+     * @return state
+     */
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Current in-flight limit.
+     *
+     * @return limit
+     */
+    synchronized int getLimit() {
+        return currentLimit();
+    }
+
+    /**
+     * Requests in flight.
+     *
+     * @return in-flight requests
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Average latency.
+     *
+     * @return latency, nanoseconds
+     */
+    synchronized long getLatency() {
+        return (long) latency;
+    }
+
+    /**
+     * Updates breaker state. Must be called holding the lock.
+     *
+     * @param failure whether request failed
+     * @param now     current time
+     */
+    private void recordOutcome(final boolean failure, final long now) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failure) {
+                open(now);
+            } else {
+                state = State.CLOSED;
+                Arrays.fill(window, false);
+                windowCalls = 0;
+                windowFailures = 0;
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        if (windowCalls == window.length) {
+            windowFailures -= window[windowPosition] ? 1 : 0;
+        } else {
+            windowCalls++;
+        }
+        window[windowPosition] = failure;
+        windowFailures += failure ? 1 : 0;
+        windowPosition = (windowPosition + 1) % window.length;
+        if (windowCalls >= breaker.getMinimumCalls()
+                && windowFailures >= breaker.getFailureRateThreshold() * windowCalls) {
+            open(now);
+        }
+    }
+
+    /**
+     * Opens breaker. Must be called holding the lock.
+     *
+     * @param now current time
+     */
+    private void open(final long now) {
+        state = State.OPEN;
+        openedAt = now;
+    }
+
+    /**
+     * Integer part of the limit.
+     *
+     * @return limit
+     */
+    private int currentLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    /**
+     * Request waiting for a free slot.
+     *
+     * @param task     task sending request
+     * @param rejected rejection callback
+     */
+    private record Pending(Runnable task, Consumer<? super OriginUnavailableException> rejected) {
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.artemoons.webpush.delivery;
+
+/**
+ * Thrown when a request is rejected without being sent because its push service origin is isolated.
+ */
+public class OriginUnavailableException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public OriginUnavailableException(final String message) {
+        super(message);
+    }
+
+}
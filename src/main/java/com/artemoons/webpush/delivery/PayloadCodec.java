@@ -0,0 +1,89 @@
+package com.artemoons.webpush.delivery;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional payload compression. Compressed payload is a marker byte followed by zlib-wrapped deflate stream,
+ * service worker recognizes it by the marker and inflates it with {@code DecompressionStream('deflate')}.
+ * Plain payload is JSON and never starts with the marker.
+ */
+public final class PayloadCodec {
+
+    /**
+     * First byte of compressed payload.
+     */
+    public static final byte DEFLATE_MARKER = 1;
+    /**
+     * Inflate buffer size.
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Utility class.
+     */
+    private PayloadCodec() {
+    }
+
+    /**
+     * Compresses payload if it gets shorter.
+     *
+     * @param json      UTF-8 encoded JSON
+     * @param threshold minimal length worth compressing
+     * @return compressed payload with marker, or the JSON itself
+     */
+    public static byte[] encode(final byte[] json, final int threshold) {
+        if (json.length < threshold) {
+            return json;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(json);
+            deflater.finish();
+            byte[] output = new byte[json.length];
+            output[0] = DEFLATE_MARKER;
+            int length = 1;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(output, length) : json;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Restores JSON from payload.
+     *
+     * @param payload payload, compressed or not
+     * @return UTF-8 encoded JSON
+     * @throws IllegalArgumentException if compressed payload is damaged
+     */
+    public static byte[] decode(final byte[] payload) {
+        if (payload.length == 0 || payload[0] != DEFLATE_MARKER) {
+            return payload;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, 1, payload.length - 1);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length * 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed payload is truncated");
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Compressed payload is damaged", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Message doesn't fit into a single Web Push record.
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class PayloadTooLargeException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public PayloadTooLargeException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.dto.Urgency;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Message serialized once per broadcast and shared by all delivery tasks, with its delivery options.
+ */
+@Getter
+@AllArgsConstructor
+public class PreparedMessage {
+
+    /**
+     * Default time to live, seconds.
+     */
+    public static final int DEFAULT_TTL = 180;
+
+    /**
+     * UTF-8 encoded JSON payload, possibly compressed by {@link PayloadCodec}, must not be modified.
+     */
+    private final byte[] payload;
+
+    /**
+     * Time to live, seconds.
+     */
+    private final int ttl;
+
+    /**
+     * Urgency, null if not set.
+     */
+    private final Urgency urgency;
+
+    /**
+     * Collapse topic, null if not set.
+     */
+    private final String topic;
+
+    /**
+     * Constructor of a message with default options.
+     *
+     * @param jsonPayload UTF-8 encoded JSON payload
+     */
+    public PreparedMessage(final byte[] jsonPayload) {
+        this(jsonPayload, DEFAULT_TTL, null, null);
+    }
+
+}
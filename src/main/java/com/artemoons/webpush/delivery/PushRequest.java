@@ -0,0 +1,14 @@
+package com.artemoons.webpush.delivery;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Request to the push service.
+ *
+ * @param endpoint subscription endpoint
+ * @param headers  request headers
+ * @param body     encrypted message
+ */
+public record PushRequest(URI endpoint, Map<String, String> headers, byte[] body) {
+}
@@ -0,0 +1,12 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Response of the push service.
+ *
+ * @param statusCode HTTP status code
+ * @param headers    response headers
+ */
+public record PushResponse(int statusCode, HttpHeaders headers) {
+}
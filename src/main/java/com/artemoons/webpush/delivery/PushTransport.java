@@ -0,0 +1,18 @@
+package com.artemoons.webpush.delivery;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport delivering encrypted messages to push services.
+ */
+public interface PushTransport {
+
+    /**
+     * Sends request to the push service without blocking the caller.
+     *
+     * @param request push request
+     * @return future completed with the push service response or exceptionally on I/O errors
+     */
+    CompletableFuture<PushResponse> send(PushRequest request);
+
+}
@@ -0,0 +1,21 @@
+package com.artemoons.webpush.delivery;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Broadcast is rejected because the delivery queue has too many pending deliveries.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class QueueFullException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public QueueFullException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,488 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.dto.Urgency;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of queued deliveries split into fixed-size memory-mapped segments. Positions are global byte
+ * offsets, segment file name is the offset of its first byte. Record is framed as length, CRC32C and type followed
+ * by the body; record never spans segments, the rest of a segment is skipped with an end marker. Single writer,
+ * any number of readers: readers only see records below the published end offset.
+ * <p>
+ * On open the tail segment is scanned up to the first torn or corrupted record, everything after it is zeroed,
+ * so stale bytes can't be mistaken for records later. Consumer progress is stored separately as checkpoint.
+ */
+@Slf4j
+final class QueueLog implements Closeable {
+
+    /**
+     * Message record: job identifier, payload and delivery options.
+     */
+    static final byte MESSAGE = 1;
+    /**
+     * Delivery record: job identifier and endpoint.
+     */
+    static final byte DELIVERY = 2;
+    /**
+     * End of job record: job identifier, no more deliveries of the job follow.
+     */
+    static final byte END = 3;
+    /**
+     * Done record: job identifier and endpoint, the delivery has finished and isn't repeated after restart.
+     */
+    static final byte DONE = 4;
+    /**
+     * Length value marking the rest of the segment as unused.
+     */
+    private static final int END_OF_SEGMENT = -1;
+    /**
+     * Frame header: length and checksum.
+     */
+    private static final int FRAME_HEADER = Integer.BYTES * 2;
+    /**
+     * Minimum segment size, large enough for any record.
+     */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    /**
+     * Segment file name pattern.
+     */
+    private static final Pattern SEGMENT = Pattern.compile("(\\d{20})\\.seg");
+    /**
+     * Checkpoint file name.
+     */
+    private static final String CHECKPOINT = "checkpoint";
+    /**
+     * Log directory.
+     */
+    private final Path directory;
+    /**
+     * Size of new segments.
+     */
+    private final int segmentSize;
+    /**
+     * Whether checkpoint and {@link #force()} are synced to disk.
+     */
+    private final boolean fsync;
+    /**
+     * Segments by base offset.
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    /**
+     * Segment being written.
+     */
+    private Segment tail;
+    /**
+     * Offset of the next record, published to readers.
+     */
+    private volatile long end;
+
+    /**
+     * Opens log, creating the directory and the first segment if needed.
+     *
+     * @param logDirectory log directory
+     * @param size         size of new segments, bytes
+     * @param sync         whether checkpoint and forced writes are synced to disk
+     * @throws IOException if log can't be opened
+     */
+    QueueLog(final Path logDirectory, final long size, final boolean sync) throws IOException {
+        this.directory = logDirectory;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SEGMENT_SIZE, size));
+        this.fsync = sync;
+        Files.createDirectories(directory);
+        for (Path file : segmentFiles()) {
+            Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+            if (matcher.matches()) {
+                long base = Long.parseLong(matcher.group(1));
+                segments.put(base, map(base, file, Files.size(file)));
+            }
+        }
+        if (segments.isEmpty()) {
+            tail = create(0);
+            end = 0;
+        } else {
+            tail = segments.lastEntry().getValue();
+            end = recover(tail);
+        }
+    }
+
+    /**
+     * Appends record.
+     *
+     * @param type     record type
+     * @param jobId    job identifier
+     * @param endpoint endpoint URL, delivery and done records only
+     * @param message  prepared message, message records only
+     * @return record offset
+     * @throws IOException if new segment can't be created
+     */
+    synchronized long append(final byte type, final String jobId, final String endpoint,
+                             final PreparedMessage message) throws IOException {
+        byte[] body = encode(type, jobId, endpoint, message);
+        int position = (int) (end - tail.base);
+        if (position + FRAME_HEADER + body.length > tail.capacity()) {
+            if (position + Integer.BYTES <= tail.capacity()) {
+                tail.buffer.putInt(position, END_OF_SEGMENT);
+            }
+            tail = create(tail.base + tail.capacity());
+            position = 0;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        tail.buffer.put(position + FRAME_HEADER, body);
+        tail.buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+        tail.buffer.putInt(position, body.length);
+        long offset = tail.base + position;
+        end = offset + FRAME_HEADER + body.length;
+        notifyAll();
+        return offset;
+    }
+
+    /**
+     * Reads record at offset, skipping to the next segment at the end marker.
+     *
+     * @param offset record offset
+     * @return record, null if there is no record at the offset yet
+     */
+    Entry read(final long offset) {
+        long current = offset;
+        while (current < end) {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(current);
+            if (floor == null) {
+                current = segments.firstKey();
+                continue;
+            }
+            Segment segment = floor.getValue();
+            int position = (int) (current - segment.base);
+            Entry entry = position + FRAME_HEADER <= segment.capacity() ? decode(segment, position) : null;
+            if (entry != null) {
+                return entry;
+            }
+            current = segment.base + segment.capacity();
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a record is appended at or after the offset.
+     *
+     * @param offset  offset of the awaited record
+     * @param timeout wait limit, milliseconds
+     * @throws InterruptedException if interrupted
+     */
+    synchronized void await(final long offset, final long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long remaining = timeout;
+        while (end <= offset && remaining > 0) {
+            wait(remaining);
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+    }
+
+    /**
+     * Wakes up readers waiting for records, e.g. on shutdown.
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Forces written records to disk if sync is enabled.
+     */
+    synchronized void force() {
+        if (fsync) {
+            tail.buffer.force();
+        }
+    }
+
+    /**
+     * Offset of the first retained record.
+     *
+     * @return offset
+     */
+    long start() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Offset after the last record.
+     *
+     * @return offset
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * Reads consumer checkpoint.
+     *
+     * @return checkpoint offset, start of the log if there is no checkpoint
+     * @throws IOException if checkpoint can't be read
+     */
+    long readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT);
+        if (!Files.exists(file)) {
+            return start();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < Long.BYTES) {
+            log.warn("Delivery queue checkpoint is damaged, queue is consumed from the start");
+            return start();
+        }
+        return Math.min(end, Math.max(start(), buffer.getLong()));
+    }
+
+    /**
+     * Writes consumer checkpoint atomically.
+     *
+     * @param offset offset of the first record not consumed completely
+     * @throws IOException if checkpoint can't be written
+     */
+    void writeCheckpoint(final long offset) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, offset));
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes segments which end at or before the offset, the tail segment is always kept.
+     *
+     * @param offset offset of the first record still needed
+     * @return number of deleted segments
+     * @throws IOException if segment file can't be deleted
+     */
+    synchronized int release(final long offset) throws IOException {
+        int released = 0;
+        for (Segment segment : segments.values()) {
+            if (segment == tail || segment.base + segment.capacity() > offset) {
+                break;
+            }
+            segments.remove(segment.base);
+            Files.deleteIfExists(segment.file);
+            released++;
+        }
+        return released;
+    }
+
+    /**
+     * Forces tail segment to disk. Mappings are released by garbage collection.
+     */
+    @Override
+    public synchronized void close() {
+        tail.buffer.force();
+    }
+
+    /**
+     * Finds the end of the tail segment and zeroes everything after it.
+     *
+     * @param segment tail segment
+     * @return offset after the last valid record
+     */
+    private long recover(final Segment segment) {
+        int position = 0;
+        while (position + FRAME_HEADER <= segment.capacity()) {
+            Entry entry = decode(segment, position);
+            if (entry == null) {
+                break;
+            }
+            position = (int) (entry.next() - segment.base);
+        }
+        int garbage = 0;
+        for (int i = position; i < segment.capacity(); i++) {
+            if (segment.buffer.get(i) != 0) {
+                segment.buffer.put(i, (byte) 0);
+                garbage++;
+            }
+        }
+        if (garbage > 0) {
+            log.warn("Delivery queue segment {} has torn tail, {} bytes are discarded", segment.file, garbage);
+        }
+        return segment.base + position;
+    }
+
+    /**
+     * Decodes record.
+     *
+     * @param segment  segment
+     * @param position position in the segment
+     * @return record, null at end marker, unwritten space or damaged record
+     */
+    private static Entry decode(final Segment segment, final int position) {
+        MappedByteBuffer buffer = segment.buffer;
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + FRAME_HEADER + length > segment.capacity()) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.get(position + FRAME_HEADER, body);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+            return null;
+        }
+        ByteBuffer input = ByteBuffer.wrap(body);
+        byte type = input.get();
+        String jobId = readString(input);
+        String endpoint = type == DELIVERY || type == DONE ? readString(input) : null;
+        PreparedMessage message = null;
+        if (type == MESSAGE) {
+            byte[] payload = new byte[input.getInt()];
+            input.get(payload);
+            int ttl = input.getInt();
+            int urgency = input.get();
+            String topic = readString(input);
+            message = new PreparedMessage(payload, ttl, urgency == 0 ? null : Urgency.values()[urgency - 1],
+                    topic.isEmpty() ? null : topic);
+        }
+        long offset = segment.base + position;
+        return new Entry(offset, offset + FRAME_HEADER + length, type, jobId, endpoint, message);
+    }
+
+    /**
+     * Encodes record body.
+     *
+     * @param type     record type
+     * @param jobId    job identifier
+     * @param endpoint endpoint URL or null
+     * @param message  prepared message or null
+     * @return body
+     */
+    private static byte[] encode(final byte type, final String jobId, final String endpoint,
+                                 final PreparedMessage message) {
+        byte[] job = jobId.getBytes(StandardCharsets.UTF_8);
+        byte[] url = endpoint == null ? new byte[0] : endpoint.getBytes(StandardCharsets.UTF_8);
+        byte[] topic = type != MESSAGE || message.getTopic() == null ? new byte[0]
+                : message.getTopic().getBytes(StandardCharsets.UTF_8);
+        int size = 1 + Short.BYTES + job.length;
+        if (type == DELIVERY || type == DONE) {
+            size += Short.BYTES + url.length;
+        } else if (type == MESSAGE) {
+            size += Integer.BYTES + message.getPayload().length + Integer.BYTES + 1 + Short.BYTES + topic.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(type).putShort((short) job.length).put(job);
+        if (type == DELIVERY || type == DONE) {
+            buffer.putShort((short) url.length).put(url);
+        } else if (type == MESSAGE) {
+            int urgency = message.getUrgency() == null ? 0 : message.getUrgency().ordinal() + 1;
+            buffer.putInt(message.getPayload().length).put(message.getPayload())
+                    .putInt(message.getTtl())
+                    .put((byte) urgency)
+                    .putShort((short) topic.length).put(topic);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads length-prefixed UTF-8 string.
+     *
+     * @param input buffer
+     * @return string
+     */
+    private static String readString(final ByteBuffer input) {
+        byte[] bytes = new byte[Short.toUnsignedInt(input.getShort())];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates and maps new segment.
+     *
+     * @param base base offset
+     * @return segment
+     * @throws IOException if segment can't be created
+     */
+    private Segment create(final long base) throws IOException {
+        Segment segment = map(base, directory.resolve(String.format("%020d.seg", base)), segmentSize);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    /**
+     * Maps segment file, extending it to the given size.
+     *
+     * @param base base offset
+     * @param file segment file
+     * @param size mapping size
+     * @return segment
+     * @throws IOException if file can't be mapped
+     */
+    private static Segment map(final long base, final Path file, final long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(base, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Lists segment files.
+     *
+     * @return segment files sorted by base offset
+     * @throws IOException if directory can't be listed
+     */
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> SEGMENT.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Log record.
+     *
+     * @param offset   record offset
+     * @param next     offset of the next record
+     * @param type     record type
+     * @param jobId    job identifier
+     * @param endpoint endpoint URL of delivery and done records
+     * @param message  prepared message of message records
+     */
+    record Entry(long offset, long next, byte type, String jobId, String endpoint, PreparedMessage message) {
+    }
+
+    /**
+     * Mapped segment.
+     *
+     * @param base   base offset
+     * @param file   segment file
+     * @param buffer mapping of the whole file
+     */
+    private record Segment(long base, Path file, MappedByteBuffer buffer) {
+
+        /**
+         * Segment size.
+         *
+         * @return bytes
+         */
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+}
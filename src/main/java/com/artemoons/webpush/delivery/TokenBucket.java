@@ -0,0 +1,98 @@
+package com.artemoons.webpush.delivery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket of a single push service origin. Tokens are reserved ahead: caller always gets a token and
+ * is told how long to wait before using it, so waiting deliveries are served in order.
+ */
+final class TokenBucket {
+
+    /**
+     * Nanoseconds in second.
+     */
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Refill rate, tokens per nanosecond.
+     */
+    private final double rate;
+    /**
+     * Bucket capacity.
+     */
+    private final double capacity;
+    /**
+     * Available tokens, negative when reserved ahead.
+     */
+    private double tokens;
+    /**
+     * Time of the last refill, may be in the future while the origin is paused.
+     */
+    private long refilledAt;
+
+    /**
+     * Constructor.
+     *
+     * @param permitsPerSecond refill rate
+     * @param burst            bucket capacity
+     * @param now              current time, nanoseconds
+     */
+    TokenBucket(final double permitsPerSecond, final int burst, final long now) {
+        this.rate = permitsPerSecond / NANOS_PER_SECOND;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @param now current time, nanoseconds
+     * @return time to wait before the token may be used, nanoseconds
+     */
+    synchronized long reserve(final long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate);
+            refilledAt = now;
+        }
+        long wait = refilledAt - now;
+        tokens -= 1;
+        if (tokens < 0) {
+            wait += (long) (-tokens / rate);
+        }
+        return wait;
+    }
+
+    /**
+     * Takes a token only if it's available right away.
+     *
+     * @param now current time, nanoseconds
+     * @return true if token is taken
+     */
+    synchronized boolean tryAcquire(final long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate);
+            refilledAt = now;
+        }
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Stops issuing tokens for a while, e.g. when origin has asked to retry later. Tokens are refilled from
+     * empty bucket afterwards, so the rate recovers gradually.
+     *
+     * @param now   current time, nanoseconds
+     * @param delay pause, nanoseconds
+     */
+    synchronized void pause(final long now, final long delay) {
+        long until = now + delay;
+        if (until > refilledAt) {
+            tokens = Math.min(tokens, 0);
+            refilledAt = until;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.artemoons.webpush.delivery;
+
+import com.artemoons.webpush.ServerKeysService;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of VAPID tokens per push service origin. The token only depends on the audience, so it's
+ * signed once per origin and renewed shortly before expiry.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8292">RFC 8292</a>
+ */
+@Component
+public class VapidTokenCache {
+
+    /**
+     * Subject mail.
+     */
+    public static final String SUBJECT_MAIL = "mailto:example@example.com";
+    /**
+     * Token lifetime, 12 hours.
+     */
+    public static final long TOKEN_LIFETIME = 12 * 60 * 60 * 1000L;
+    /**
+     * Token is renewed when less than this time left, 1 hour.
+     */
+    public static final long RENEWAL_MARGIN = 60 * 60 * 1000L;
+    /**
+     * Server keys.
+     */
+    private final ServerKeysService serverKeysService;
+    /**
+     * Signing algorithm.
+     */
+    private final Algorithm jwtAlgorithm;
+    /**
+     * Tokens by origin.
+     */
+    private final Map<String, VapidToken> tokens = new ConcurrentHashMap<>();
+    /**
+     * Delivery metrics.
+     */
+    private final DeliveryMetrics metrics;
+
+    /**
+     * Constructor.
+     *
+     * @param keysService     server keys
+     * @param deliveryMetrics delivery metrics
+     */
+    @Autowired
+    public VapidTokenCache(final ServerKeysService keysService, final DeliveryMetrics deliveryMetrics) {
+        this.serverKeysService = keysService;
+        this.metrics = deliveryMetrics;
+        this.jwtAlgorithm = Algorithm.ECDSA256(keysService.getPublicKey(), keysService.getPrivateKey());
+    }
+
+    /**
+     * Returns {@code Authorization} header value for the push service origin.
+     *
+     * @param origin push service origin
+     * @return header value
+     */
+    public String authorization(final String origin) {
+        long now = System.currentTimeMillis();
+        VapidToken token = tokens.get(origin);
+        if (token == null || token.expiresAt() - RENEWAL_MARGIN <= now) {
+            token = tokens.compute(origin, (key, current) ->
+                    current == null || current.expiresAt() - RENEWAL_MARGIN <= now ? sign(key, now) : current);
+        }
+        return token.authorization();
+    }
+
+    /**
+     * Extracts audience origin from the endpoint: scheme, host and port if it's given explicitly.
+     *
+     * @param endpoint endpoint URI
+     * @return origin or null if endpoint has no scheme or host
+     */
+    public static String originOf(final URI endpoint) {
+        if (endpoint.getScheme() == null || endpoint.getHost() == null) {
+            return null;
+        }
+        String origin = endpoint.getScheme() + "://" + endpoint.getHost();
+        return endpoint.getPort() == -1 ? origin : origin + ":" + endpoint.getPort();
+    }
+
+    /**
+     * Signs new token.
+     *
+     * @param origin audience
+     * @param now    current time
+     * @return token
+     */
+    private VapidToken sign(final String origin, final long now) {
+        long expiresAt = now + TOKEN_LIFETIME;
+        String token = metrics.getSigning().record(() -> JWT.create()
+                .withAudience(origin)
+                .withExpiresAt(new Date(expiresAt))
+                .withSubject(SUBJECT_MAIL)
+                .sign(jwtAlgorithm));
+        return new VapidToken("vapid t=" + token + ", k=" + serverKeysService.getPublicKeyBase64(), expiresAt);
+    }
+
+    /**
+     * Signed token.
+     *
+     * @param authorization prebuilt header value
+     * @param expiresAt     expiration time, milliseconds
+     */
+    private record VapidToken(String authorization, long expiresAt) {
+    }
+
+}
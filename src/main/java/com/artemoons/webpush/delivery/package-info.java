@@ -0,0 +1,6 @@
+/**
+ * Push delivery pipeline package.
+ *
+ * @author <a href="mailto:github@eeel.ru">Artem Utkin</a>
+ */
+package com.artemoons.webpush.delivery;
@@ -0,0 +1,28 @@
+package com.artemoons.webpush.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Personalized message of a batch, addressed either to a single subscription or to all subscriptions of a user.
+ */
+@Getter
+@AllArgsConstructor
+public class BatchItem {
+
+    /**
+     * Recipient endpoint URL.
+     */
+    private final String endpoint;
+
+    /**
+     * Recipient user identifier.
+     */
+    private final String userId;
+
+    /**
+     * Message.
+     */
+    private final PushMessage payload;
+
+}
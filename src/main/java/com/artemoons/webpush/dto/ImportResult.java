@@ -0,0 +1,30 @@
+package com.artemoons.webpush.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Subscription import result DTO.
+ */
+@Getter
+@AllArgsConstructor
+public class ImportResult {
+
+    /**
+     * Subscriptions stored.
+     */
+    private final long imported;
+
+    /**
+     * Subscriptions rejected as invalid, expired or recently reported gone.
+     */
+    private final long rejected;
+
+    /**
+     * Reason the input was rejected, absent if the whole input was read.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String error;
+
+}
@@ -0,0 +1,80 @@
+package com.artemoons.webpush.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Delivery job status DTO.
+ */
+@Getter
+@Builder
+@AllArgsConstructor
+public class JobStatus {
+
+    /**
+     * Job identifier.
+     */
+    private final String id;
+
+    /**
+     * Job state.
+     */
+    private final String state;
+
+    /**
+     * Creation time.
+     */
+    private final Instant createdAt;
+
+    /**
+     * Completion time.
+     */
+    private final Instant finishedAt;
+
+    /**
+     * Deliveries waiting for the result.
+     */
+    private final long queued;
+
+    /**
+     * Successful deliveries.
+     */
+    private final long sent;
+
+    /**
+     * Removed subscriptions.
+     */
+    private final long gone;
+
+    /**
+     * Failed deliveries.
+     */
+    private final long failed;
+
+    /**
+     * Deliveries rejected by rate limiting.
+     */
+    private final long throttled;
+
+    /**
+     * Deliveries superseded by a newer message with the same topic.
+     */
+    private final long collapsed;
+
+    /**
+     * Batch items without recipients or with invalid payload, queued deliveries to removed subscriptions.
+     */
+    private final long skipped;
+
+    /**
+     * Job identifiers on other cluster members, null if a member hasn't accepted the job. Absent in standalone mode.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Map<String, String> shards;
+
+}
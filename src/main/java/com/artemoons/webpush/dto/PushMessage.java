@@ -1,5 +1,6 @@
 package com.artemoons.webpush.dto;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -24,4 +25,32 @@ public class PushMessage {
      */
     private final String body;
 
+    /**
+     * Optional target expression selecting recipients, e.g. {@code news AND locale:en}. It isn't part of
+     * the delivered payload.
+     */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private final String target;
+
+    /**
+     * Optional time to live, seconds: how long the push service keeps the message for an offline user agent.
+     * It isn't part of the delivered payload.
+     */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private final Integer ttl;
+
+    /**
+     * Optional urgency. It isn't part of the delivered payload.
+     */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private final Urgency urgency;
+
+    /**
+     * Optional collapse topic, up to 32 URL-safe base64 characters. Pending message with the same topic
+     * is replaced by a newer one, both in this service and in the push service. It isn't part of the delivered
+     * payload.
+     */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private final String topic;
+
 }
@@ -4,6 +4,8 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 /**
  * Subscription DTO.
  */
@@ -27,4 +29,19 @@ public class Subscription {
      */
     private final SubscriptionKeys keys;
 
+    /**
+     * Optional tags.
+     */
+    private final List<String> tags;
+
+    /**
+     * Optional locale, e.g. en-US.
+     */
+    private final String locale;
+
+    /**
+     * Optional user identifier.
+     */
+    private final String userId;
+
 }
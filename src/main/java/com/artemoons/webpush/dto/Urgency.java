@@ -0,0 +1,42 @@
+package com.artemoons.webpush.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Message urgency, lets user agents on battery save power by receiving only urgent messages.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8030#section-5.3">RFC 8030 5.3</a>
+ */
+@Getter
+@AllArgsConstructor
+public enum Urgency {
+
+    /**
+     * On power and Wi-Fi, e.g. advertisements.
+     */
+    @JsonProperty("very-low")
+    VERY_LOW("very-low"),
+    /**
+     * On either power or Wi-Fi, e.g. topic updates.
+     */
+    @JsonProperty("low")
+    LOW("low"),
+    /**
+     * On neither power nor Wi-Fi, e.g. chat messages.
+     */
+    @JsonProperty("normal")
+    NORMAL("normal"),
+    /**
+     * Low battery, e.g. incoming phone call.
+     */
+    @JsonProperty("high")
+    HIGH("high");
+
+    /**
+     * Urgency header value.
+     */
+    private final String value;
+
+}
@@ -0,0 +1,554 @@
+package com.artemoons.webpush.subscription;
+
+import com.artemoons.webpush.CryptoService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Registry keeping subscribers off-heap in fixed-size slots, so millions of subscriptions don't turn into
+ * millions of heap objects. Slot layout: expiration time (8 bytes, {@link Long#MIN_VALUE} if absent), p256dh
+ * (65 bytes), auth (16 bytes), endpoint length (2 bytes), UTF-8 endpoint and targeting attributes encoded as in
+ * {@link SubscriberCodec}, padded to the slot size.
+ * <p>
+ * Endpoints are indexed by an open-addressing hash table of slot numbers held in primitive arrays. Subscribers
+ * are materialized on lookup and during iteration, which costs a public key decoding per subscriber and
+ * broadcast: memory footprint is traded for CPU.
+ */
+@Component
+@ConditionalOnProperty(prefix = "subscription.registry", name = "type", havingValue = "compact")
+public class CompactSubscriberRegistry implements SubscriberRegistry {
+
+    /**
+     * Empty index cell.
+     */
+    private static final int EMPTY = 0;
+    /**
+     * Removed index cell.
+     */
+    private static final int DELETED = -1;
+    /**
+     * No expiration time.
+     */
+    private static final long NO_EXPIRATION = Long.MIN_VALUE;
+    /**
+     * Offset of p256dh in slot.
+     */
+    private static final int P256DH_OFFSET = Long.BYTES;
+    /**
+     * Offset of auth in slot.
+     */
+    private static final int AUTH_OFFSET = P256DH_OFFSET + CryptoService.NUMBER_65;
+    /**
+     * Offset of endpoint length in slot.
+     */
+    private static final int ENDPOINT_LENGTH_OFFSET = AUTH_OFFSET + SubscriberFactory.AUTH_LENGTH;
+    /**
+     * Offset of endpoint in slot.
+     */
+    private static final int ENDPOINT_OFFSET = ENDPOINT_LENGTH_OFFSET + Short.BYTES;
+    /**
+     * Initial index capacity.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * Subscriptions validator.
+     */
+    private final SubscriberFactory subscriberFactory;
+    /**
+     * Slot size.
+     */
+    private final int slotSize;
+    /**
+     * Slots in one segment.
+     */
+    private final int segmentSlots;
+    /**
+     * Segment size, bytes.
+     */
+    private final int segmentSize;
+    /**
+     * Off-heap slot segments.
+     */
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    /**
+     * Guards slots and index.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Occupied slots.
+     */
+    private final BitSet occupied = new BitSet();
+    /**
+     * Endpoint hash of every slot.
+     */
+    private int[] slotHashes = new int[INITIAL_CAPACITY];
+    /**
+     * Free slots stack.
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    /**
+     * Free slots stack size.
+     */
+    private int freeCount;
+    /**
+     * Slots ever allocated.
+     */
+    private int allocated;
+    /**
+     * Index: slot number + 1, {@link #EMPTY} or {@link #DELETED}.
+     */
+    private int[] index = new int[INITIAL_CAPACITY];
+    /**
+     * Used index cells including deleted ones.
+     */
+    private int indexUsed;
+    /**
+     * Number of subscribers.
+     */
+    private volatile int size;
+
+    /**
+     * Constructor.
+     *
+     * @param config  registry configuration
+     * @param factory subscriptions validator
+     * @throws IllegalArgumentException if slot size or segment size is out of range
+     */
+    @Autowired
+    public CompactSubscriberRegistry(final RegistryConfiguration config, final SubscriberFactory factory) {
+        if (config.getSlotSize() <= ENDPOINT_OFFSET) {
+            throw new IllegalArgumentException("Slot size must be greater than " + ENDPOINT_OFFSET);
+        }
+        if (config.getSegmentSlots() <= 0) {
+            throw new IllegalArgumentException("Segment slots must be positive");
+        }
+        this.subscriberFactory = factory;
+        this.slotSize = config.getSlotSize();
+        this.segmentSlots = config.getSegmentSlots();
+        try {
+            // a segment is a single direct buffer, so it must fit into int
+            this.segmentSize = Math.multiplyExact(segmentSlots, slotSize);
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Segment of " + segmentSlots + " slots of " + slotSize
+                    + " bytes exceeds " + Integer.MAX_VALUE + " bytes");
+        }
+    }
+
+    /**
+     * Adds or replaces subscriber.
+     *
+     * @param subscriber subscriber
+     * @throws InvalidSubscriptionException if endpoint doesn't fit into slot
+     */
+    @Override
+    public void put(final Subscriber subscriber) {
+        byte[] endpoint = subscriber.getEndpoint().getBytes(StandardCharsets.UTF_8);
+        int maxLength = slotSize - ENDPOINT_OFFSET;
+        if (endpoint.length + SubscriberCodec.targetingLength(targetingOf(subscriber)) > maxLength) {
+            throw new InvalidSubscriptionException("Endpoint and targeting are longer than " + maxLength + " bytes");
+        }
+        int hash = hash(endpoint);
+        lock.writeLock().lock();
+        try {
+            int cell = find(endpoint, hash);
+            int slot;
+            if (cell >= 0) {
+                slot = index[cell] - 1;
+            } else {
+                slot = allocateSlot();
+                slotHashes[slot] = hash;
+                insert(slot, hash);
+                occupied.set(slot);
+                size++;
+            }
+            write(slot, subscriber, endpoint);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes subscriber.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscriber existed
+     */
+    @Override
+    public boolean remove(final String endpoint) {
+        byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(endpointBytes);
+        lock.writeLock().lock();
+        try {
+            int cell = find(endpointBytes, hash);
+            if (cell < 0) {
+                return false;
+            }
+            int slot = index[cell] - 1;
+            index[cell] = DELETED;
+            occupied.clear(slot);
+            freeSlots[freeCount++] = slot;
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up subscriber, it's materialized from the slot.
+     *
+     * @param endpoint endpoint URL
+     * @return subscriber or null
+     */
+    @Override
+    public Subscriber get(final String endpoint) {
+        byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(endpointBytes);
+        RawSlot raw;
+        lock.readLock().lock();
+        try {
+            int cell = find(endpointBytes, hash);
+            if (cell < 0) {
+                return null;
+            }
+            raw = read(index[cell] - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return restore(raw);
+    }
+
+    /**
+     * Slot of subscriber.
+     *
+     * @param endpoint endpoint URL
+     * @return slot or -1 if not registered
+     */
+    @Override
+    public int slotOf(final String endpoint) {
+        byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(endpointBytes);
+        lock.readLock().lock();
+        try {
+            int cell = find(endpointBytes, hash);
+            return cell < 0 ? -1 : index[cell] - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up subscriber by slot, it's materialized from the slot.
+     *
+     * @param slot slot
+     * @return subscriber or null if slot is free
+     */
+    @Override
+    public Subscriber getBySlot(final int slot) {
+        RawSlot raw;
+        lock.readLock().lock();
+        try {
+            if (slot < 0 || !occupied.get(slot)) {
+                return null;
+            }
+            raw = read(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return restore(raw);
+    }
+
+    /**
+     * Checks subscriber existence.
+     *
+     * @param endpoint endpoint URL
+     * @return true if registered
+     */
+    @Override
+    public boolean contains(final String endpoint) {
+        byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(endpointBytes);
+        lock.readLock().lock();
+        try {
+            return find(endpointBytes, hash) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of subscribers.
+     *
+     * @return size
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Streams subscribers slot by slot, only one subscriber is materialized at a time.
+     *
+     * @return subscribers
+     */
+    @Override
+    public Iterable<Subscriber> subscribers() {
+        return SlotIterator::new;
+    }
+
+    /**
+     * Off-heap memory reserved by slots.
+     *
+     * @return bytes
+     */
+    public long getReservedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) segments.size() * segmentSlots * slotSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds index cell of the endpoint. Must be called holding the lock.
+     *
+     * @param endpoint endpoint bytes
+     * @param hash     endpoint hash
+     * @return cell or -1
+     */
+    private int find(final byte[] endpoint, final int hash) {
+        int mask = index.length - 1;
+        for (int cell = hash & mask; index[cell] != EMPTY; cell = (cell + 1) & mask) {
+            int slot = index[cell] - 1;
+            if (slot >= 0 && slotHashes[slot] == hash && endpointEquals(slot, endpoint)) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts slot into the index, grows the index if needed. Must be called holding the write lock.
+     *
+     * @param slot slot
+     * @param hash endpoint hash
+     */
+    private void insert(final int slot, final int hash) {
+        if ((indexUsed + 1) * 2 > index.length) {
+            rehash(size * 2 + 2 > index.length ? index.length * 2 : index.length);
+        }
+        int mask = index.length - 1;
+        int cell = hash & mask;
+        while (index[cell] != EMPTY) {
+            cell = (cell + 1) & mask;
+        }
+        index[cell] = slot + 1;
+        indexUsed++;
+    }
+
+    /**
+     * Rebuilds the index dropping deleted cells.
+     *
+     * @param capacity new capacity, power of two
+     */
+    private void rehash(final int capacity) {
+        int[] previous = index;
+        index = new int[capacity];
+        indexUsed = 0;
+        int mask = capacity - 1;
+        for (int entry : previous) {
+            if (entry > 0) {
+                int cell = slotHashes[entry - 1] & mask;
+                while (index[cell] != EMPTY) {
+                    cell = (cell + 1) & mask;
+                }
+                index[cell] = entry;
+                indexUsed++;
+            }
+        }
+    }
+
+    /**
+     * Takes free slot or allocates new one. Must be called holding the write lock.
+     *
+     * @return slot
+     */
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (allocated == (long) segments.size() * segmentSlots) {
+            segments.add(ByteBuffer.allocateDirect(segmentSize));
+        }
+        if (allocated == slotHashes.length) {
+            slotHashes = Arrays.copyOf(slotHashes, slotHashes.length * 2);
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        return allocated++;
+    }
+
+    /**
+     * Writes subscriber into slot.
+     *
+     * @param slot       slot
+     * @param subscriber subscriber
+     * @param endpoint   endpoint bytes
+     */
+    private void write(final int slot, final Subscriber subscriber, final byte[] endpoint) {
+        ByteBuffer segment = segments.get(slot / segmentSlots);
+        int offset = (slot % segmentSlots) * slotSize;
+        Long expirationTime = subscriber.getExpirationTime();
+        segment.putLong(offset, expirationTime == null ? NO_EXPIRATION : expirationTime);
+        segment.put(offset + P256DH_OFFSET, subscriber.getP256dh());
+        segment.put(offset + AUTH_OFFSET, subscriber.getAuth());
+        segment.putShort(offset + ENDPOINT_LENGTH_OFFSET, (short) endpoint.length);
+        segment.put(offset + ENDPOINT_OFFSET, endpoint);
+        SubscriberCodec.writeTargeting(segment.duplicate().position(offset + ENDPOINT_OFFSET + endpoint.length),
+                targetingOf(subscriber));
+    }
+
+    /**
+     * Copies slot content to heap. Must be called holding the lock.
+     *
+     * @param slot slot
+     * @return raw slot content
+     */
+    private RawSlot read(final int slot) {
+        ByteBuffer segment = segments.get(slot / segmentSlots);
+        int offset = (slot % segmentSlots) * slotSize;
+        long expirationTime = segment.getLong(offset);
+        byte[] p256dh = new byte[CryptoService.NUMBER_65];
+        segment.get(offset + P256DH_OFFSET, p256dh);
+        byte[] auth = new byte[SubscriberFactory.AUTH_LENGTH];
+        segment.get(offset + AUTH_OFFSET, auth);
+        byte[] endpoint = new byte[Short.toUnsignedInt(segment.getShort(offset + ENDPOINT_LENGTH_OFFSET))];
+        segment.get(offset + ENDPOINT_OFFSET, endpoint);
+        Targeting targeting = SubscriberCodec.readTargeting(
+                segment.duplicate().position(offset + ENDPOINT_OFFSET + endpoint.length));
+        return new RawSlot(new String(endpoint, StandardCharsets.UTF_8),
+                expirationTime == NO_EXPIRATION ? null : expirationTime, p256dh, auth, targeting);
+    }
+
+    /**
+     * Compares slot endpoint with the given one.
+     *
+     * @param slot     slot
+     * @param endpoint endpoint bytes
+     * @return true if equal
+     */
+    private boolean endpointEquals(final int slot, final byte[] endpoint) {
+        ByteBuffer segment = segments.get(slot / segmentSlots);
+        int offset = (slot % segmentSlots) * slotSize;
+        if (Short.toUnsignedInt(segment.getShort(offset + ENDPOINT_LENGTH_OFFSET)) != endpoint.length) {
+            return false;
+        }
+        for (int i = 0; i < endpoint.length; i++) {
+            if (segment.get(offset + ENDPOINT_OFFSET + i) != endpoint[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds subscriber from slot content.
+     *
+     * @param raw slot content
+     * @return subscriber
+     */
+    private Subscriber restore(final RawSlot raw) {
+        return subscriberFactory.restore(raw.endpoint(), raw.expirationTime(), raw.p256dh(), raw.auth(),
+                raw.targeting());
+    }
+
+    /**
+     * Subscriber targeting, never null.
+     *
+     * @param subscriber subscriber
+     * @return targeting
+     */
+    private static Targeting targetingOf(final Subscriber subscriber) {
+        return subscriber.getTargeting() == null ? Targeting.NONE : subscriber.getTargeting();
+    }
+
+    /**
+     * Endpoint hash, spread so that low bits are usable for the index.
+     *
+     * @param endpoint endpoint bytes
+     * @return hash
+     */
+    private static int hash(final byte[] endpoint) {
+        int hash = Arrays.hashCode(endpoint);
+        return hash ^ (hash >>> Short.SIZE);
+    }
+
+    /**
+     * Slot content copied to heap.
+     *
+     * @param endpoint       endpoint URL
+     * @param expirationTime expiration time
+     * @param p256dh         public key
+     * @param auth           authentication secret
+     * @param targeting      targeting attributes
+     */
+    private record RawSlot(String endpoint, Long expirationTime, byte[] p256dh, byte[] auth, Targeting targeting) {
+    }
+
+    /**
+     * Iterator over occupied slots, each step takes the read lock only to copy one slot.
+     */
+    private final class SlotIterator implements Iterator<Subscriber> {
+
+        /**
+         * Next slot to look at.
+         */
+        private int position;
+        /**
+         * Prefetched slot.
+         */
+        private RawSlot next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            lock.readLock().lock();
+            try {
+                int slot = occupied.nextSetBit(position);
+                if (slot < 0) {
+                    return false;
+                }
+                next = read(slot);
+                position = slot + 1;
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public Subscriber next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RawSlot raw = next;
+            next = null;
+            return restore(raw);
+        }
+    }
+
+}
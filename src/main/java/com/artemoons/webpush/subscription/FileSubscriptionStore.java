@@ -0,0 +1,554 @@
+package com.artemoons.webpush.subscription;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * File-backed subscription store. Every change is appended to a binary journal, journal is periodically compacted
+ * into a snapshot. On startup snapshot and journals are replayed through memory-mapped reads.
+ * <p>
+ * Compaction switches writes to the next journal generation first and then writes the snapshot of live
+ * subscriptions, so subscribe requests aren't blocked while the snapshot is written. Snapshot header stores the
+ * first journal generation it doesn't include.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "subscription.store", name = "type", havingValue = "file", matchIfMissing = true)
+public class FileSubscriptionStore implements SubscriptionStore {
+
+    /**
+     * Snapshot file name.
+     */
+    private static final String SNAPSHOT = "snapshot.bin";
+    /**
+     * Journal file name pattern.
+     */
+    private static final Pattern JOURNAL = Pattern.compile("journal-(\\d+)\\.log");
+    /**
+     * Snapshot header: magic and generation.
+     */
+    private static final int SNAPSHOT_HEADER = Integer.BYTES + Long.BYTES;
+    /**
+     * Snapshot magic.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x57505353;
+    /**
+     * Maximum size of a single memory-mapped region.
+     */
+    private static final long MAX_MAPPED_REGION = 1024L * 1024 * 1024;
+    /**
+     * Snapshot write buffer size.
+     */
+    private static final int WRITE_BUFFER = 64 * 1024;
+    /**
+     * Store configuration.
+     */
+    private final StoreConfiguration configuration;
+    /**
+     * Subscriptions validator.
+     */
+    private final SubscriberFactory subscriberFactory;
+    /**
+     * Store directory.
+     */
+    private final Path directory;
+    /**
+     * Live subscribers.
+     */
+    private final SubscriberRegistry subscribers;
+    /**
+     * Targeting index.
+     */
+    private final SubscriberIndex index;
+    /**
+     * Journal records written since last compaction.
+     */
+    private final AtomicLong journalRecords = new AtomicLong();
+    /**
+     * Expirations and tombstones.
+     */
+    private final SubscriptionExpiry expiry;
+    /**
+     * Compaction and expiry scheduler.
+     */
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Journal lock, guards journal channel and generation.
+     */
+    private final Object journalLock = new Object();
+    /**
+     * Current journal.
+     */
+    private FileChannel journal;
+    /**
+     * Current journal generation.
+     */
+    private long generation;
+
+    /**
+     * Constructor.
+     *
+     * @param config   store configuration
+     * @param factory  subscriptions validator
+     * @param registry live subscribers registry
+     */
+    @Autowired
+    public FileSubscriptionStore(final StoreConfiguration config, final SubscriberFactory factory,
+                                 final SubscriberRegistry registry) {
+        this.configuration = config;
+        this.subscriberFactory = factory;
+        this.subscribers = registry;
+        this.index = new SubscriberIndex(registry);
+        this.directory = Paths.get(config.getDirectory());
+        this.expiry = new SubscriptionExpiry(config);
+    }
+
+    /**
+     * Replays snapshot and journals, opens new journal and schedules compaction and expiry.
+     *
+     * @throws IOException if store can't be opened
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+
+        Map<String, SubscriberCodec.Record> records = new HashMap<>();
+        long firstGeneration = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            firstGeneration = replay(snapshot, records);
+        }
+        long lastGeneration = firstGeneration - 1;
+        for (Path file : journals()) {
+            long journalGeneration = generationOf(file);
+            if (journalGeneration < firstGeneration) {
+                Files.delete(file);
+            } else {
+                replay(file, records);
+                lastGeneration = Math.max(lastGeneration, journalGeneration);
+            }
+        }
+        restore(records);
+
+        synchronized (journalLock) {
+            generation = lastGeneration + 1;
+            journal = openJournal(generation);
+        }
+        log.info("Loaded {} subscriptions in {} ms", subscribers.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+        long interval = configuration.getCompactInterval().toMillis();
+        maintenance.scheduleWithFixedDelay(this::compactIfNeeded, interval, interval, TimeUnit.MILLISECONDS);
+        long tick = configuration.getExpiryTick().toMillis();
+        maintenance.scheduleAtFixedRate(() -> sweep(System.currentTimeMillis()), tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops compaction and expiry, closes journal.
+     *
+     * @throws IOException if journal can't be closed
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        maintenance.shutdownNow();
+        synchronized (journalLock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces subscription, the change is journaled first.
+     *
+     * @param subscriber subscriber
+     */
+    @Override
+    public void put(final Subscriber subscriber) {
+        synchronized (journalLock) {
+            if (expiry.isBuried(subscriber.getEndpoint())) {
+                throw new InvalidSubscriptionException("Subscription has been reported gone by push service");
+            }
+            append(SubscriberCodec.encodePut(subscriber));
+            subscribers.put(subscriber);
+            index.add(subscriber);
+            expiry.schedule(subscriber);
+        }
+    }
+
+    /**
+     * Adds or replaces subscriptions, the whole batch is journaled with a single write.
+     *
+     * @param batch subscribers
+     * @return number of stored subscriptions
+     */
+    @Override
+    public int putAll(final List<Subscriber> batch) {
+        synchronized (journalLock) {
+            List<Subscriber> accepted = batch.stream()
+                    .filter(subscriber -> !expiry.isBuried(subscriber.getEndpoint()))
+                    .toList();
+            append(accepted.stream()
+                    .map(subscriber -> ByteBuffer.wrap(SubscriberCodec.encodePut(subscriber)))
+                    .toArray(ByteBuffer[]::new));
+            for (Subscriber subscriber : accepted) {
+                subscribers.put(subscriber);
+                index.add(subscriber);
+                expiry.schedule(subscriber);
+            }
+            return accepted.size();
+        }
+    }
+
+    /**
+     * Removes subscription, the change is journaled if subscription existed.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscription existed
+     */
+    @Override
+    public boolean remove(final String endpoint) {
+        synchronized (journalLock) {
+            if (!subscribers.contains(endpoint)) {
+                return false;
+            }
+            expiry.cancel(endpoint);
+            append(SubscriberCodec.encodeRemove(endpoint));
+            index.remove(endpoint);
+            subscribers.remove(endpoint);
+            return true;
+        }
+    }
+
+    /**
+     * Removes subscription reported gone by the push service and keeps a tombstone in memory.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscription existed
+     */
+    @Override
+    public boolean bury(final String endpoint) {
+        synchronized (journalLock) {
+            expiry.bury(endpoint);
+            return remove(endpoint);
+        }
+    }
+
+    /**
+     * Looks up subscription.
+     *
+     * @param endpoint endpoint URL
+     * @return subscriber or null
+     */
+    @Override
+    public Subscriber get(final String endpoint) {
+        return subscribers.get(endpoint);
+    }
+
+    /**
+     * Checks subscription existence.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscribed
+     */
+    @Override
+    public boolean contains(final String endpoint) {
+        return subscribers.contains(endpoint);
+    }
+
+    /**
+     * Number of subscriptions.
+     *
+     * @return size
+     */
+    @Override
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Weakly consistent view of all subscriptions.
+     *
+     * @return subscribers
+     */
+    @Override
+    public Iterable<Subscriber> subscribers() {
+        return subscribers.subscribers();
+    }
+
+    /**
+     * Subscriptions matching target expression.
+     *
+     * @param target target expression
+     * @return matching subscribers
+     */
+    @Override
+    public Iterable<Subscriber> subscribers(final TagExpression target) {
+        return index.select(target);
+    }
+
+    /**
+     * Writes snapshot of live subscriptions and drops journals it covers.
+     *
+     * @throws IOException if snapshot can't be written
+     */
+    public void compact() throws IOException {
+        long snapshotGeneration;
+        synchronized (journalLock) {
+            journal.close();
+            generation++;
+            journal = openJournal(generation);
+            snapshotGeneration = generation;
+            journalRecords.set(0);
+        }
+
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel),
+                     WRITE_BUFFER)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+            header.putInt(SNAPSHOT_MAGIC).putLong(snapshotGeneration);
+            output.write(header.array());
+            for (Subscriber subscriber : subscribers.subscribers()) {
+                output.write(SubscriberCodec.encodePut(subscriber));
+            }
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path file : journals()) {
+            if (generationOf(file) < snapshotGeneration) {
+                Files.delete(file);
+            }
+        }
+        log.info("Subscription store compacted, {} subscriptions", subscribers.size());
+    }
+
+    /**
+     * Runs compaction when enough journal records are accumulated.
+     */
+    private void compactIfNeeded() {
+        if (journalRecords.get() < configuration.getCompactThreshold()) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException | RuntimeException ex) {
+            log.error("Subscription store compaction failed", ex);
+        }
+    }
+
+    /**
+     * Appends record to the current journal. Must be called holding journal lock.
+     *
+     * @param record framed record
+     */
+    private void append(final byte[] record) {
+        append(new ByteBuffer[]{ByteBuffer.wrap(record)});
+    }
+
+    /**
+     * Appends records to the current journal with a single gathering write. Must be called holding journal lock.
+     *
+     * @param records framed records
+     */
+    private void append(final ByteBuffer[] records) {
+        try {
+            long remaining = 0;
+            for (ByteBuffer record : records) {
+                remaining += record.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= journal.write(records);
+            }
+            if (configuration.isFsync()) {
+                journal.force(false);
+            }
+            journalRecords.addAndGet(records.length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Subscription journal write failed", ex);
+        }
+    }
+
+    /**
+     * Opens journal for appending.
+     *
+     * @param journalGeneration generation
+     * @return journal channel
+     * @throws IOException if journal can't be opened
+     */
+    private FileChannel openJournal(final long journalGeneration) throws IOException {
+        Path file = directory.resolve(String.format("journal-%016d.log", journalGeneration));
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Lists journal files sorted by generation.
+     *
+     * @return journal files
+     * @throws IOException if directory can't be listed
+     */
+    private List<Path> journals() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> JOURNAL.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Extracts journal generation from file name.
+     *
+     * @param file journal file
+     * @return generation
+     */
+    private static long generationOf(final Path file) {
+        Matcher matcher = JOURNAL.matcher(file.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a journal: " + file);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Replays snapshot or journal into the map of latest records. File is read through memory-mapped regions,
+     * a torn or corrupted tail stops the replay of that file.
+     *
+     * @param file    snapshot or journal
+     * @param records latest record by endpoint
+     * @return snapshot generation, 0 for journals
+     * @throws IOException if file can't be read
+     */
+    private long replay(final Path file, final Map<String, SubscriberCodec.Record> records) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long snapshotGeneration = 0;
+            boolean isSnapshot = file.getFileName().toString().equals(SNAPSHOT);
+            if (isSnapshot) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER);
+                if (header.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a subscription snapshot: " + file);
+                }
+                snapshotGeneration = header.getLong();
+                position = SNAPSHOT_HEADER;
+            }
+            while (position < size) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, MAX_MAPPED_REGION));
+                try {
+                    SubscriberCodec.Record record = SubscriberCodec.decode(region);
+                    while (record != null) {
+                        if (!isSnapshot) {
+                            journalRecords.incrementAndGet();
+                        }
+                        if (record.type() == SubscriberCodec.PUT) {
+                            records.put(record.endpoint(), record);
+                        } else {
+                            records.remove(record.endpoint());
+                        }
+                        record = SubscriberCodec.decode(region);
+                    }
+                } catch (IllegalStateException ex) {
+                    log.warn("{} is corrupted, replay stopped: {}", file, ex.getMessage());
+                    break;
+                }
+                if (region.position() == 0) {
+                    log.warn("{} has incomplete record at the end, it's ignored", file);
+                    break;
+                }
+                position += region.position();
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Removes expired subscriptions.
+     *
+     * @param now current time, milliseconds
+     */
+    void sweep(final long now) {
+        List<String> expired = expiry.advance(now);
+        long removed = expired.stream().filter(endpoint -> expire(endpoint, now)).count();
+        if (removed > 0) {
+            log.info("Removed {} expired subscriptions", removed);
+        }
+    }
+
+    /**
+     * Removes subscription if it's still expired, it may have been renewed meanwhile.
+     *
+     * @param endpoint endpoint URL
+     * @param now      current time, milliseconds
+     * @return true if removed
+     */
+    private boolean expire(final String endpoint, final long now) {
+        synchronized (journalLock) {
+            Subscriber subscriber = subscribers.get(endpoint);
+            return subscriber != null && subscriber.isExpired(now) && remove(endpoint);
+        }
+    }
+
+    /**
+     * Converts replayed records to subscribers, key material is decoded in parallel. Records have been validated
+     * before they were journaled, so keys are only decoded, not checked again.
+     *
+     * @param records latest record by endpoint
+     */
+    private void restore(final Map<String, SubscriberCodec.Record> records) {
+        AtomicLong skipped = new AtomicLong();
+        records.values().parallelStream().forEach(record -> {
+            try {
+                Subscriber subscriber = subscriberFactory.restore(record.endpoint(), record.expirationTime(),
+                        record.p256dh(), record.auth(), record.targeting());
+                subscribers.put(subscriber);
+                index.add(subscriber);
+                expiry.schedule(subscriber);
+            } catch (InvalidSubscriptionException ex) {
+                skipped.incrementAndGet();
+            }
+        });
+        if (skipped.get() > 0) {
+            log.warn("{} stored subscriptions are invalid and skipped", skipped.get());
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.artemoons.webpush.subscription;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Target expression can't be parsed.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidExpressionException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public InvalidExpressionException(final String message) {
+        super(message);
+    }
+
+}
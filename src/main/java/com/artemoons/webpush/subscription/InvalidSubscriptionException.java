@@ -0,0 +1,21 @@
+package com.artemoons.webpush.subscription;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Subscription can't be accepted because of malformed endpoint or keys.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidSubscriptionException extends RuntimeException {
+
+    /**
+     * Constructor.
+     *
+     * @param message reason
+     */
+    public InvalidSubscriptionException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.artemoons.webpush.subscription;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default registry keeping subscribers in a concurrent hash map. Lookups are lock-free, changes and lookups by slot
+ * are serialized.
+ */
+@Component
+@ConditionalOnProperty(prefix = "subscription.registry", name = "type", havingValue = "map", matchIfMissing = true)
+public final class MapSubscriberRegistry implements SubscriberRegistry {
+
+    /**
+     * Initial capacity of slot arrays.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * Subscribers by endpoint.
+     */
+    private final Map<String, Entry> subscribers = new ConcurrentHashMap<>();
+    /**
+     * Subscribers by slot.
+     */
+    private Subscriber[] slots = new Subscriber[INITIAL_CAPACITY];
+    /**
+     * Free slots stack.
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    /**
+     * Free slots stack size.
+     */
+    private int freeCount;
+    /**
+     * Slots ever allocated.
+     */
+    private int allocated;
+
+    @Override
+    public synchronized void put(final Subscriber subscriber) {
+        Entry existing = subscribers.get(subscriber.getEndpoint());
+        int slot = existing == null ? allocateSlot() : existing.slot();
+        slots[slot] = subscriber;
+        subscribers.put(subscriber.getEndpoint(), new Entry(slot, subscriber));
+    }
+
+    @Override
+    public synchronized boolean remove(final String endpoint) {
+        Entry entry = subscribers.remove(endpoint);
+        if (entry == null) {
+            return false;
+        }
+        slots[entry.slot()] = null;
+        freeSlots[freeCount++] = entry.slot();
+        return true;
+    }
+
+    @Override
+    public Subscriber get(final String endpoint) {
+        Entry entry = subscribers.get(endpoint);
+        return entry == null ? null : entry.subscriber();
+    }
+
+    @Override
+    public int slotOf(final String endpoint) {
+        Entry entry = subscribers.get(endpoint);
+        return entry == null ? -1 : entry.slot();
+    }
+
+    @Override
+    public synchronized Subscriber getBySlot(final int slot) {
+        return slot >= 0 && slot < allocated ? slots[slot] : null;
+    }
+
+    @Override
+    public boolean contains(final String endpoint) {
+        return subscribers.containsKey(endpoint);
+    }
+
+    @Override
+    public int size() {
+        return subscribers.size();
+    }
+
+    @Override
+    public Iterable<Subscriber> subscribers() {
+        return () -> subscribers.values().stream().map(Entry::subscriber).iterator();
+    }
+
+    /**
+     * Takes free slot or the next one. Must be called holding the lock.
+     *
+     * @return slot
+     */
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (allocated == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        return allocated++;
+    }
+
+    /**
+     * Registered subscriber.
+     *
+     * @param slot       slot
+     * @param subscriber subscriber
+     */
+    private record Entry(int slot, Subscriber subscriber) {
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.artemoons.webpush.subscription;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-persistent subscription store, subscriptions are lost on restart.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "subscription.store", name = "type", havingValue = "memory")
+public final class MemorySubscriptionStore implements SubscriptionStore {
+
+    /**
+     * Subscribers registry.
+     */
+    private final SubscriberRegistry registry;
+    /**
+     * Targeting index.
+     */
+    private final SubscriberIndex index;
+    /**
+     * Store configuration.
+     */
+    private final StoreConfiguration configuration;
+    /**
+     * Expirations and tombstones.
+     */
+    private final SubscriptionExpiry expiry;
+    /**
+     * Expiry sweeper, started with the store.
+     */
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Constructor with default configuration.
+     *
+     * @param subscriberRegistry subscribers registry
+     */
+    public MemorySubscriptionStore(final SubscriberRegistry subscriberRegistry) {
+        this(subscriberRegistry, new StoreConfiguration());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param subscriberRegistry subscribers registry
+     * @param config             store configuration
+     */
+    @Autowired
+    public MemorySubscriptionStore(final SubscriberRegistry subscriberRegistry, final StoreConfiguration config) {
+        this.registry = subscriberRegistry;
+        this.index = new SubscriberIndex(subscriberRegistry);
+        this.configuration = config;
+        this.expiry = new SubscriptionExpiry(config);
+    }
+
+    /**
+     * Starts expiry sweeper.
+     */
+    @PostConstruct
+    public void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = configuration.getExpiryTick().toMillis();
+        sweeper.scheduleAtFixedRate(() -> sweep(System.currentTimeMillis()), tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops expiry sweeper.
+     */
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    @Override
+    public synchronized void put(final Subscriber subscriber) {
+        if (expiry.isBuried(subscriber.getEndpoint())) {
+            throw new InvalidSubscriptionException("Subscription has been reported gone by push service");
+        }
+        registry.put(subscriber);
+        index.add(subscriber);
+        expiry.schedule(subscriber);
+    }
+
+    @Override
+    public synchronized int putAll(final List<Subscriber> batch) {
+        return SubscriptionStore.super.putAll(batch);
+    }
+
+    @Override
+    public synchronized boolean remove(final String endpoint) {
+        expiry.cancel(endpoint);
+        index.remove(endpoint);
+        return registry.remove(endpoint);
+    }
+
+    @Override
+    public synchronized boolean bury(final String endpoint) {
+        expiry.bury(endpoint);
+        index.remove(endpoint);
+        return registry.remove(endpoint);
+    }
+
+    /**
+     * Removes expired subscriptions.
+     *
+     * @param now current time, milliseconds
+     */
+    void sweep(final long now) {
+        List<String> expired = expiry.advance(now);
+        long removed = expired.stream().filter(endpoint -> expire(endpoint, now)).count();
+        if (removed > 0) {
+            log.info("Removed {} expired subscriptions", removed);
+        }
+    }
+
+    /**
+     * Removes subscription if it's still expired, it may have been renewed meanwhile.
+     *
+     * @param endpoint endpoint URL
+     * @param now      current time, milliseconds
+     * @return true if removed
+     */
+    private synchronized boolean expire(final String endpoint, final long now) {
+        Subscriber subscriber = registry.get(endpoint);
+        return subscriber != null && subscriber.isExpired(now) && remove(endpoint);
+    }
+
+    @Override
+    public Subscriber get(final String endpoint) {
+        return registry.get(endpoint);
+    }
+
+    @Override
+    public boolean contains(final String endpoint) {
+        return registry.contains(endpoint);
+    }
+
+    @Override
+    public int size() {
+        return registry.size();
+    }
+
+    @Override
+    public Iterable<Subscriber> subscribers() {
+        return registry.subscribers();
+    }
+
+    @Override
+    public Iterable<Subscriber> subscribers(final TagExpression target) {
+        return index.select(target);
+    }
+
+}
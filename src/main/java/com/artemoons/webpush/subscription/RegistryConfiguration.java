@@ -0,0 +1,41 @@
+package com.artemoons.webpush.subscription;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Subscribers registry configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "subscription.registry")
+public class RegistryConfiguration {
+
+    /**
+     * Default slot size of the compact registry, bytes.
+     */
+    public static final int DEFAULT_SLOT_SIZE = 512;
+    /**
+     * Default number of slots in one off-heap segment.
+     */
+    public static final int DEFAULT_SEGMENT_SLOTS = 64 * 1024;
+
+    /**
+     * Registry type: map or compact.
+     */
+    private String type = "map";
+
+    /**
+     * Fixed slot size of the compact registry, limits endpoint length.
+     */
+    private int slotSize = DEFAULT_SLOT_SIZE;
+
+    /**
+     * Number of slots allocated at once by the compact registry.
+     */
+    private int segmentSlots = DEFAULT_SEGMENT_SLOTS;
+
+}
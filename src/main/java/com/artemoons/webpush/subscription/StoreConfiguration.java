@@ -0,0 +1,63 @@
+package com.artemoons.webpush.subscription;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Subscription store configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "subscription.store")
+public class StoreConfiguration {
+
+    /**
+     * Default number of journal records triggering compaction.
+     */
+    public static final int DEFAULT_COMPACT_THRESHOLD = 100_000;
+    /**
+     * Default tombstone retention, minutes.
+     */
+    public static final int DEFAULT_TOMBSTONE_RETENTION = 10;
+
+    /**
+     * Store type: file or memory.
+     */
+    private String type = "file";
+
+    /**
+     * Directory of the file store.
+     */
+    private String directory = "data/subscriptions";
+
+    /**
+     * How often journal size is checked for compaction.
+     */
+    private Duration compactInterval = Duration.ofMinutes(1);
+
+    /**
+     * Journal records since last compaction which trigger new compaction.
+     */
+    private long compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+    /**
+     * Whether every journal write is forced to disk.
+     */
+    private boolean fsync;
+
+    /**
+     * Resolution of subscription expiry.
+     */
+    private Duration expiryTick = Duration.ofSeconds(1);
+
+    /**
+     * How long endpoints reported gone by the push service can't be subscribed again.
+     */
+    private Duration tombstoneRetention = Duration.ofMinutes(DEFAULT_TOMBSTONE_RETENTION);
+
+}
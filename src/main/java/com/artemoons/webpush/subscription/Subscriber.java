@@ -0,0 +1,66 @@
+package com.artemoons.webpush.subscription;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.net.URI;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * Validated subscription with key material decoded once at subscribe time.
+ */
+@Getter
+@AllArgsConstructor
+public class Subscriber {
+
+    /**
+     * Endpoint URL.
+     */
+    private final String endpoint;
+
+    /**
+     * Parsed endpoint.
+     */
+    private final URI uri;
+
+    /**
+     * Push service origin.
+     */
+    private final String origin;
+
+    /**
+     * Expiration time, null if subscription doesn't expire.
+     */
+    private final Long expirationTime;
+
+    /**
+     * User agent public key.
+     */
+    private final ECPublicKey publicKey;
+
+    /**
+     * User agent public key, uncompressed point (65 bytes).
+     */
+    private final byte[] p256dh;
+
+    /**
+     * Authentication secret (16 bytes).
+     */
+    private final byte[] auth;
+
+    /**
+     * Attributes the subscriber can be targeted by.
+     */
+    private final Targeting targeting;
+
+    /**
+     * Checks whether subscription has expired.
+     *
+     * @param now current time, milliseconds
+     * @return true if expiration time has passed
+     */
+    public boolean isExpired(final long now) {
+        return expirationTime != null && expirationTime <= now;
+    }
+
+}
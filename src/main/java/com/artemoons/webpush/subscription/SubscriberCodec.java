@@ -0,0 +1,294 @@
+package com.artemoons.webpush.subscription;
+
+import com.artemoons.webpush.CryptoService;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of subscription records. Every record is framed as type (1 byte), body length (4 bytes),
+ * CRC32 of the body (4 bytes) and body, so torn writes at the end of a file are detected.
+ * <p>
+ * PUT body: endpoint length (2 bytes), UTF-8 endpoint, expiration flag (1 byte), expiration time (8 bytes,
+ * only if flag is set), p256dh (65 bytes), auth (16 bytes) and, if subscriber has any, targeting attributes.
+ * REMOVE body: endpoint length and endpoint.
+ * <p>
+ * Targeting: user identifier, locale and every tag as length (1 byte, 0 if absent) and ASCII value, tags are
+ * preceded by their count (1 byte).
+ */
+public final class SubscriberCodec {
+
+    /**
+     * Subscription added or replaced.
+     */
+    public static final byte PUT = 1;
+    /**
+     * Subscription removed.
+     */
+    public static final byte REMOVE = 2;
+    /**
+     * Frame header length.
+     */
+    public static final int FRAME_HEADER = 1 + Integer.BYTES + Integer.BYTES;
+    /**
+     * Maximum endpoint length, bytes.
+     */
+    public static final int MAX_ENDPOINT_LENGTH = 0xFFFF;
+    /**
+     * Maximum encoded targeting length.
+     */
+    public static final int MAX_TARGETING_LENGTH = 1 + (2 + Targeting.MAX_TAGS) * (1 + Targeting.MAX_VALUE_LENGTH);
+    /**
+     * Maximum body length, anything larger is treated as corruption.
+     */
+    private static final int MAX_BODY_LENGTH = Short.BYTES + MAX_ENDPOINT_LENGTH + 1 + Long.BYTES
+            + CryptoService.NUMBER_65 + SubscriberFactory.AUTH_LENGTH + MAX_TARGETING_LENGTH;
+
+    /**
+     * Utility class.
+     */
+    private SubscriberCodec() {
+    }
+
+    /**
+     * Decoded record.
+     *
+     * @param type           PUT or REMOVE
+     * @param endpoint       endpoint URL
+     * @param expirationTime expiration time, PUT only
+     * @param p256dh         public key, PUT only
+     * @param auth           authentication secret, PUT only
+     * @param targeting      targeting attributes, PUT only
+     */
+    public record Record(byte type, String endpoint, Long expirationTime, byte[] p256dh, byte[] auth,
+                         Targeting targeting) {
+    }
+
+    /**
+     * Encodes PUT record.
+     *
+     * @param subscriber subscriber
+     * @return framed record
+     */
+    public static byte[] encodePut(final Subscriber subscriber) {
+        byte[] endpoint = endpointBytes(subscriber.getEndpoint());
+        Long expirationTime = subscriber.getExpirationTime();
+        Targeting targeting = subscriber.getTargeting() == null ? Targeting.NONE : subscriber.getTargeting();
+        int bodyLength = Short.BYTES + endpoint.length + 1 + (expirationTime == null ? 0 : Long.BYTES)
+                + CryptoService.NUMBER_65 + SubscriberFactory.AUTH_LENGTH
+                + (targeting.isEmpty() ? 0 : targetingLength(targeting));
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER + bodyLength);
+        buffer.position(FRAME_HEADER);
+        buffer.putShort((short) endpoint.length);
+        buffer.put(endpoint);
+        if (expirationTime == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            buffer.putLong(expirationTime);
+        }
+        buffer.put(subscriber.getP256dh());
+        buffer.put(subscriber.getAuth());
+        if (!targeting.isEmpty()) {
+            writeTargeting(buffer, targeting);
+        }
+        return frame(buffer, PUT);
+    }
+
+    /**
+     * Encodes REMOVE record.
+     *
+     * @param endpoint endpoint URL
+     * @return framed record
+     */
+    public static byte[] encodeRemove(final String endpoint) {
+        byte[] endpointBytes = endpointBytes(endpoint);
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER + Short.BYTES + endpointBytes.length);
+        buffer.position(FRAME_HEADER);
+        buffer.putShort((short) endpointBytes.length);
+        buffer.put(endpointBytes);
+        return frame(buffer, REMOVE);
+    }
+
+    /**
+     * Decodes next record.
+     *
+     * @param buffer source, position is moved past the record only if it's decoded
+     * @return record or null if the buffer doesn't contain complete record
+     * @throws IllegalStateException if the record is corrupted
+     */
+    public static Record decode(final ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < FRAME_HEADER) {
+            return null;
+        }
+        byte type = buffer.get();
+        int bodyLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        if ((type != PUT && type != REMOVE) || bodyLength < 0 || bodyLength > MAX_BODY_LENGTH) {
+            throw new IllegalStateException("Corrupted record at " + start);
+        }
+        if (buffer.remaining() < bodyLength) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer body = buffer.slice(buffer.position(), bodyLength);
+        if (checksum(type, body) != checksum) {
+            throw new IllegalStateException("Checksum mismatch at " + start);
+        }
+        buffer.position(buffer.position() + bodyLength);
+
+        byte[] endpoint = new byte[Short.toUnsignedInt(body.getShort())];
+        body.get(endpoint);
+        String endpointUrl = new String(endpoint, StandardCharsets.UTF_8);
+        if (type == REMOVE) {
+            return new Record(type, endpointUrl, null, null, null, null);
+        }
+        Long expirationTime = body.get() == 0 ? null : body.getLong();
+        byte[] p256dh = new byte[CryptoService.NUMBER_65];
+        body.get(p256dh);
+        byte[] auth = new byte[SubscriberFactory.AUTH_LENGTH];
+        body.get(auth);
+        Targeting targeting;
+        try {
+            targeting = body.hasRemaining() ? readTargeting(body) : Targeting.NONE;
+        } catch (InvalidSubscriptionException | BufferUnderflowException ex) {
+            throw new IllegalStateException("Corrupted targeting at " + start);
+        }
+        return new Record(type, endpointUrl, expirationTime, p256dh, auth, targeting);
+    }
+
+    /**
+     * Encoded targeting length.
+     *
+     * @param targeting targeting attributes
+     * @return length, bytes
+     */
+    static int targetingLength(final Targeting targeting) {
+        int length = 1 + valueLength(targeting.getUserId()) + 1 + valueLength(targeting.getLocale()) + 1;
+        for (String tag : targeting.getTags()) {
+            length += 1 + valueLength(tag);
+        }
+        return length;
+    }
+
+    /**
+     * Writes targeting attributes.
+     *
+     * @param buffer    target buffer
+     * @param targeting targeting attributes
+     */
+    static void writeTargeting(final ByteBuffer buffer, final Targeting targeting) {
+        writeValue(buffer, targeting.getUserId());
+        writeValue(buffer, targeting.getLocale());
+        buffer.put((byte) targeting.getTags().size());
+        targeting.getTags().forEach(tag -> writeValue(buffer, tag));
+    }
+
+    /**
+     * Reads targeting attributes.
+     *
+     * @param buffer source buffer
+     * @return targeting attributes
+     * @throws InvalidSubscriptionException if some value is malformed
+     */
+    static Targeting readTargeting(final ByteBuffer buffer) {
+        String userId = readValue(buffer);
+        String locale = readValue(buffer);
+        int count = Byte.toUnsignedInt(buffer.get());
+        List<String> tags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(readValue(buffer));
+        }
+        return Targeting.of(tags, locale, userId);
+    }
+
+    /**
+     * Length of targeting value.
+     *
+     * @param value value, may be null
+     * @return length, bytes
+     */
+    private static int valueLength(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Writes length-prefixed ASCII value.
+     *
+     * @param buffer target buffer
+     * @param value  value, may be null
+     */
+    private static void writeValue(final ByteBuffer buffer, final String value) {
+        if (value == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        buffer.put((byte) value.length());
+        buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads length-prefixed ASCII value.
+     *
+     * @param buffer source buffer
+     * @return value or null
+     */
+    private static String readValue(final ByteBuffer buffer) {
+        int length = Byte.toUnsignedInt(buffer.get());
+        if (length == 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes frame header.
+     *
+     * @param buffer buffer with body written after the header
+     * @param type   record type
+     * @return framed record
+     */
+    private static byte[] frame(final ByteBuffer buffer, final byte type) {
+        int bodyLength = buffer.position() - FRAME_HEADER;
+        buffer.put(0, type);
+        buffer.putInt(1, bodyLength);
+        buffer.putInt(1 + Integer.BYTES, checksum(type, buffer.slice(FRAME_HEADER, bodyLength)));
+        return buffer.array();
+    }
+
+    /**
+     * Record checksum.
+     *
+     * @param type record type
+     * @param body record body
+     * @return CRC32 of type and body
+     */
+    private static int checksum(final byte type, final ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encodes endpoint.
+     *
+     * @param endpoint endpoint URL
+     * @return UTF-8 bytes
+     */
+    private static byte[] endpointBytes(final String endpoint) {
+        byte[] bytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ENDPOINT_LENGTH) {
+            throw new InvalidSubscriptionException("Endpoint is too long");
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.artemoons.webpush.subscription;
+
+import com.artemoons.webpush.CryptoService;
+import com.artemoons.webpush.delivery.VapidTokenCache;
+import com.artemoons.webpush.dto.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+
+/**
+ * Validates incoming subscriptions and decodes their key material.
+ */
+@Component
+public class SubscriberFactory {
+
+    /**
+     * Authentication secret length.
+     */
+    public static final int AUTH_LENGTH = 16;
+    /**
+     * Uncompressed point marker.
+     */
+    private static final byte UNCOMPRESSED_POINT = 4;
+    /**
+     * Cryptographic service.
+     */
+    private final CryptoService cryptoService;
+
+    /**
+     * Constructor.
+     *
+     * @param cryptoSvc cryptographic service
+     */
+    @Autowired
+    public SubscriberFactory(final CryptoService cryptoSvc) {
+        this.cryptoService = cryptoSvc;
+    }
+
+    /**
+     * Validates subscription and converts it to subscriber.
+     *
+     * @param subscription subscription received from the user agent
+     * @return subscriber
+     * @throws InvalidSubscriptionException if endpoint or keys are malformed or subscription has expired
+     */
+    public Subscriber create(final Subscription subscription) {
+        if (subscription.getEndpoint() == null || subscription.getKeys() == null) {
+            throw new InvalidSubscriptionException("Endpoint and keys are required");
+        }
+        if (subscription.getExpirationTime() != null
+                && subscription.getExpirationTime() <= System.currentTimeMillis()) {
+            throw new InvalidSubscriptionException("Subscription has expired");
+        }
+        return create(subscription.getEndpoint(), subscription.getExpirationTime(),
+                decode(subscription.getKeys().getP256dh(), "p256dh"),
+                decode(subscription.getKeys().getAuth(), "auth"),
+                Targeting.of(subscription.getTags(), subscription.getLocale(), subscription.getUserId()));
+    }
+
+    /**
+     * Validates decoded subscription data and converts it to subscriber.
+     *
+     * @param endpoint       endpoint URL
+     * @param expirationTime expiration time
+     * @param p256dh         user agent public key, uncompressed point
+     * @param auth           authentication secret
+     * @return subscriber
+     * @throws InvalidSubscriptionException if endpoint or keys are malformed
+     */
+    public Subscriber create(final String endpoint, final Long expirationTime, final byte[] p256dh,
+                             final byte[] auth) {
+        return create(endpoint, expirationTime, p256dh, auth, Targeting.NONE);
+    }
+
+    /**
+     * Validates decoded subscription data and converts it to subscriber.
+     *
+     * @param endpoint       endpoint URL
+     * @param expirationTime expiration time
+     * @param p256dh         user agent public key, uncompressed point
+     * @param auth           authentication secret
+     * @param targeting      targeting attributes
+     * @return subscriber
+     * @throws InvalidSubscriptionException if endpoint or keys are malformed
+     */
+    public Subscriber create(final String endpoint, final Long expirationTime, final byte[] p256dh,
+                             final byte[] auth, final Targeting targeting) {
+        URI uri;
+        try {
+            uri = URI.create(endpoint);
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidSubscriptionException("Malformed endpoint");
+        }
+        String origin = VapidTokenCache.originOf(uri);
+        if (origin == null) {
+            throw new InvalidSubscriptionException("Endpoint must be an absolute URL");
+        }
+        if (auth.length != AUTH_LENGTH) {
+            throw new InvalidSubscriptionException("Authentication secret must be " + AUTH_LENGTH + " bytes");
+        }
+        if (p256dh.length != CryptoService.NUMBER_65 || p256dh[0] != UNCOMPRESSED_POINT) {
+            throw new InvalidSubscriptionException("Public key must be an uncompressed P-256 point");
+        }
+        ECPublicKey publicKey;
+        try {
+            publicKey = cryptoService.fromUncompressedECPublicKey(p256dh);
+        } catch (InvalidKeySpecException ex) {
+            throw new InvalidSubscriptionException("Malformed public key");
+        }
+        if (!isOnCurve(publicKey)) {
+            throw new InvalidSubscriptionException("Public key is not a P-256 point");
+        }
+        return new Subscriber(endpoint, uri, origin, expirationTime, publicKey, p256dh, auth, targeting);
+    }
+
+    /**
+     * Rebuilds subscriber from key material which has already been validated by {@link #create}. Only the public key
+     * object is reconstructed, curve membership isn't checked again.
+     *
+     * @param endpoint       endpoint URL
+     * @param expirationTime expiration time
+     * @param p256dh         user agent public key, uncompressed point
+     * @param auth           authentication secret
+     * @param targeting      targeting attributes
+     * @return subscriber
+     * @throws InvalidSubscriptionException if key can't be decoded
+     */
+    public Subscriber restore(final String endpoint, final Long expirationTime, final byte[] p256dh,
+                              final byte[] auth, final Targeting targeting) {
+        URI uri = URI.create(endpoint);
+        try {
+            return new Subscriber(endpoint, uri, VapidTokenCache.originOf(uri), expirationTime,
+                    cryptoService.fromUncompressedECPublicKey(p256dh), p256dh, auth, targeting);
+        } catch (InvalidKeySpecException ex) {
+            throw new InvalidSubscriptionException("Malformed public key");
+        }
+    }
+
+    /**
+     * Decodes URL-safe base64 key.
+     *
+     * @param value encoded value
+     * @param name  key name
+     * @return decoded bytes
+     */
+    private static byte[] decode(final String value, final String name) {
+        if (value == null) {
+            throw new InvalidSubscriptionException("Key " + name + " is required");
+        }
+        try {
+            return Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidSubscriptionException("Key " + name + " is not base64url encoded");
+        }
+    }
+
+    /**
+     * Checks that the point satisfies the curve equation y^2 = x^3 + ax + b (mod p).
+     *
+     * @param publicKey public key
+     * @return true if the point belongs to the curve
+     */
+    private static boolean isOnCurve(final ECPublicKey publicKey) {
+        EllipticCurve curve = publicKey.getParams().getCurve();
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        ECPoint w = publicKey.getW();
+        BigInteger x = w.getAffineX();
+        BigInteger y = w.getAffineY();
+        BigInteger left = y.multiply(y).mod(p);
+        BigInteger right = x.multiply(x).multiply(x).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+        return left.equals(right);
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.artemoons.webpush.subscription;
+
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of targeting terms. Every term keeps a compressed bitmap of registry slots, so expressions are
+ * resolved with bitmap operations instead of scanning all subscribers, and matching subscribers are read back
+ * through the registry by slot. The index holds no endpoints: per subscriber it costs a bit in the bitmaps and
+ * a reference to the terms of subscribers which have any.
+ * <p>
+ * Slots are looked up in the registry, so subscribers must be added after they are put into the registry and
+ * removed before they are removed from it.
+ */
+final class SubscriberIndex {
+
+    /**
+     * Initial capacity of terms array.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * No terms.
+     */
+    private static final String[] NO_TERMS = new String[0];
+    /**
+     * Subscribers registry.
+     */
+    private final SubscriberRegistry registry;
+    /**
+     * Guards index.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Slots of all subscribers.
+     */
+    private final RoaringBitmap universe = new RoaringBitmap();
+    /**
+     * Slots by term.
+     */
+    private final Map<String, RoaringBitmap> postings = new HashMap<>();
+    /**
+     * Terms by slot, null if subscriber has none.
+     */
+    private String[][] terms = new String[INITIAL_CAPACITY][];
+
+    /**
+     * Constructor.
+     *
+     * @param subscriberRegistry registry the index refers to by slot
+     */
+    SubscriberIndex(final SubscriberRegistry subscriberRegistry) {
+        this.registry = subscriberRegistry;
+    }
+
+    /**
+     * Adds or replaces subscriber terms.
+     *
+     * @param subscriber subscriber, already put into the registry
+     */
+    void add(final Subscriber subscriber) {
+        int slot = registry.slotOf(subscriber.getEndpoint());
+        if (slot < 0) {
+            return;
+        }
+        Targeting targeting = subscriber.getTargeting();
+        Set<String> subscriberTerms = targeting == null ? Set.of() : targeting.terms();
+        String[] termArray = subscriberTerms.isEmpty() ? null : subscriberTerms.toArray(NO_TERMS);
+        lock.writeLock().lock();
+        try {
+            if (slot >= terms.length) {
+                terms = Arrays.copyOf(terms, Math.max(terms.length * 2, slot + 1));
+            }
+            unlink(slot);
+            universe.add(slot);
+            terms[slot] = termArray;
+            if (termArray != null) {
+                for (String term : termArray) {
+                    postings.computeIfAbsent(term, key -> new RoaringBitmap()).add(slot);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes subscriber.
+     *
+     * @param endpoint endpoint URL, still registered
+     */
+    void remove(final String endpoint) {
+        int slot = registry.slotOf(endpoint);
+        if (slot < 0) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (slot < terms.length) {
+                unlink(slot);
+                terms[slot] = null;
+            }
+            universe.remove(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of subscribers matching expression.
+     *
+     * @param expression target expression
+     * @return count
+     */
+    int count(final TagExpression expression) {
+        return resolve(expression).getCardinality();
+    }
+
+    /**
+     * Selects subscribers matching expression. Slots are resolved eagerly, subscribers are looked up lazily and
+     * checked against the expression again, so subscribers changed meanwhile are never selected by mistake.
+     *
+     * @param expression target expression
+     * @return matching subscribers
+     */
+    Iterable<Subscriber> select(final TagExpression expression) {
+        RoaringBitmap matching = resolve(expression);
+        return () -> new Selection(matching.getIntIterator(), expression);
+    }
+
+    /**
+     * Evaluates expression.
+     *
+     * @param expression target expression
+     * @return matching slots
+     */
+    private RoaringBitmap resolve(final TagExpression expression) {
+        lock.readLock().lock();
+        try {
+            return expression.evaluate(postings::get, universe);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes slot from postings of its terms. Must be called holding the write lock.
+     *
+     * @param slot slot
+     */
+    private void unlink(final int slot) {
+        if (terms[slot] == null) {
+            return;
+        }
+        for (String term : terms[slot]) {
+            RoaringBitmap bitmap = postings.get(term);
+            bitmap.remove(slot);
+            if (bitmap.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Lazy lookup of selected subscribers.
+     */
+    private final class Selection implements Iterator<Subscriber> {
+
+        /**
+         * Selected slots.
+         */
+        private final PeekableIntIterator slotIterator;
+        /**
+         * Target expression.
+         */
+        private final TagExpression expression;
+        /**
+         * Prefetched subscriber.
+         */
+        private Subscriber next;
+
+        /**
+         * Constructor.
+         *
+         * @param slotsToVisit selected slots
+         * @param target       target expression
+         */
+        Selection(final PeekableIntIterator slotsToVisit, final TagExpression target) {
+            this.slotIterator = slotsToVisit;
+            this.expression = target;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && slotIterator.hasNext()) {
+                Subscriber subscriber = registry.getBySlot(slotIterator.next());
+                if (subscriber != null && expression.matches(subscriber.getTargeting())) {
+                    next = subscriber;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Subscriber next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Subscriber subscriber = next;
+            next = null;
+            return subscriber;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.artemoons.webpush.subscription;
+
+/**
+ * In-memory index of active subscriptions, subscription stores keep the live set in it.
+ */
+public interface SubscriberRegistry {
+
+    /**
+     * Adds or replaces subscriber.
+     *
+     * @param subscriber subscriber
+     */
+    void put(Subscriber subscriber);
+
+    /**
+     * Removes subscriber.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscriber existed
+     */
+    boolean remove(String endpoint);
+
+    /**
+     * Looks up subscriber.
+     *
+     * @param endpoint endpoint URL
+     * @return subscriber or null
+     */
+    Subscriber get(String endpoint);
+
+    /**
+     * Slot of subscriber: a dense number kept while the subscriber is registered and reused once it's removed,
+     * so secondary indexes can refer to subscribers without holding their endpoints.
+     *
+     * @param endpoint endpoint URL
+     * @return slot or -1 if not registered
+     */
+    int slotOf(String endpoint);
+
+    /**
+     * Looks up subscriber by slot.
+     *
+     * @param slot slot
+     * @return subscriber or null if slot is free
+     */
+    Subscriber getBySlot(int slot);
+
+    /**
+     * Checks subscriber existence.
+     *
+     * @param endpoint endpoint URL
+     * @return true if registered
+     */
+    boolean contains(String endpoint);
+
+    /**
+     * Number of subscribers.
+     *
+     * @return size
+     */
+    int size();
+
+    /**
+     * Weakly consistent streaming view of all subscribers.
+     *
+     * @return subscribers
+     */
+    Iterable<Subscriber> subscribers();
+
+}
@@ -0,0 +1,129 @@
+package com.artemoons.webpush.subscription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expiration times and tombstones of subscriptions, both scheduled on a single timing wheel. Tombstone marks
+ * endpoint the push service has reported gone, so it isn't stored again by a racing re-subscribe or retry
+ * until the tombstone expires.
+ */
+final class SubscriptionExpiry {
+
+    /**
+     * Number of wheel buckets.
+     */
+    private static final int WHEEL_SIZE = 512;
+    /**
+     * Expirations and tombstones.
+     */
+    private final TimingWheel<Entry> wheel;
+    /**
+     * Tombstone retention, milliseconds.
+     */
+    private final long tombstoneRetention;
+    /**
+     * Expirations by endpoint.
+     */
+    private final Map<String, TimingWheel.Timeout<Entry>> expirations = new HashMap<>();
+    /**
+     * Tombstones by endpoint.
+     */
+    private final Map<String, TimingWheel.Timeout<Entry>> tombstones = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param config store configuration
+     */
+    SubscriptionExpiry(final StoreConfiguration config) {
+        this.wheel = new TimingWheel<>(config.getExpiryTick().toMillis(), WHEEL_SIZE, System.currentTimeMillis());
+        this.tombstoneRetention = config.getTombstoneRetention().toMillis();
+    }
+
+    /**
+     * Schedules subscriber expiration, replacing the previous one.
+     *
+     * @param subscriber subscriber
+     */
+    synchronized void schedule(final Subscriber subscriber) {
+        Long expirationTime = subscriber.getExpirationTime();
+        TimingWheel.Timeout<Entry> current = expirations.get(subscriber.getEndpoint());
+        if (current != null && expirationTime != null && current.getDeadline() == expirationTime) {
+            return;
+        }
+        cancel(subscriber.getEndpoint());
+        if (expirationTime != null) {
+            expirations.put(subscriber.getEndpoint(),
+                    wheel.schedule(new Entry(subscriber.getEndpoint(), false), expirationTime));
+        }
+    }
+
+    /**
+     * Cancels subscriber expiration.
+     *
+     * @param endpoint endpoint URL
+     */
+    synchronized void cancel(final String endpoint) {
+        TimingWheel.Timeout<Entry> timeout = expirations.remove(endpoint);
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+    }
+
+    /**
+     * Cancels expiration and adds tombstone.
+     *
+     * @param endpoint endpoint URL
+     */
+    synchronized void bury(final String endpoint) {
+        cancel(endpoint);
+        TimingWheel.Timeout<Entry> tombstone = tombstones.remove(endpoint);
+        if (tombstone != null) {
+            wheel.cancel(tombstone);
+        }
+        tombstones.put(endpoint, wheel.schedule(new Entry(endpoint, true),
+                System.currentTimeMillis() + tombstoneRetention));
+    }
+
+    /**
+     * Checks whether endpoint has been reported gone recently.
+     *
+     * @param endpoint endpoint URL
+     * @return true if tombstone exists
+     */
+    synchronized boolean isBuried(final String endpoint) {
+        return tombstones.containsKey(endpoint);
+    }
+
+    /**
+     * Advances the wheel, expired tombstones are dropped.
+     *
+     * @param now current time, milliseconds
+     * @return endpoints of expired subscriptions
+     */
+    synchronized List<String> advance(final long now) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(now, entry -> {
+            if (entry.tombstone()) {
+                tombstones.remove(entry.endpoint());
+            } else {
+                expirations.remove(entry.endpoint());
+                expired.add(entry.endpoint());
+            }
+        });
+        return expired;
+    }
+
+    /**
+     * Wheel entry.
+     *
+     * @param endpoint  endpoint URL
+     * @param tombstone true for tombstone, false for expiration
+     */
+    private record Entry(String endpoint, boolean tombstone) {
+    }
+
+}
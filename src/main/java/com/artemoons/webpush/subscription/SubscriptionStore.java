@@ -0,0 +1,101 @@
+package com.artemoons.webpush.subscription;
+
+import java.util.List;
+
+/**
+ * Storage of active subscriptions.
+ */
+public interface SubscriptionStore {
+
+    /**
+     * Adds or replaces subscription, it's removed automatically once its expiration time has passed.
+     *
+     * @param subscriber subscriber
+     * @throws InvalidSubscriptionException if the endpoint has recently been reported gone
+     */
+    void put(Subscriber subscriber);
+
+    /**
+     * Adds or replaces subscriptions in a batch, endpoints recently reported gone are skipped.
+     *
+     * @param batch subscribers
+     * @return number of stored subscriptions
+     */
+    default int putAll(final List<Subscriber> batch) {
+        int stored = 0;
+        for (Subscriber subscriber : batch) {
+            try {
+                put(subscriber);
+                stored++;
+            } catch (InvalidSubscriptionException ex) {
+                // reported gone, skipped
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Removes subscription.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscription existed
+     */
+    boolean remove(String endpoint);
+
+    /**
+     * Removes subscription reported gone by the push service, the endpoint can't be stored again for a while.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscription existed
+     */
+    boolean bury(String endpoint);
+
+    /**
+     * Looks up subscription.
+     *
+     * @param endpoint endpoint URL
+     * @return subscriber or null
+     */
+    Subscriber get(String endpoint);
+
+    /**
+     * Checks subscription existence.
+     *
+     * @param endpoint endpoint URL
+     * @return true if subscribed
+     */
+    boolean contains(String endpoint);
+
+    /**
+     * Number of subscriptions.
+     *
+     * @return size
+     */
+    int size();
+
+    /**
+     * Whether there are no subscriptions.
+     *
+     * @return true if empty
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Weakly consistent view of all subscriptions for fan-out.
+     *
+     * @return subscribers
+     */
+    Iterable<Subscriber> subscribers();
+
+    /**
+     * Subscriptions matching target expression, resolved through the targeting index without scanning all
+     * subscriptions.
+     *
+     * @param target target expression
+     * @return matching subscribers
+     */
+    Iterable<Subscriber> subscribers(TagExpression target);
+
+}
@@ -0,0 +1,404 @@
+package com.artemoons.webpush.subscription;
+
+import com.artemoons.webpush.dto.ImportResult;
+import com.artemoons.webpush.dto.Subscription;
+import com.artemoons.webpush.dto.SubscriptionKeys;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Streaming export and import of subscriptions, used to move subscribers between instances or to seed a new one.
+ * Export walks the store and writes every subscription as soon as it's encoded. Import reads the input batch
+ * by batch: while one batch is being validated on the validation threads the next one is read, validated batch
+ * is stored with a single {@link SubscriptionStore#putAll} call. Neither side holds more than two batches.
+ * <p>
+ * NDJSON format has one subscription per line, as sent to {@code /subscribe}. Binary format is a sequence
+ * of {@link SubscriberCodec} PUT records, same as the store snapshot.
+ */
+@Slf4j
+@Component
+public class SubscriptionTransfer {
+
+    /**
+     * Binary input buffer size, larger than any record.
+     */
+    private static final int READ_BUFFER = 128 * 1024;
+    /**
+     * Output buffer size.
+     */
+    private static final int WRITE_BUFFER = 64 * 1024;
+    /**
+     * Subscribers storage.
+     */
+    private final SubscriptionStore subscriptionStore;
+    /**
+     * Subscriptions validator.
+     */
+    private final SubscriberFactory subscriberFactory;
+    /**
+     * JSON object mapper.
+     */
+    private final ObjectMapper objectMapper;
+    /**
+     * Transfer configuration.
+     */
+    private final TransferConfiguration configuration;
+    /**
+     * Key validation threads.
+     */
+    private final ExecutorService validators;
+
+    /**
+     * Constructor.
+     *
+     * @param store      subscribers storage
+     * @param factory    subscriptions validator
+     * @param jsonMapper object mapper
+     * @param config     transfer configuration
+     */
+    @Autowired
+    public SubscriptionTransfer(final SubscriptionStore store, final SubscriberFactory factory,
+                                final ObjectMapper jsonMapper, final TransferConfiguration config) {
+        this.subscriptionStore = store;
+        this.subscriberFactory = factory;
+        this.objectMapper = jsonMapper;
+        this.configuration = config;
+        this.validators = Executors.newFixedThreadPool(Math.max(1, config.getValidationThreads()), runnable -> {
+            Thread thread = new Thread(runnable, "subscription-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops validation threads.
+     */
+    @PreDestroy
+    public void stop() {
+        validators.shutdownNow();
+    }
+
+    /**
+     * Writes all live subscriptions. Output isn't closed.
+     *
+     * @param output target stream
+     * @param format transfer format
+     * @return number of exported subscriptions
+     * @throws IOException if output can't be written
+     */
+    public long export(final OutputStream output, final Format format) throws IOException {
+        long now = System.currentTimeMillis();
+        long count = 0;
+        OutputStream buffered = new BufferedOutputStream(output, WRITE_BUFFER);
+        JsonGenerator generator = null;
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        if (format == Format.NDJSON) {
+            generator = objectMapper.getFactory().createGenerator(buffered);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+        for (Subscriber subscriber : subscriptionStore.subscribers()) {
+            if (subscriber.isExpired(now)) {
+                continue;
+            }
+            if (generator == null) {
+                buffered.write(SubscriberCodec.encodePut(subscriber));
+            } else {
+                writer.writeValue(generator, toSubscription(subscriber));
+                generator.writeRaw('\n');
+            }
+            count++;
+        }
+        if (generator != null) {
+            generator.close();
+        }
+        buffered.flush();
+        log.info("Exported {} subscriptions", count);
+        return count;
+    }
+
+    /**
+     * Reads and stores subscriptions. Invalid, expired and recently gone subscriptions are rejected one by one,
+     * malformed input stops reading: subscriptions read before are still stored.
+     *
+     * @param input  source stream
+     * @param format transfer format
+     * @return import result
+     */
+    public ImportResult importFrom(final InputStream input, final Format format) {
+        Import run = new Import();
+        String error = null;
+        try {
+            Source source = format == Format.NDJSON ? ndjson(input) : binary(input);
+            for (Supplier<Subscriber> item = source.next(); item != null; item = source.next()) {
+                run.add(item);
+            }
+        } catch (JsonProcessingException ex) {
+            error = "Malformed subscription: " + ex.getOriginalMessage();
+        } catch (IOException | IllegalStateException ex) {
+            error = "Malformed input: " + ex.getMessage();
+        }
+        run.finish();
+        log.info("Imported {} subscriptions, {} rejected", run.imported, run.rejected);
+        return new ImportResult(run.imported, run.rejected, error);
+    }
+
+    /**
+     * Converts subscriber to the DTO accepted by {@code /subscribe}.
+     *
+     * @param subscriber subscriber
+     * @return subscription
+     */
+    private static Subscription toSubscription(final Subscriber subscriber) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        Targeting targeting = subscriber.getTargeting() == null ? Targeting.NONE : subscriber.getTargeting();
+        return new Subscription(subscriber.getEndpoint(), subscriber.getExpirationTime(),
+                new SubscriptionKeys(encoder.encodeToString(subscriber.getP256dh()),
+                        encoder.encodeToString(subscriber.getAuth())),
+                targeting.getTags().isEmpty() ? null : List.copyOf(targeting.getTags()),
+                targeting.getLocale(),
+                targeting.getUserId());
+    }
+
+    /**
+     * NDJSON source.
+     *
+     * @param input source stream
+     * @return source
+     * @throws IOException if input can't be read
+     */
+    private Source ndjson(final InputStream input) throws IOException {
+        MappingIterator<Subscription> values = objectMapper.readerFor(Subscription.class).readValues(input);
+        return () -> {
+            if (!values.hasNextValue()) {
+                return null;
+            }
+            Subscription subscription = values.nextValue();
+            return () -> subscriberFactory.create(subscription);
+        };
+    }
+
+    /**
+     * Binary source.
+     *
+     * @param input source stream
+     * @return source
+     */
+    private Source binary(final InputStream input) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER).flip();
+        return () -> {
+            while (true) {
+                SubscriberCodec.Record record = SubscriberCodec.decode(buffer);
+                if (record != null) {
+                    return () -> toSubscriber(record);
+                }
+                buffer.compact();
+                int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                }
+                buffer.flip();
+                if (read < 0) {
+                    if (buffer.hasRemaining()) {
+                        throw new IllegalStateException("Truncated record at the end of input");
+                    }
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Validates binary record, it comes from another instance and is checked as thoroughly as a new subscription.
+     *
+     * @param record decoded record
+     * @return subscriber
+     * @throws InvalidSubscriptionException if the record isn't a valid live subscription
+     */
+    private Subscriber toSubscriber(final SubscriberCodec.Record record) {
+        if (record.type() != SubscriberCodec.PUT) {
+            throw new InvalidSubscriptionException("Only subscriptions can be imported");
+        }
+        if (record.expirationTime() != null && record.expirationTime() <= System.currentTimeMillis()) {
+            throw new InvalidSubscriptionException("Subscription has expired");
+        }
+        return subscriberFactory.create(record.endpoint(), record.expirationTime(), record.p256dh(), record.auth(),
+                record.targeting());
+    }
+
+    /**
+     * Transfer format.
+     */
+    @Getter
+    public enum Format {
+
+        /**
+         * Subscription JSON per line.
+         */
+        NDJSON(MediaType.APPLICATION_NDJSON_VALUE),
+        /**
+         * Store record sequence.
+         */
+        BINARY(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+
+        /**
+         * Content type.
+         */
+        private final String mediaType;
+
+        /**
+         * Constructor.
+         *
+         * @param contentType content type
+         */
+        Format(final String contentType) {
+            this.mediaType = contentType;
+        }
+
+        /**
+         * Looks up format by name.
+         *
+         * @param name format name, case-insensitive
+         * @return format
+         * @throws IllegalArgumentException if format is unknown
+         */
+        public static Format of(final String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Source of raw subscriptions.
+     */
+    @FunctionalInterface
+    private interface Source {
+
+        /**
+         * Reads next subscription.
+         *
+         * @return validation of the subscription, null at the end of input
+         * @throws IOException if input can't be read or is malformed
+         */
+        Supplier<Subscriber> next() throws IOException;
+    }
+
+    /**
+     * Single import run, keeps one batch being validated while the next one is read.
+     */
+    private final class Import {
+
+        /**
+         * Batch being read.
+         */
+        private List<Supplier<Subscriber>> batch = new ArrayList<>();
+        /**
+         * Batch being validated, null if there is none.
+         */
+        private CompletableFuture<List<Subscriber>> pending;
+        /**
+         * Size of the batch being validated.
+         */
+        private int pendingSize;
+        /**
+         * Stored subscriptions.
+         */
+        private long imported;
+        /**
+         * Rejected subscriptions.
+         */
+        private long rejected;
+
+        /**
+         * Adds subscription to the batch being read, full batch is submitted for validation.
+         *
+         * @param item subscription validation
+         */
+        void add(final Supplier<Subscriber> item) {
+            batch.add(item);
+            if (batch.size() >= configuration.getBatchSize()) {
+                submit();
+            }
+        }
+
+        /**
+         * Validates and stores everything read.
+         */
+        void finish() {
+            submit();
+            submit();
+        }
+
+        /**
+         * Stores the batch being validated and starts validation of the batch being read.
+         */
+        private void submit() {
+            if (pending != null) {
+                List<Subscriber> validated = pending.join();
+                int stored = validated.isEmpty() ? 0 : subscriptionStore.putAll(validated);
+                imported += stored;
+                rejected += pendingSize - stored;
+                pending = null;
+            }
+            if (!batch.isEmpty()) {
+                pending = validate(batch);
+                pendingSize = batch.size();
+                batch = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Validates batch slices in parallel, invalid subscriptions are counted as rejected.
+         *
+         * @param items batch
+         * @return valid subscribers
+         */
+        private CompletableFuture<List<Subscriber>> validate(final List<Supplier<Subscriber>> items) {
+            int threads = Math.max(1, configuration.getValidationThreads());
+            int sliceSize = Math.max(1, (items.size() + threads - 1) / threads);
+            List<CompletableFuture<List<Subscriber>>> slices = new ArrayList<>();
+            for (int from = 0; from < items.size(); from += sliceSize) {
+                List<Supplier<Subscriber>> slice = items.subList(from, Math.min(items.size(), from + sliceSize));
+                slices.add(CompletableFuture.supplyAsync(() -> {
+                    List<Subscriber> valid = new ArrayList<>(slice.size());
+                    for (Supplier<Subscriber> item : slice) {
+                        try {
+                            valid.add(item.get());
+                        } catch (InvalidSubscriptionException ex) {
+                            // counted as rejected when the batch is stored
+                        }
+                    }
+                    return valid;
+                }, validators));
+            }
+            return CompletableFuture.allOf(slices.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+                List<Subscriber> valid = new ArrayList<>(items.size());
+                slices.forEach(slice -> valid.addAll(slice.join()));
+                return valid;
+            });
+        }
+    }
+
+}
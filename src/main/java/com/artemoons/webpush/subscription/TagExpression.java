@@ -0,0 +1,394 @@
+package com.artemoons.webpush.subscription;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Boolean expression over subscriber terms, e.g. {@code news AND (locale:en OR user:42) AND NOT tag:muted}.
+ * <p>
+ * Term is {@code tag:value}, {@code locale:value} or {@code user:value}, bare value means tag. Operators are
+ * {@code AND}/{@code &&}, {@code OR}/{@code ||}/{@code ,} and {@code NOT}/{@code !}, case-insensitive, with usual
+ * precedence; parentheses group. Locale {@code en} matches every English locale.
+ */
+public final class TagExpression {
+
+    /**
+     * Maximum expression length.
+     */
+    public static final int MAX_LENGTH = 2048;
+    /**
+     * Maximum nesting depth.
+     */
+    private static final int MAX_DEPTH = 32;
+    /**
+     * Source text.
+     */
+    private final String source;
+    /**
+     * Expression tree.
+     */
+    private final Node root;
+
+    /**
+     * Constructor.
+     *
+     * @param text       source text
+     * @param expression expression tree
+     */
+    private TagExpression(final String text, final Node expression) {
+        this.source = text;
+        this.root = expression;
+    }
+
+    /**
+     * Parses expression.
+     *
+     * @param text expression text
+     * @return expression
+     * @throws InvalidExpressionException if the text is malformed
+     */
+    public static TagExpression parse(final String text) {
+        if (text == null || text.isBlank()) {
+            throw new InvalidExpressionException("Target expression is empty");
+        }
+        if (text.length() > MAX_LENGTH) {
+            throw new InvalidExpressionException("Target expression is longer than " + MAX_LENGTH + " characters");
+        }
+        Parser parser = new Parser(tokenize(text));
+        Node root = parser.or(0);
+        if (parser.hasNext()) {
+            throw new InvalidExpressionException("Unexpected '" + parser.peek() + "' in target expression");
+        }
+        return new TagExpression(text, root);
+    }
+
+    /**
+     * Checks whether targeting attributes satisfy the expression.
+     *
+     * @param targeting targeting attributes
+     * @return true if matches
+     */
+    public boolean matches(final Targeting targeting) {
+        return root.matches(targeting == null ? Set.of() : targeting.terms());
+    }
+
+    /**
+     * Evaluates expression over posting bitmaps. Postings are only read, returned bitmap is always a new one.
+     *
+     * @param postings bitmap of subscriber slots by term, null if term is unknown
+     * @param universe slots of all subscribers, needed for negation
+     * @return matching slots
+     */
+    RoaringBitmap evaluate(final Function<String, RoaringBitmap> postings, final RoaringBitmap universe) {
+        RoaringBitmap result = root.evaluate(term -> {
+            RoaringBitmap bitmap = postings.apply(term);
+            return bitmap == null ? new RoaringBitmap() : bitmap;
+        }, universe);
+        return root instanceof Term ? result.clone() : result;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Splits text into tokens.
+     *
+     * @param text expression text
+     * @return tokens
+     */
+    private static List<String> tokenize(final String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == '!' || c == ',') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if ((c == '&' || c == '|') && i + 1 < text.length() && text.charAt(i + 1) == c) {
+                tokens.add(text.substring(i, i + 2));
+                i += 2;
+            } else if (isWordChar(c)) {
+                int start = i;
+                while (i < text.length() && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                tokens.add(text.substring(start, i));
+            } else {
+                throw new InvalidExpressionException("Unexpected character '" + c + "' in target expression");
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Whether character may be part of a term.
+     *
+     * @param c character
+     * @return true for term characters
+     */
+    private static boolean isWordChar(final char c) {
+        return c < Byte.MAX_VALUE && (Character.isLetterOrDigit(c) || "_.@+-:".indexOf(c) >= 0);
+    }
+
+    /**
+     * Recursive descent parser.
+     */
+    private static final class Parser {
+
+        /**
+         * Tokens.
+         */
+        private final List<String> tokens;
+        /**
+         * Current token.
+         */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param expressionTokens tokens
+         */
+        Parser(final List<String> expressionTokens) {
+            this.tokens = expressionTokens;
+        }
+
+        /**
+         * Parses disjunction.
+         *
+         * @param depth nesting depth
+         * @return node
+         */
+        Node or(final int depth) {
+            Node node = and(depth);
+            while (accept("OR", "||", ",")) {
+                node = new Or(node, and(depth));
+            }
+            return node;
+        }
+
+        /**
+         * Parses conjunction.
+         *
+         * @param depth nesting depth
+         * @return node
+         */
+        Node and(final int depth) {
+            Node node = unary(depth);
+            while (accept("AND", "&&")) {
+                node = new And(node, unary(depth));
+            }
+            return node;
+        }
+
+        /**
+         * Parses negation, group or term.
+         *
+         * @param depth nesting depth
+         * @return node
+         */
+        Node unary(final int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new InvalidExpressionException("Target expression is nested too deep");
+            }
+            if (!hasNext()) {
+                throw new InvalidExpressionException("Target expression ends unexpectedly");
+            }
+            if (accept("NOT", "!")) {
+                return new Not(unary(depth + 1));
+            }
+            if (accept("(")) {
+                Node node = or(depth + 1);
+                if (!accept(")")) {
+                    throw new InvalidExpressionException("Missing ')' in target expression");
+                }
+                return node;
+            }
+            String token = tokens.get(position++);
+            if (!isWordChar(token.charAt(0)) || token.equalsIgnoreCase("AND") || token.equalsIgnoreCase("OR")) {
+                throw new InvalidExpressionException("Unexpected '" + token + "' in target expression");
+            }
+            return term(token);
+        }
+
+        /**
+         * Parses term.
+         *
+         * @param token token
+         * @return term node
+         */
+        private static Node term(final String token) {
+            int separator = token.indexOf(':');
+            String key = separator < 0 ? Targeting.TAG : token.substring(0, separator).toLowerCase(Locale.ROOT);
+            String value = separator < 0 ? token : token.substring(separator + 1);
+            if (value.isEmpty() || value.indexOf(':') >= 0 || value.length() > Targeting.MAX_VALUE_LENGTH) {
+                throw new InvalidExpressionException("Malformed term '" + token + "' in target expression");
+            }
+            switch (key) {
+                case Targeting.TAG, Targeting.USER -> {
+                    return new Term(Targeting.term(key, value));
+                }
+                case Targeting.LOCALE -> {
+                    return new Term(Targeting.term(key, value.replace('_', '-').toLowerCase(Locale.ROOT)));
+                }
+                default -> throw new InvalidExpressionException("Unknown term key '" + key + "'");
+            }
+        }
+
+        /**
+         * Consumes token if it's one of expected.
+         *
+         * @param expected expected tokens, case-insensitive
+         * @return true if consumed
+         */
+        private boolean accept(final String... expected) {
+            if (!hasNext()) {
+                return false;
+            }
+            for (String token : expected) {
+                if (token.equalsIgnoreCase(tokens.get(position))) {
+                    position++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether tokens remain.
+         *
+         * @return true if there are more tokens
+         */
+        boolean hasNext() {
+            return position < tokens.size();
+        }
+
+        /**
+         * Current token.
+         *
+         * @return token
+         */
+        String peek() {
+            return tokens.get(position);
+        }
+    }
+
+    /**
+     * Expression tree node.
+     */
+    private interface Node {
+
+        /**
+         * Evaluates node over bitmaps.
+         *
+         * @param postings bitmap by term, never null
+         * @param universe all slots
+         * @return bitmap, shared posting for single term
+         */
+        RoaringBitmap evaluate(Function<String, RoaringBitmap> postings, RoaringBitmap universe);
+
+        /**
+         * Evaluates node over subscriber terms.
+         *
+         * @param terms subscriber terms
+         * @return true if matches
+         */
+        boolean matches(Set<String> terms);
+    }
+
+    /**
+     * Single term.
+     *
+     * @param term term
+     */
+    private record Term(String term) implements Node {
+
+        @Override
+        public RoaringBitmap evaluate(final Function<String, RoaringBitmap> postings,
+                                      final RoaringBitmap universe) {
+            return postings.apply(term);
+        }
+
+        @Override
+        public boolean matches(final Set<String> terms) {
+            return terms.contains(term);
+        }
+    }
+
+    /**
+     * Conjunction, {@code a AND NOT b} is evaluated without touching the universe.
+     *
+     * @param left  left operand
+     * @param right right operand
+     */
+    private record And(Node left, Node right) implements Node {
+
+        @Override
+        public RoaringBitmap evaluate(final Function<String, RoaringBitmap> postings,
+                                      final RoaringBitmap universe) {
+            if (right instanceof Not not && !(left instanceof Not)) {
+                return RoaringBitmap.andNot(left.evaluate(postings, universe), not.operand().evaluate(postings,
+                        universe));
+            }
+            if (left instanceof Not not && !(right instanceof Not)) {
+                return RoaringBitmap.andNot(right.evaluate(postings, universe), not.operand().evaluate(postings,
+                        universe));
+            }
+            return RoaringBitmap.and(left.evaluate(postings, universe), right.evaluate(postings, universe));
+        }
+
+        @Override
+        public boolean matches(final Set<String> terms) {
+            return left.matches(terms) && right.matches(terms);
+        }
+    }
+
+    /**
+     * Disjunction.
+     *
+     * @param left  left operand
+     * @param right right operand
+     */
+    private record Or(Node left, Node right) implements Node {
+
+        @Override
+        public RoaringBitmap evaluate(final Function<String, RoaringBitmap> postings,
+                                      final RoaringBitmap universe) {
+            return RoaringBitmap.or(left.evaluate(postings, universe), right.evaluate(postings, universe));
+        }
+
+        @Override
+        public boolean matches(final Set<String> terms) {
+            return left.matches(terms) || right.matches(terms);
+        }
+    }
+
+    /**
+     * Negation.
+     *
+     * @param operand operand
+     */
+    private record Not(Node operand) implements Node {
+
+        @Override
+        public RoaringBitmap evaluate(final Function<String, RoaringBitmap> postings,
+                                      final RoaringBitmap universe) {
+            return RoaringBitmap.andNot(universe, operand.evaluate(postings, universe));
+        }
+
+        @Override
+        public boolean matches(final Set<String> terms) {
+            return !operand.matches(terms);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.artemoons.webpush.subscription;
+
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Optional attributes subscribers are selected by: free-form tags, locale and user identifier. Every attribute
+ * is indexed as a {@code key:value} term, see {@link TagExpression}.
+ */
+@Getter
+public final class Targeting {
+
+    /**
+     * Subscriber without attributes.
+     */
+    public static final Targeting NONE = new Targeting(Set.of(), null, null);
+    /**
+     * Tag term key.
+     */
+    public static final String TAG = "tag";
+    /**
+     * Locale term key.
+     */
+    public static final String LOCALE = "locale";
+    /**
+     * User term key.
+     */
+    public static final String USER = "user";
+    /**
+     * Maximum number of tags.
+     */
+    public static final int MAX_TAGS = 32;
+    /**
+     * Maximum length of a single value.
+     */
+    public static final int MAX_VALUE_LENGTH = 128;
+    /**
+     * Allowed value characters.
+     */
+    private static final Pattern VALUE = Pattern.compile("[A-Za-z0-9_.@+\\-]{1," + MAX_VALUE_LENGTH + "}");
+
+    /**
+     * Tags.
+     */
+    private final Set<String> tags;
+
+    /**
+     * Locale, lower case with dash separator, e.g. {@code en-us}.
+     */
+    private final String locale;
+
+    /**
+     * User identifier.
+     */
+    private final String userId;
+
+    /**
+     * Constructor.
+     *
+     * @param tagSet      tags
+     * @param localeTag   locale
+     * @param userIdValue user identifier
+     */
+    private Targeting(final Set<String> tagSet, final String localeTag, final String userIdValue) {
+        this.tags = tagSet;
+        this.locale = localeTag;
+        this.userId = userIdValue;
+    }
+
+    /**
+     * Validates and normalizes attributes.
+     *
+     * @param tags   tags, may be null
+     * @param locale locale, may be null
+     * @param userId user identifier, may be null
+     * @return targeting
+     * @throws InvalidSubscriptionException if some value is malformed
+     */
+    public static Targeting of(final Collection<String> tags, final String locale, final String userId) {
+        Set<String> tagSet = new LinkedHashSet<>();
+        if (tags != null) {
+            for (String tag : tags) {
+                tagSet.add(validate(tag, TAG));
+            }
+        }
+        if (tagSet.size() > MAX_TAGS) {
+            throw new InvalidSubscriptionException("At most " + MAX_TAGS + " tags are allowed");
+        }
+        String localeTag = locale == null || locale.isBlank() ? null
+                : validate(locale, LOCALE).replace('_', '-').toLowerCase(Locale.ROOT);
+        String userIdValue = userId == null || userId.isBlank() ? null : validate(userId, USER);
+        if (tagSet.isEmpty() && localeTag == null && userIdValue == null) {
+            return NONE;
+        }
+        return new Targeting(Collections.unmodifiableSet(tagSet), localeTag, userIdValue);
+    }
+
+    /**
+     * Whether there are no attributes.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return this == NONE || tags.isEmpty() && locale == null && userId == null;
+    }
+
+    /**
+     * Index terms: every tag, user, full locale and its language, e.g. {@code locale:en-us} and {@code locale:en}.
+     *
+     * @return terms
+     */
+    public Set<String> terms() {
+        if (isEmpty()) {
+            return Set.of();
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        tags.forEach(tag -> terms.add(term(TAG, tag)));
+        if (locale != null) {
+            terms.add(term(LOCALE, locale));
+            int separator = locale.indexOf('-');
+            if (separator > 0) {
+                terms.add(term(LOCALE, locale.substring(0, separator)));
+            }
+        }
+        if (userId != null) {
+            terms.add(term(USER, userId));
+        }
+        return terms;
+    }
+
+    /**
+     * Builds index term.
+     *
+     * @param key   term key
+     * @param value term value
+     * @return term
+     */
+    static String term(final String key, final String value) {
+        return key + ':' + value;
+    }
+
+    /**
+     * Checks value.
+     *
+     * @param value value
+     * @param name  attribute name
+     * @return trimmed value
+     */
+    private static String validate(final String value, final String name) {
+        String trimmed = value == null ? "" : value.trim();
+        if (!VALUE.matcher(trimmed).matches()) {
+            throw new InvalidSubscriptionException("Malformed " + name + ": only letters, digits and _.@+- are allowed,"
+                    + " up to " + MAX_VALUE_LENGTH + " characters");
+        }
+        return trimmed;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.artemoons.webpush.subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, every bucket is a doubly linked list of timeouts.
+ * Timeout lands in the bucket of its deadline tick and remembers how many full rotations are left, so both
+ * scheduling and cancellation are O(1) and advancing by a tick only visits a single bucket.
+ * Not thread-safe, callers synchronize.
+ *
+ * @param <T> timeout payload
+ */
+final class TimingWheel<T> {
+
+    /**
+     * Tick duration, milliseconds.
+     */
+    private final long tickMillis;
+    /**
+     * Bucket index mask, number of buckets is a power of two.
+     */
+    private final int mask;
+    /**
+     * Bucket heads.
+     */
+    private final List<Timeout<T>> buckets;
+    /**
+     * Next tick to process.
+     */
+    private long tick;
+    /**
+     * Number of pending timeouts.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration tick duration, milliseconds
+     * @param wheelSize    number of buckets, rounded up to a power of two
+     * @param now          current time, milliseconds
+     */
+    TimingWheel(final long tickDuration, final int wheelSize, final long now) {
+        this.tickMillis = Math.max(1, tickDuration);
+        int bucketCount = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.mask = bucketCount - 1;
+        this.buckets = new ArrayList<>(Collections.nCopies(bucketCount, null));
+        this.tick = now / tickMillis;
+    }
+
+    /**
+     * Schedules timeout, deadline in the past expires on the next advance.
+     *
+     * @param payload  payload
+     * @param deadline deadline, milliseconds
+     * @return handle for cancellation
+     */
+    Timeout<T> schedule(final T payload, final long deadline) {
+        long deadlineTick = Math.floorDiv(deadline, tickMillis);
+        if (Math.floorMod(deadline, tickMillis) != 0) {
+            deadlineTick++;
+        }
+        deadlineTick = Math.max(tick, deadlineTick);
+        Timeout<T> timeout = new Timeout<>(payload, deadline);
+        timeout.rounds = (deadlineTick - tick) / buckets.size();
+        timeout.bucket = (int) (deadlineTick & mask);
+        Timeout<T> head = buckets.get(timeout.bucket);
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets.set(timeout.bucket, timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels timeout, does nothing if it has already expired or been cancelled.
+     *
+     * @param timeout handle
+     */
+    void cancel(final Timeout<T> timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev == null) {
+            buckets.set(timeout.bucket, timeout.next);
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Processes all ticks up to the current time.
+     *
+     * @param now     current time, milliseconds
+     * @param expired receives payloads of expired timeouts
+     */
+    void advance(final long now, final Consumer<T> expired) {
+        long lastTick = now / tickMillis;
+        while (tick <= lastTick) {
+            Timeout<T> timeout = buckets.get((int) (tick & mask));
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    cancel(timeout);
+                    expired.accept(timeout.payload);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Number of pending timeouts.
+     *
+     * @return count
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Scheduled timeout.
+     *
+     * @param <T> payload
+     */
+    static final class Timeout<T> {
+
+        /**
+         * Payload.
+         */
+        private final T payload;
+        /**
+         * Deadline, milliseconds.
+         */
+        private final long deadline;
+        /**
+         * Full wheel rotations left.
+         */
+        private long rounds;
+        /**
+         * Bucket index, -1 if not scheduled.
+         */
+        private int bucket = -1;
+        /**
+         * Previous timeout in the bucket.
+         */
+        private Timeout<T> prev;
+        /**
+         * Next timeout in the bucket.
+         */
+        private Timeout<T> next;
+
+        /**
+         * Constructor.
+         *
+         * @param timeoutPayload payload
+         * @param deadlineMillis deadline, milliseconds
+         */
+        private Timeout(final T timeoutPayload, final long deadlineMillis) {
+            this.payload = timeoutPayload;
+            this.deadline = deadlineMillis;
+        }
+
+        /**
+         * Deadline.
+         *
+         * @return deadline, milliseconds
+         */
+        long getDeadline() {
+            return deadline;
+        }
+    }
+
+}
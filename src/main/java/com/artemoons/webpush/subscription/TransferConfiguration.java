@@ -0,0 +1,32 @@
+package com.artemoons.webpush.subscription;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Subscription export and import configuration.
+ */
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "subscription.transfer")
+public class TransferConfiguration {
+
+    /**
+     * Default number of subscriptions validated and stored together.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Subscriptions validated and stored together, at most two batches are held in memory per import.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Threads validating imported keys.
+     */
+    private int validationThreads = Runtime.getRuntime().availableProcessors();
+
+}
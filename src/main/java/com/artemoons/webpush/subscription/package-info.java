@@ -0,0 +1,6 @@
+/**
+ * Subscribers registry package.
+ *
+ * @author <a href="mailto:github@eeel.ru">Artem Utkin</a>
+ */
+package com.artemoons.webpush.subscription;
@@ -6,9 +6,12 @@ self.addEventListener('notificationclick', event => event.waitUntil(handleNotifi
 
 self.addEventListener('notificationclose', event => console.info('notificationclose event fired'));
 
+// first byte of a deflate-compressed payload, plain payload is JSON
+const DEFLATE_MARKER = 1;
+
 async function handlePushEvent(event) {
     console.info('Received new message');
-    const msg = event.data.json();
+    const msg = await readMessage(event.data);
 
     self.registration.showNotification(msg.title, {
         body: msg.body,
@@ -16,6 +19,15 @@ async function handlePushEvent(event) {
     });
 }
 
+async function readMessage(data) {
+    const bytes = new Uint8Array(await data.arrayBuffer());
+    if (bytes[0] !== DEFLATE_MARKER) {
+        return JSON.parse(new TextDecoder().decode(bytes));
+    }
+    const stream = new Blob([bytes.subarray(1)]).stream().pipeThrough(new DecompressionStream('deflate'));
+    return JSON.parse(await new Response(stream).text());
+}
+
 const urlToOpen1 = new URL('/index.html', self.location.origin).href;
 const urlToOpen2 = new URL('/', self.location.origin).href;
 
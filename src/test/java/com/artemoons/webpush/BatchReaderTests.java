@@ -0,0 +1,58 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.BatchReader;
+import com.artemoons.webpush.dto.BatchItem;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BatchReaderTests {
+
+    private final BatchReader batchReader = new BatchReader(Jackson2ObjectMapperBuilder.json().build());
+
+    @Test
+    void readsArrayAndNdjson() {
+        String first = "{\"endpoint\": \"https://push.example/1\", \"payload\": {\"title\": \"a\", \"body\": \"b\"}}";
+        String second = "{\"userId\": \"42\", \"payload\": {\"title\": \"c\", \"body\": \"d\"}}";
+
+        for (String body : List.of("[" + first + ", " + second + "]", first + "\n" + second + "\n")) {
+            BatchReader.MessageBatch batch = batchReader.read(stream(body));
+            List<BatchItem> items = new ArrayList<>();
+            batch.forEach(items::add);
+
+            assertNull(batch.getError());
+            assertEquals(2, items.size());
+            assertEquals("https://push.example/1", items.get(0).getEndpoint());
+            assertEquals("b", items.get(0).getPayload().getBody());
+            assertEquals("42", items.get(1).getUserId());
+            assertEquals("c", items.get(1).getPayload().getTitle());
+        }
+    }
+
+    @Test
+    void stopsAtMalformedItem() {
+        String item = "{\"userId\": \"42\", \"payload\": {\"title\": \"a\", \"body\": \"b\"}}";
+
+        for (String body : List.of(item + "\n{\"userId\": ", "[" + item + ", 1]", "[" + item)) {
+            BatchReader.MessageBatch batch = batchReader.read(stream(body));
+            List<BatchItem> items = new ArrayList<>();
+            batch.forEach(items::add);
+
+            assertEquals(1, items.size());
+            assertNotNull(batch.getError());
+        }
+    }
+
+    private static ByteArrayInputStream stream(final String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.cluster.ClusterConfiguration;
+import com.artemoons.webpush.cluster.ClusterRouter;
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.DeliveryLog;
+import com.artemoons.webpush.delivery.JobRegistry;
+import com.artemoons.webpush.dto.BatchItem;
+import com.artemoons.webpush.dto.PushMessage;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterRouterTests {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Test
+    void forwardsBatchItemsToTheirOwners() throws Exception {
+        try (StubPushServer peer = new StubPushServer()) {
+            peer.respondWith(path -> 202);
+            ClusterRouter router = new ClusterRouter(cluster(peer), objectMapper);
+            String local = ownedEndpoint(router, false);
+            String remote = ownedEndpoint(router, true);
+            PushMessage payload = PushMessage.builder().title("Hello").body("batch").ttl(60).build();
+            List<BatchItem> batch = List.of(
+                    new BatchItem(local, null, payload),
+                    new BatchItem(remote, null, payload),
+                    new BatchItem(null, "42", payload));
+
+            ClusterRouter.BatchSplit split = router.split(batch, null);
+            List<BatchItem> handledLocally = new ArrayList<>();
+            split.forEach(handledLocally::add);
+            DeliveryConfiguration configuration = new DeliveryConfiguration();
+            DeliveryJob job = new JobRegistry(configuration, new DeliveryLog(configuration)).create();
+            router.forwardBatch(split, job);
+
+            assertEquals(List.of(batch.get(0), batch.get(2)), handledLocally);
+            assertEquals(1, peer.received().size());
+            StubPushServer.Received forwarded = peer.received().get(0);
+            assertEquals("api/v1/send/batch", forwarded.path());
+            assertEquals("node-1", forwarded.headers().getFirst(ClusterRouter.FORWARDED_HEADER));
+            String[] lines = new String(forwarded.body(), StandardCharsets.UTF_8).split("\n");
+            assertEquals(2, lines.length);
+            JsonNode first = objectMapper.readTree(lines[0]);
+            assertEquals(remote, first.path("endpoint").asText());
+            assertEquals(60, first.path("payload").path("ttl").asInt());
+            assertEquals("42", objectMapper.readTree(lines[1]).path("userId").asText());
+            assertTrue(job.toStatus().getShards().containsKey("node-2"));
+        }
+    }
+
+    @Test
+    void keepsForwardedBatchLocal() throws Exception {
+        try (StubPushServer peer = new StubPushServer()) {
+            ClusterRouter router = new ClusterRouter(cluster(peer), objectMapper);
+            PushMessage payload = PushMessage.builder().title("Hello").build();
+            List<BatchItem> batch = List.of(new BatchItem(ownedEndpoint(router, true), null, payload));
+
+            ClusterRouter.BatchSplit split = router.split(batch, "node-2");
+            List<BatchItem> handledLocally = new ArrayList<>();
+            split.forEach(handledLocally::add);
+            DeliveryConfiguration configuration = new DeliveryConfiguration();
+            router.forwardBatch(split, new JobRegistry(configuration, new DeliveryLog(configuration)).create());
+
+            assertEquals(batch, handledLocally);
+            assertEquals(0, peer.requestCount());
+        }
+    }
+
+    private static ClusterConfiguration cluster(final StubPushServer peer) {
+        ClusterConfiguration configuration = new ClusterConfiguration();
+        configuration.setEnabled(true);
+        configuration.setNodeId("node-1");
+        configuration.getMembers().add(member("node-1", "http://127.0.0.1:1"));
+        configuration.getMembers().add(member("node-2", peer.endpoint("").toString().replaceAll("/$", "")));
+        return configuration;
+    }
+
+    private static ClusterConfiguration.Member member(final String id, final String url) {
+        ClusterConfiguration.Member member = new ClusterConfiguration.Member();
+        member.setId(id);
+        member.setUrl(url);
+        return member;
+    }
+
+    private static String ownedEndpoint(final ClusterRouter router, final boolean remote) {
+        for (int i = 0; ; i++) {
+            String endpoint = "https://push.example.com/" + i;
+            if (router.remoteOwner(endpoint, null).isPresent() == remote) {
+                return endpoint;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.subscription.CompactSubscriberRegistry;
+import com.artemoons.webpush.subscription.InvalidSubscriptionException;
+import com.artemoons.webpush.subscription.RegistryConfiguration;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import com.artemoons.webpush.subscription.Targeting;
+import org.junit.jupiter.api.Test;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactSubscriberRegistryTests {
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final SubscriberFactory subscriberFactory = new SubscriberFactory(cryptoService);
+
+    @Test
+    void rejectsSegmentsLargerThanDirectBuffer() {
+        RegistryConfiguration configuration = new RegistryConfiguration();
+        configuration.setSegmentSlots(8 * 1024 * 1024);
+        configuration.setSlotSize(1024);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new CompactSubscriberRegistry(configuration, subscriberFactory));
+    }
+
+    @Test
+    void storesAndMaterializesSubscribers() {
+        CompactSubscriberRegistry registry = registry();
+        Subscriber subscriber = subscriber("https://push.example.com/1", 42L);
+
+        registry.put(subscriber);
+        registry.put(subscriber("https://push.example.com/2", null));
+        Subscriber restored = registry.get("https://push.example.com/1");
+
+        assertEquals(2, registry.size());
+        assertEquals(42L, restored.getExpirationTime());
+        assertArrayEquals(subscriber.getP256dh(), restored.getP256dh());
+        assertArrayEquals(subscriber.getAuth(), restored.getAuth());
+        assertEquals(subscriber.getPublicKey().getW(), restored.getPublicKey().getW());
+        assertNull(registry.get("https://push.example.com/2").getExpirationTime());
+    }
+
+    @Test
+    void reusesSlotsAndGrowsIndex() {
+        CompactSubscriberRegistry registry = registry();
+        Subscriber template = subscriber("https://push.example.com/template", null);
+        for (int i = 0; i < 5000; i++) {
+            registry.put(copy(template, "https://push.example.com/" + i));
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            assertTrue(registry.remove("https://push.example.com/" + i));
+        }
+        assertFalse(registry.remove("https://push.example.com/0"));
+        long reserved = registry.getReservedBytes();
+        for (int i = 0; i < 5000; i += 2) {
+            registry.put(copy(template, "https://push.example.com/again/" + i));
+        }
+
+        Set<String> endpoints = new HashSet<>();
+        registry.subscribers().forEach(subscriber -> endpoints.add(subscriber.getEndpoint()));
+
+        assertEquals(5000, registry.size());
+        assertEquals(5000, endpoints.size());
+        assertEquals(reserved, registry.getReservedBytes());
+        assertTrue(registry.contains("https://push.example.com/1"));
+        assertFalse(registry.contains("https://push.example.com/2"));
+        assertTrue(registry.contains("https://push.example.com/again/2"));
+        assertEquals(Set.of("news", "n27"), registry.get("https://push.example.com/11").getTargeting().getTags());
+        assertEquals("en-us", registry.get("https://push.example.com/again/2").getTargeting().getLocale());
+    }
+
+    @Test
+    void rejectsEndpointLongerThanSlot() {
+        CompactSubscriberRegistry registry = registry();
+
+        assertThrows(InvalidSubscriptionException.class,
+                () -> registry.put(subscriber("https://push.example.com/" + "a".repeat(512), null)));
+    }
+
+    private CompactSubscriberRegistry registry() {
+        RegistryConfiguration configuration = new RegistryConfiguration();
+        configuration.setSegmentSlots(1024);
+        return new CompactSubscriberRegistry(configuration, subscriberFactory);
+    }
+
+    private Subscriber copy(final Subscriber template, final String endpoint) {
+        return subscriberFactory.restore(endpoint, template.getExpirationTime(), template.getP256dh(),
+                template.getAuth(), Targeting.of(List.of("news", "n" + endpoint.length()), "en-US", null));
+    }
+
+    private Subscriber subscriber(final String endpoint, final Long expirationTime) {
+        ECPublicKey publicKey = (ECPublicKey) cryptoService.getKeyPairGenerator().generateKeyPair().getPublic();
+        byte[] auth = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(auth);
+        return subscriberFactory.create(endpoint, expirationTime, CryptoService.toUncompressedECPublicKey(publicKey),
+                auth);
+    }
+
+}
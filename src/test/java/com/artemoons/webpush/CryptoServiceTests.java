@@ -0,0 +1,191 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryMetrics;
+import com.artemoons.webpush.delivery.MessagePreparer;
+import com.artemoons.webpush.delivery.PayloadCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPrivateKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CryptoServiceTests {
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    @Test
+    void encryptedRecordDecryptsBack() throws Exception {
+        KeyPair uaKeyPair = cryptoService.getKeyPairGenerator().generateKeyPair();
+        ECPublicKey uaPublicKey = (ECPublicKey) uaKeyPair.getPublic();
+        byte[] authSecret = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(authSecret);
+        byte[] plainText = "{\"title\":\"Hello\",\"body\":\"😎\"}".getBytes(StandardCharsets.UTF_8);
+
+        for (int padding : new int[]{0, 100}) {
+            byte[] record = cryptoService.encrypt(plainText, uaPublicKey,
+                    CryptoService.toUncompressedECPublicKey(uaPublicKey), authSecret, padding);
+
+            assertArrayEquals(plainText, decrypt(record, uaKeyPair, authSecret));
+        }
+    }
+
+    @Test
+    void padsRecordsToSizeClassesWithoutPoolingThem() throws Exception {
+        PayloadConfiguration configuration = new PayloadConfiguration();
+        configuration.setSizeClasses(List.of(256, 1024, 4096));
+        CryptoService padding = new CryptoService(null, null, new RecordBufferPool(configuration));
+        KeyPair uaKeyPair = padding.getKeyPairGenerator().generateKeyPair();
+        ECPublicKey uaPublicKey = (ECPublicKey) uaKeyPair.getPublic();
+        byte[] uaPublicKeyRaw = CryptoService.toUncompressedECPublicKey(uaPublicKey);
+        byte[] authSecret = new byte[16];
+        byte[] large = new byte[500];
+        Arrays.fill(large, (byte) 'x');
+        byte[] small = "{}".getBytes(StandardCharsets.UTF_8);
+
+        byte[] first = padding.encrypt(large, uaPublicKey, uaPublicKeyRaw, authSecret, padding.paddingSize(large.length));
+        byte[] second = padding.encrypt(small, uaPublicKey, uaPublicKeyRaw, authSecret,
+                padding.paddingSize(small.length));
+        byte[] third = padding.encrypt(small, uaPublicKey, uaPublicKeyRaw, authSecret,
+                padding.paddingSize(small.length + 600));
+
+        assertEquals(1024, first.length);
+        assertEquals(256, second.length);
+        assertEquals(1024, third.length);
+        assertNotSame(first, third);
+        assertArrayEquals(large, decrypt(first, uaKeyPair, authSecret));
+        assertArrayEquals(small, decrypt(third, uaKeyPair, authSecret));
+    }
+
+    @Test
+    void timesEveryEncryptionStage() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CryptoService timed = new CryptoService(null, new DeliveryMetrics(registry), null);
+        KeyPair uaKeyPair = timed.getKeyPairGenerator().generateKeyPair();
+        ECPublicKey uaPublicKey = (ECPublicKey) uaKeyPair.getPublic();
+
+        timed.encrypt("{}".getBytes(StandardCharsets.UTF_8), uaPublicKey,
+                CryptoService.toUncompressedECPublicKey(uaPublicKey), new byte[16], 0);
+
+        assertEquals(1, registry.get("webpush.payload.encryption").timer().count());
+        for (String stage : List.of("ecdh", "hkdf", "aes")) {
+            assertEquals(1, registry.get("webpush.payload.encryption.stage").tag("stage", stage).timer().count());
+        }
+    }
+
+    @Test
+    void compressedPayloadDecodesBack() {
+        byte[] json = ("{\"title\":\"Digest\",\"body\":\"" + "news ".repeat(1000) + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = PayloadCodec.encode(json, 256);
+
+        assertEquals(PayloadCodec.DEFLATE_MARKER, compressed[0]);
+        assertTrue(compressed.length < MessagePreparer.MAX_PAYLOAD_SIZE);
+        assertArrayEquals(json, PayloadCodec.decode(compressed));
+        assertSame(json, PayloadCodec.encode(json, json.length + 1));
+    }
+
+    /**
+     * Example from RFC 8291 Appendix A. Record size field is the only difference: the service writes
+     * the actual record length instead of 4096.
+     */
+    @Test
+    void matchesRfc8291Example() throws Exception {
+        byte[] plainText = "When I grow up, I want to be a watermelon".getBytes(StandardCharsets.UTF_8);
+        byte[] uaPublic = decode("BCVxsr7N_eNgVRqvHtD0zTZsEc6-VV-JvLexhqUzORcxaOzi6-AYWXvTBHm4bjyPjs7Vd8pZGH6SRpkNtoIAiw4");
+        byte[] asPublic = decode("BP4z9KsN6nGRTbVYI_c7VJSPQTBtkgcy27mlmlMoZIIgDll6e3vCYLocInmYWAmS6TlzAC8wEqKK6PBru3jl7A8");
+        PrivateKey asPrivate = privateKey(decode("yfWPiYE-n46HLnH0KqZOF1fJJU3MYrct3AELtAQ-oRw"));
+        byte[] authSecret = decode("BTBZMqHH6r4Tts7J_aSIgg");
+        byte[] salt = decode("DGv6ra1nlYgDCS1FRnbzlw");
+        byte[] expected = decode("DGv6ra1nlYgDCS1FRnbzlwAAEABBBP4z9KsN6nGRTbVYI_c7VJSPQTBtkgcy27mlmlMoZIIgDll6e3vCYLoc"
+                + "InmYWAmS6TlzAC8wEqKK6PBru3jl7A_yl95bQpu6cVPTpK4Mqgkf1CXztLVBSt2Ks3oZwbuwXPXLWyouBWLVWGNWQexSgSxsj_"
+                + "Qulcy4a-fN");
+
+        byte[] record = cryptoService.encrypt(plainText, cryptoService.fromUncompressedECPublicKey(uaPublic),
+                uaPublic, authSecret, 0, new KeyPair(cryptoService.fromUncompressedECPublicKey(asPublic), asPrivate),
+                salt);
+
+        assertEquals(expected.length, record.length);
+        assertEquals(record.length - CryptoService.HEADER_LENGTH, ByteBuffer.wrap(record, 16, 4).getInt());
+        assertArrayEquals(Arrays.copyOfRange(expected, 0, 16), Arrays.copyOfRange(record, 0, 16));
+        assertArrayEquals(Arrays.copyOfRange(expected, 20, expected.length),
+                Arrays.copyOfRange(record, 20, record.length));
+    }
+
+    private byte[] decrypt(final byte[] record, final KeyPair uaKeyPair, final byte[] authSecret) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        byte[] salt = new byte[16];
+        buffer.get(salt);
+        int recordSize = buffer.getInt();
+        byte[] asPublic = new byte[buffer.get()];
+        buffer.get(asPublic);
+        byte[] cipherText = new byte[buffer.remaining()];
+        buffer.get(cipherText);
+        assertEquals(cipherText.length, recordSize);
+
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(uaKeyPair.getPrivate());
+        keyAgreement.doPhase(cryptoService.fromUncompressedECPublicKey(asPublic), true);
+        byte[] ecdhSecret = keyAgreement.generateSecret();
+
+        byte[] prkKey = hmac(authSecret, ecdhSecret);
+        byte[] ikm = hmac(prkKey, concat("WebPush: info\0".getBytes(StandardCharsets.UTF_8),
+                CryptoService.toUncompressedECPublicKey((ECPublicKey) uaKeyPair.getPublic()), asPublic, new byte[]{1}));
+        byte[] prk = hmac(salt, ikm);
+        byte[] cek = Arrays.copyOf(hmac(prk, "Content-Encoding: aes128gcm\0\1".getBytes(StandardCharsets.UTF_8)), 16);
+        byte[] nonce = Arrays.copyOf(hmac(prk, "Content-Encoding: nonce\0\1".getBytes(StandardCharsets.UTF_8)), 12);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, nonce));
+        byte[] padded = cipher.doFinal(cipherText);
+
+        int delimiter = padded.length - 1;
+        while (padded[delimiter] == 0) {
+            delimiter--;
+        }
+        assertEquals(2, padded[delimiter]);
+        return Arrays.copyOf(padded, delimiter);
+    }
+
+    private PrivateKey privateKey(final byte[] d) throws Exception {
+        ECPublicKey anyKey = (ECPublicKey) cryptoService.getKeyPairGenerator().generateKeyPair().getPublic();
+        return KeyFactory.getInstance("EC").generatePrivate(new ECPrivateKeySpec(new BigInteger(1, d), anyKey.getParams()));
+    }
+
+    private static byte[] hmac(final byte[] key, final byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] concat(final byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(arrays).mapToInt(array -> array.length).sum());
+        Arrays.stream(arrays).forEach(buffer::put);
+        return buffer.array();
+    }
+
+    private static byte[] decode(final String value) {
+        return Base64.getUrlDecoder().decode(value);
+    }
+
+}
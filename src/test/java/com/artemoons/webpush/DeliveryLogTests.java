@@ -0,0 +1,46 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.DeliveryLog;
+import com.artemoons.webpush.delivery.DeliveryOutcome;
+import com.artemoons.webpush.delivery.JobRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DeliveryLogTests {
+
+    @Test
+    void aggregatesOutcomesAndLimitsFailureDetails() {
+        DeliveryConfiguration configuration = new DeliveryConfiguration();
+        configuration.getLogging().setFailureDetailsPerSecond(0.001);
+        configuration.getLogging().setFailureDetailsBurst(2);
+        DeliveryJob job = new JobRegistry(configuration, new DeliveryLog(configuration)).create();
+
+        for (int i = 0; i < 3; i++) {
+            job.enqueued();
+            job.record("https://a.example/" + i, "https://a.example", 201, DeliveryOutcome.SENT, null);
+        }
+        job.enqueued();
+        job.record("https://a.example/3", "https://a.example", 410, DeliveryOutcome.GONE, null);
+        for (int i = 0; i < 5; i++) {
+            job.enqueued();
+            job.record("https://b.example/" + i, "https://b.example", 500, DeliveryOutcome.FAILED, null);
+        }
+        job.enqueued();
+        job.record("https://b.example/5", "https://b.example", -1, DeliveryOutcome.FAILED,
+                new IllegalStateException("connection reset"));
+        job.complete();
+
+        assertEquals(Map.of(-1, 1L, 201, 3L, 410, 1L, 500, 5L), job.statusCounts());
+        assertEquals(Map.of(
+                "https://a.example", Map.of(DeliveryOutcome.SENT, 3L, DeliveryOutcome.GONE, 1L),
+                "https://b.example", Map.of(DeliveryOutcome.FAILED, 6L)), job.originCounts());
+        assertEquals(4, job.getSuppressed());
+        assertEquals(0, job.toStatus().getQueued());
+    }
+
+}
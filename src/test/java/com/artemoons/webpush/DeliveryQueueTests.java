@@ -0,0 +1,135 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.DeliveryLog;
+import com.artemoons.webpush.delivery.DeliveryQueue;
+import com.artemoons.webpush.delivery.FanOutEngine;
+import com.artemoons.webpush.delivery.JobRegistry;
+import com.artemoons.webpush.delivery.PreparedMessage;
+import com.artemoons.webpush.delivery.QueueFullException;
+import com.artemoons.webpush.dto.Urgency;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeliveryQueueTests {
+
+    @TempDir
+    private Path directory;
+
+    private DeliveryConfiguration configuration;
+
+    private FanOutEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        configuration = new DeliveryConfiguration();
+        configuration.getQueue().setEnabled(true);
+        configuration.getQueue().setDirectory(directory.toString());
+        configuration.getQueue().setCheckpointInterval(Duration.ofMillis(20));
+        engine = new FanOutEngine(configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    void resumesUnfinishedBroadcastAfterRestart() throws Exception {
+        List<String> endpoints = IntStream.range(0, 10).mapToObj(i -> "https://push.example.com/" + i).toList();
+        Set<String> sent = ConcurrentHashMap.newKeySet();
+        DeliveryQueue first = queue();
+        first.start((job, endpoint, message, gone) -> {
+            if (endpoint.endsWith("/3") || endpoint.endsWith("/7")) {
+                // never finishes, as if the process crashed while sending
+                return new CompletableFuture<>();
+            }
+            sent.add(endpoint);
+            return CompletableFuture.completedFuture(null);
+        }, (job, gone) -> {
+        });
+        DeliveryJob job = new JobRegistry(configuration, new DeliveryLog(configuration)).create();
+        first.enqueue(job, new PreparedMessage("{}".getBytes(StandardCharsets.UTF_8), 60, Urgency.HIGH,
+                "scores"), endpoints);
+        awaitTrue(() -> sent.size() == 8);
+        // done records are written right after the outcome
+        Thread.sleep(100);
+        first.stop();
+
+        Set<String> resent = ConcurrentHashMap.newKeySet();
+        CompletableFuture<DeliveryJob> finished = new CompletableFuture<>();
+        JobRegistry registry = new JobRegistry(configuration, new DeliveryLog(configuration));
+        DeliveryQueue second = new DeliveryQueue(configuration, engine, registry);
+        second.start((resumed, endpoint, message, gone) -> {
+            assertEquals("{}", new String(message.getPayload(), StandardCharsets.UTF_8));
+            assertEquals(60, message.getTtl());
+            assertEquals(Urgency.HIGH, message.getUrgency());
+            assertEquals("scores", message.getTopic());
+            resent.add(endpoint);
+            return CompletableFuture.completedFuture(null);
+        }, (resumed, gone) -> finished.complete(resumed));
+
+        DeliveryJob resumed = finished.get(5, TimeUnit.SECONDS);
+        assertEquals(job.getId(), resumed.getId());
+        assertTrue(registry.find(job.getId()).isPresent());
+        // only deliveries unfinished at the crash are repeated
+        assertEquals(Set.of(endpoints.get(3), endpoints.get(7)), resent);
+        assertEquals(2, resumed.toStatus().getQueued());
+        assertEquals(0, resumed.toStatus().getSkipped());
+        awaitTrue(() -> second.getPendingBytes() == 0);
+        second.stop();
+    }
+
+    @Test
+    void dropsJobOfRejectedBroadcast() throws Exception {
+        configuration.getQueue().setMaxPending(DataSize.ofBytes(0));
+        JobRegistry registry = new JobRegistry(configuration, new DeliveryLog(configuration));
+        DeliveryQueue queue = new DeliveryQueue(configuration, engine, registry);
+        queue.start((job, endpoint, message, gone) -> new CompletableFuture<>(), (job, gone) -> {
+        });
+        PreparedMessage message = new PreparedMessage("{}".getBytes(StandardCharsets.UTF_8), 60, null, null);
+        DeliveryJob accepted = registry.create();
+        queue.enqueue(accepted, message, List.of("https://push.example.com/1"));
+        DeliveryJob rejected = registry.create();
+
+        assertThrows(QueueFullException.class,
+                () -> queue.enqueue(rejected, message, List.of("https://push.example.com/2")));
+        assertTrue(registry.find(accepted.getId()).isPresent());
+        assertFalse(registry.find(rejected.getId()).isPresent());
+        queue.stop();
+    }
+
+    private DeliveryQueue queue() {
+        return new DeliveryQueue(configuration, engine,
+                new JobRegistry(configuration, new DeliveryLog(configuration)));
+    }
+
+    private static void awaitTrue(final BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+}
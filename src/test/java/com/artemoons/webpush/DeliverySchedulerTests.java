@@ -0,0 +1,327 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.DeliveryMetrics;
+import com.artemoons.webpush.delivery.DeliveryScheduler;
+import com.artemoons.webpush.delivery.FanOutEngine;
+import com.artemoons.webpush.delivery.HttpClientPushTransport;
+import com.artemoons.webpush.delivery.MessageCollapsedException;
+import com.artemoons.webpush.delivery.OriginUnavailableException;
+import com.artemoons.webpush.delivery.PushRequest;
+import com.artemoons.webpush.delivery.PushResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeliverySchedulerTests {
+
+    private StubPushServer pushServer;
+
+    private DeliveryConfiguration configuration;
+
+    private FanOutEngine senders;
+
+    private DeliveryScheduler scheduler;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        pushServer = new StubPushServer();
+        configuration = new DeliveryConfiguration();
+        configuration.getRetry().setInitialBackoff(Duration.ofMillis(10));
+        configuration.getRetry().setMaxAttempts(3);
+        meterRegistry = new SimpleMeterRegistry();
+        senders = new FanOutEngine(configuration);
+        scheduler = new DeliveryScheduler(new HttpClientPushTransport(configuration), configuration,
+                new DeliveryMetrics(meterRegistry), senders);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+        senders.shutdown();
+        pushServer.close();
+    }
+
+    @Test
+    void retriesServerErrorsUntilDelivered() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        pushServer.respondWith(path -> calls.incrementAndGet() < 3 ? 503 : 201);
+
+        PushResponse response = scheduler.send("origin", this::request).get(5, TimeUnit.SECONDS);
+
+        assertEquals(201, response.statusCode());
+        assertEquals(3, pushServer.received().size());
+        assertEquals(2, scheduler.getRetries());
+        assertEquals(2, meterRegistry.get("webpush.push.requests").tags("origin", "origin", "status", "503").timer()
+                .count());
+        assertEquals(1, meterRegistry.get("webpush.push.requests").tags("origin", "origin", "status", "201").timer()
+                .count());
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() throws Exception {
+        pushServer.respondWith(path -> 429);
+
+        PushResponse response = scheduler.send("origin", this::request).get(5, TimeUnit.SECONDS);
+
+        assertEquals(429, response.statusCode());
+        assertEquals(3, pushServer.received().size());
+        assertEquals(1, scheduler.getExhausted());
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    void honorsRetryAfter() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        pushServer.respondWith(path -> calls.incrementAndGet() == 1 ? 429 : 201);
+        pushServer.responseHeader(DeliveryScheduler.RETRY_AFTER, "1");
+        long start = System.nanoTime();
+
+        PushResponse response = scheduler.send("origin", this::request).get(5, TimeUnit.SECONDS);
+
+        assertEquals(201, response.statusCode());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    void limitsRatePerOrigin() throws Exception {
+        configuration.getRateLimit().setPermitsPerSecond(20);
+        configuration.getRateLimit().setBurst(1);
+        DeliveryScheduler limited = new DeliveryScheduler(new HttpClientPushTransport(configuration), configuration,
+                new DeliveryMetrics(new SimpleMeterRegistry()), senders);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            limited.send("origin", this::request);
+        }
+        limited.send("origin", this::request).get(5, TimeUnit.SECONDS);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+        limited.shutdown();
+    }
+
+    @Test
+    void collapsesSupersededRequests() throws Exception {
+        configuration.getRateLimit().setPermitsPerSecond(10);
+        configuration.getRateLimit().setBurst(1);
+        DeliveryScheduler limited = new DeliveryScheduler(new HttpClientPushTransport(configuration), configuration,
+                new DeliveryMetrics(new SimpleMeterRegistry()), senders);
+        AtomicInteger prepared = new AtomicInteger();
+
+        limited.send("origin", this::request).get(5, TimeUnit.SECONDS);
+        CompletableFuture<PushResponse> superseded = limited.send("origin", "subscriber scores", () -> {
+            prepared.incrementAndGet();
+            return request();
+        });
+        PushResponse latest = limited.send("origin", "subscriber scores", this::request).get(5, TimeUnit.SECONDS);
+        ExecutionException dropped = assertThrows(ExecutionException.class,
+                () -> superseded.get(5, TimeUnit.SECONDS));
+
+        assertEquals(201, latest.statusCode());
+        assertInstanceOf(MessageCollapsedException.class, dropped.getCause());
+        assertEquals(0, prepared.get());
+        assertEquals(1, limited.getCollapsed());
+        assertEquals(2, pushServer.received().size());
+        limited.shutdown();
+    }
+
+    @Test
+    void preparesDelayedAttemptsOnSenderPool() throws Exception {
+        configuration.getRateLimit().setPermitsPerSecond(20);
+        configuration.getRateLimit().setBurst(1);
+        DeliveryScheduler limited = new DeliveryScheduler(new HttpClientPushTransport(configuration), configuration,
+                new DeliveryMetrics(new SimpleMeterRegistry()), senders);
+        AtomicInteger calls = new AtomicInteger();
+        pushServer.respondWith(path -> calls.incrementAndGet() == 1 ? 503 : 201);
+        List<String> threads = new CopyOnWriteArrayList<>();
+
+        PushResponse retried = limited.send("origin", () -> {
+            threads.add(Thread.currentThread().getName());
+            return request();
+        }).get(5, TimeUnit.SECONDS);
+        PushResponse waited = limited.send("origin", () -> {
+            threads.add(Thread.currentThread().getName());
+            return request();
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(201, retried.statusCode());
+        assertEquals(201, waited.statusCode());
+        assertEquals(3, threads.size());
+        assertEquals(Thread.currentThread().getName(), threads.get(0));
+        assertTrue(threads.get(1).startsWith("push-sender-"), threads.get(1));
+        assertTrue(threads.get(2).startsWith("push-sender-"), threads.get(2));
+        limited.shutdown();
+    }
+
+    @Test
+    void isolatesFailingOrigin() throws Exception {
+        configuration.getRetry().setMaxAttempts(1);
+        configuration.getCircuitBreaker().setWindowSize(10);
+        configuration.getCircuitBreaker().setMinimumCalls(5);
+        pushServer.respondWith(path -> path.equals("failing") ? 503 : 201);
+        int initialLimit = scheduler.getLimit("failing");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(503, scheduler.send("failing", () -> request("failing")).get(5, TimeUnit.SECONDS)
+                    .statusCode());
+        }
+        ExecutionException rejected = assertThrows(ExecutionException.class,
+                () -> scheduler.send("failing", () -> request("failing")).get(5, TimeUnit.SECONDS));
+        PushResponse healthy = scheduler.send("healthy", () -> request("healthy")).get(5, TimeUnit.SECONDS);
+
+        assertInstanceOf(OriginUnavailableException.class, rejected.getCause());
+        assertTrue(scheduler.isIsolated("failing"));
+        assertEquals(5, pushServer.received().stream().filter(received -> received.path().equals("failing")).count());
+        assertEquals(201, healthy.statusCode());
+        assertTrue(scheduler.getLimit("failing") < initialLimit);
+    }
+
+    @Test
+    void keepsHealthyOriginFlowingNextToSlowOne() throws Exception {
+        configuration.setMaxInFlight(8);
+        configuration.getRetry().setMaxAttempts(1);
+        configuration.getConcurrency().setInitialLimit(2);
+        configuration.getConcurrency().setMaxLimit(2);
+        configuration.getConcurrency().setLatencyThreshold(Duration.ofSeconds(1));
+        configuration.getCircuitBreaker().setWindowSize(10);
+        configuration.getCircuitBreaker().setMinimumCalls(4);
+        StubPushServer slowServer = new StubPushServer();
+        slowServer.respondWith(path -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(1200);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return 201;
+        });
+        FanOutEngine fanOutEngine = new FanOutEngine(configuration);
+        List<String> origins = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            origins.add(i % 2 == 0 ? "slow" : "healthy");
+        }
+        List<CompletableFuture<PushResponse>> healthy = new ArrayList<>();
+        long start = System.nanoTime();
+
+        CompletableFuture<Void> done = fanOutEngine.fanOutAsync(origins, origin -> {
+            StubPushServer server = origin.equals("slow") ? slowServer : pushServer;
+            CompletableFuture<PushResponse> response = scheduler.send(origin,
+                    () -> new PushRequest(server.endpoint(origin), Map.of(), new byte[0]));
+            if (origin.equals("healthy")) {
+                synchronized (healthy) {
+                    healthy.add(response);
+                }
+            }
+            return response;
+        });
+        while (healthy.size() < 50) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        CompletableFuture.allOf(healthy.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        long healthyElapsed = System.nanoTime() - start;
+        done.get(10, TimeUnit.SECONDS);
+
+        assertTrue(healthyElapsed < TimeUnit.MILLISECONDS.toNanos(1500), "healthy origin has been held up");
+        assertTrue(healthy.stream().allMatch(response -> response.join().statusCode() == 201));
+        assertFalse(scheduler.isIsolated("healthy"));
+        assertTrue(scheduler.isIsolated("slow"));
+        fanOutEngine.shutdown();
+        slowServer.close();
+    }
+
+    @Test
+    void keepsHealthyOriginFlowingNextToThrottledOne() throws Exception {
+        configuration.setMaxInFlight(4);
+        configuration.getRetry().setMaxAttempts(2);
+        pushServer.respondWith(path -> path.equals("throttled") ? 429 : 201);
+        pushServer.responseHeader(DeliveryScheduler.RETRY_AFTER, "5");
+        FanOutEngine fanOutEngine = new FanOutEngine(configuration);
+        List<String> origins = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            origins.add(i % 2 == 0 ? "throttled" : "healthy");
+        }
+        List<CompletableFuture<PushResponse>> healthy = new ArrayList<>();
+
+        fanOutEngine.fanOutAsync(origins, origin -> {
+            CompletableFuture<PushResponse> response = scheduler.send(origin, () -> request(origin));
+            if (origin.equals("healthy")) {
+                synchronized (healthy) {
+                    healthy.add(response);
+                }
+            }
+            return response;
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (healthy.size() < 20 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(20, healthy.size(), "throttled origin has held up the fan-out");
+        CompletableFuture.allOf(healthy.toArray(CompletableFuture[]::new)).get(3, TimeUnit.SECONDS);
+        assertTrue(healthy.stream().allMatch(response -> response.join().statusCode() == 201));
+        assertTrue(fanOutEngine.getInFlight() < 4);
+        fanOutEngine.shutdown();
+    }
+
+    @Test
+    void keepsHealthyOriginFlowingNextToFailingOne() throws Exception {
+        configuration.setMaxInFlight(4);
+        configuration.getRetry().setMaxAttempts(2);
+        configuration.getCircuitBreaker().setMinimumCalls(1000);
+        pushServer.respondWith(path -> path.equals("failing") ? 503 : 201);
+        pushServer.retryAfter(5);
+        FanOutEngine fanOutEngine = new FanOutEngine(configuration);
+        List<String> origins = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            origins.add(i % 2 == 0 ? "failing" : "healthy");
+        }
+        List<CompletableFuture<PushResponse>> healthy = new ArrayList<>();
+
+        fanOutEngine.fanOutAsync(origins, origin -> {
+            CompletableFuture<PushResponse> response = scheduler.send(origin, () -> request(origin));
+            if (origin.equals("healthy")) {
+                synchronized (healthy) {
+                    healthy.add(response);
+                }
+            }
+            return response;
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (healthy.size() < 20 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(20, healthy.size(), "failing origin has held up the fan-out");
+        CompletableFuture.allOf(healthy.toArray(CompletableFuture[]::new)).get(3, TimeUnit.SECONDS);
+        assertTrue(healthy.stream().allMatch(response -> response.join().statusCode() == 201));
+        assertFalse(scheduler.isIsolated("healthy"));
+        fanOutEngine.shutdown();
+    }
+
+    private PushRequest request(final String path) {
+        return new PushRequest(pushServer.endpoint(path), Map.of(), new byte[0]);
+    }
+
+    private PushRequest request() {
+        return new PushRequest(pushServer.endpoint("subscriber"), Map.of(), new byte[0]);
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.artemoons.webpush;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EphemeralKeyPoolTests {
+
+    private EphemeralKeyPool pool;
+
+    @AfterEach
+    void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    void generatesInlineWhilePoolIsEmpty() throws Exception {
+        pool = new EphemeralKeyPool(configuration(4));
+        CryptoService cryptoService = new CryptoService(pool, null, null);
+        KeyPair uaKeyPair = cryptoService.getKeyPairGenerator().generateKeyPair();
+        ECPublicKey uaPublicKey = (ECPublicKey) uaKeyPair.getPublic();
+
+        byte[] record = cryptoService.encrypt("{}".getBytes(StandardCharsets.UTF_8), uaPublicKey,
+                CryptoService.toUncompressedECPublicKey(uaPublicKey), new byte[16], 0);
+
+        assertNotNull(record);
+        assertNull(pool.poll());
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(0, pool.getHitRate());
+    }
+
+    @Test
+    void handsOutEveryKeyPairOnce() throws Exception {
+        pool = new EphemeralKeyPool(configuration(4));
+        pool.start();
+        awaitFull();
+        Set<KeyPair> handedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (int i = 0; i < 8; i++) {
+            awaitFull();
+            assertTrue(handedOut.add(pool.poll()), "key pair has been handed out twice");
+        }
+        awaitFull();
+
+        assertEquals(8, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        assertEquals(1, pool.getHitRate());
+        assertTrue(pool.getLastRefillLag().compareTo(Duration.ZERO) > 0);
+        assertTrue(pool.getMaxRefillLag().compareTo(pool.getLastRefillLag()) >= 0);
+    }
+
+    private void awaitFull() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.size() < 4 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertEquals(4, pool.size());
+    }
+
+    private static KeyPoolConfiguration configuration(final int size) {
+        KeyPoolConfiguration configuration = new KeyPoolConfiguration();
+        configuration.setEnabled(true);
+        configuration.setSize(size);
+        return configuration;
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.subscription.FileSubscriptionStore;
+import com.artemoons.webpush.subscription.InvalidSubscriptionException;
+import com.artemoons.webpush.subscription.MapSubscriberRegistry;
+import com.artemoons.webpush.subscription.StoreConfiguration;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.interfaces.ECPublicKey;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSubscriptionStoreTests {
+
+    private static final long FAR_FUTURE = 4_102_444_800_000L;
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final SubscriberFactory subscriberFactory = new SubscriberFactory(cryptoService);
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void replaysJournalOnRestart() throws Exception {
+        FileSubscriptionStore store = open();
+        Subscriber first = subscriber("https://push.example.com/1", FAR_FUTURE);
+        store.put(first);
+        store.put(subscriber("https://push.example.com/2", null));
+        store.remove("https://push.example.com/2");
+        store.close();
+
+        FileSubscriptionStore reopened = open();
+
+        assertEquals(1, reopened.size());
+        Subscriber restored = reopened.get(first.getEndpoint());
+        assertEquals(FAR_FUTURE, restored.getExpirationTime());
+        assertArrayEquals(first.getP256dh(), restored.getP256dh());
+        assertArrayEquals(first.getAuth(), restored.getAuth());
+        assertFalse(reopened.contains("https://push.example.com/2"));
+        reopened.close();
+    }
+
+    @Test
+    void compactionKeepsLiveSubscriptions() throws Exception {
+        FileSubscriptionStore store = open();
+        for (int i = 0; i < 100; i++) {
+            store.put(subscriber("https://push.example.com/" + i, null));
+        }
+        for (int i = 0; i < 50; i++) {
+            store.remove("https://push.example.com/" + i);
+        }
+        store.compact();
+        store.put(subscriber("https://push.example.com/after", null));
+        store.close();
+
+        try (var files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+        FileSubscriptionStore reopened = open();
+
+        assertEquals(51, reopened.size());
+        assertTrue(reopened.contains("https://push.example.com/99"));
+        assertTrue(reopened.contains("https://push.example.com/after"));
+        assertFalse(reopened.contains("https://push.example.com/0"));
+        reopened.close();
+    }
+
+    @Test
+    void ignoresTornRecordAtTheEnd() throws Exception {
+        FileSubscriptionStore store = open();
+        store.put(subscriber("https://push.example.com/1", null));
+        store.put(subscriber("https://push.example.com/2", null));
+        store.close();
+        Path journal;
+        try (var files = Files.list(directory)) {
+            journal = files.filter(file -> file.getFileName().toString().startsWith("journal")).findFirst().orElseThrow();
+        }
+        byte[] content = Files.readAllBytes(journal);
+        Files.write(journal, Arrays.copyOf(content, content.length - 10));
+
+        FileSubscriptionStore reopened = open();
+
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.contains("https://push.example.com/1"));
+        reopened.close();
+    }
+
+    @Test
+    void removesExpiredAndBuriedSubscriptions() throws Exception {
+        FileSubscriptionStore store = open();
+        long now = System.currentTimeMillis();
+        store.put(subscriber("https://push.example.com/expiring", now + 200));
+        store.put(subscriber("https://push.example.com/renewed", now + 200));
+        store.put(subscriber("https://push.example.com/renewed", FAR_FUTURE));
+        store.put(subscriber("https://push.example.com/gone", null));
+
+        assertTrue(store.bury("https://push.example.com/gone"));
+        assertThrows(InvalidSubscriptionException.class,
+                () -> store.put(subscriber("https://push.example.com/gone", null)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.contains("https://push.example.com/expiring") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        store.close();
+
+        FileSubscriptionStore reopened = open();
+
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.contains("https://push.example.com/renewed"));
+        reopened.close();
+    }
+
+    private FileSubscriptionStore open() throws Exception {
+        StoreConfiguration configuration = new StoreConfiguration();
+        configuration.setDirectory(directory.toString());
+        configuration.setExpiryTick(Duration.ofMillis(50));
+        FileSubscriptionStore store = new FileSubscriptionStore(configuration, subscriberFactory, new MapSubscriberRegistry());
+        store.open();
+        return store;
+    }
+
+    private Subscriber subscriber(final String endpoint, final Long expirationTime) {
+        ECPublicKey publicKey = (ECPublicKey) cryptoService.getKeyPairGenerator().generateKeyPair().getPublic();
+        byte[] auth = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(auth);
+        return subscriberFactory.create(endpoint, expirationTime, CryptoService.toUncompressedECPublicKey(publicKey),
+                auth);
+    }
+
+}
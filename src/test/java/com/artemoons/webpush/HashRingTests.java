@@ -0,0 +1,54 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.cluster.HashRing;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTests {
+
+    private static final int KEYS = 30_000;
+
+    @Test
+    void partitionsKeysEvenly() {
+        HashRing<String> ring = new HashRing<>(List.of("a", "b", "c"), Function.identity(), 160);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.owner(endpoint(i)), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(Math.abs(count - KEYS / 3) < KEYS / 10, counts::toString));
+    }
+
+    @Test
+    void movesOnlyKeysOfNewMember() {
+        HashRing<String> before = new HashRing<>(List.of("a", "b", "c"), Function.identity(), 160);
+        HashRing<String> after = new HashRing<>(List.of("a", "b", "c", "d"), Function.identity(), 160);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String owner = after.owner(endpoint(i));
+            if (!owner.equals(before.owner(endpoint(i)))) {
+                assertEquals("d", owner);
+                moved++;
+            }
+        }
+
+        assertTrue(Math.abs(moved - KEYS / 4) < KEYS / 10, "moved " + moved);
+        assertEquals(before.owner(endpoint(7)), new HashRing<>(List.of("a", "b", "c"), Function.identity(), 160)
+                .owner(endpoint(7)));
+    }
+
+    private static String endpoint(final int i) {
+        return "https://fcm.googleapis.com/fcm/send/" + Integer.toHexString(i * 7919) + ":APA91b" + i;
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.HttpClientPushTransport;
+import com.artemoons.webpush.delivery.PushRequest;
+import com.artemoons.webpush.delivery.PushResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HttpClientPushTransportTests {
+
+    private StubPushServer pushServer;
+
+    private HttpClientPushTransport transport;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        pushServer = new StubPushServer();
+        transport = new HttpClientPushTransport(new DeliveryConfiguration());
+    }
+
+    @AfterEach
+    void tearDown() {
+        pushServer.close();
+    }
+
+    @Test
+    void sendsHeadersAndBody() throws Exception {
+        byte[] body = {1, 2, 3};
+        PushResponse response = transport.send(new PushRequest(pushServer.endpoint("subscriber"),
+                Map.of("TTL", "180", "Content-Encoding", "aes128gcm"), body)).get();
+
+        assertEquals(201, response.statusCode());
+        StubPushServer.Received received = pushServer.received().get(0);
+        assertEquals("subscriber", received.path());
+        assertEquals("180", received.headers().getFirst("TTL"));
+        assertEquals("aes128gcm", received.headers().getFirst("Content-Encoding"));
+        assertArrayEquals(body, received.body());
+    }
+
+    @Test
+    void reportsErrorStatusWithoutException() throws Exception {
+        pushServer.respondWith(path -> 410);
+
+        PushResponse response = transport.send(new PushRequest(pushServer.endpoint("gone"),
+                Map.of(), new byte[0])).get();
+
+        assertEquals(410, response.statusCode());
+    }
+
+}
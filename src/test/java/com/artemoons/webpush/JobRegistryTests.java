@@ -0,0 +1,58 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.DeliveryConfiguration;
+import com.artemoons.webpush.delivery.DeliveryJob;
+import com.artemoons.webpush.delivery.DeliveryLog;
+import com.artemoons.webpush.delivery.JobRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobRegistryTests {
+
+    @Test
+    void replaysJobForKnownIdempotencyKey() {
+        DeliveryConfiguration configuration = new DeliveryConfiguration();
+        configuration.getIdempotency().setMaxKeys(2);
+        JobRegistry registry = new JobRegistry(configuration, new DeliveryLog(configuration));
+        AtomicInteger started = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> registry.submit("a", () -> {
+            throw new IllegalStateException("queue is full");
+        }));
+        JobRegistry.Submission first = registry.submit("a", () -> start(registry, started));
+        JobRegistry.Submission retried = registry.submit("a", () -> start(registry, started));
+        registry.submit("b", () -> start(registry, started));
+        registry.submit("c", () -> start(registry, started));
+        JobRegistry.Submission evicted = registry.submit("a", () -> start(registry, started));
+
+        assertFalse(first.replayed());
+        assertTrue(retried.replayed());
+        assertEquals(first.job().getId(), retried.job().getId());
+        assertFalse(evicted.replayed());
+        assertNotEquals(first.job().getId(), evicted.job().getId());
+        assertEquals(4, started.get());
+    }
+
+    @Test
+    void deliversOncePerSubscriber() {
+        DeliveryConfiguration configuration = new DeliveryConfiguration();
+        DeliveryJob job = new JobRegistry(configuration, new DeliveryLog(configuration)).create();
+
+        assertTrue(job.claim("https://push.example.com/1"));
+        assertFalse(job.claim("https://push.example.com/1"));
+        assertTrue(job.claim("https://push.example.com/2"));
+    }
+
+    private static DeliveryJob start(final JobRegistry registry, final AtomicInteger started) {
+        started.incrementAndGet();
+        return registry.create();
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.delivery.PayloadCodec;
+import com.artemoons.webpush.dto.Subscription;
+import com.artemoons.webpush.dto.SubscriptionKeys;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Local push service stand-in, records received messages and answers with configurable status, latency and
+ * {@code Retry-After}. Responses are delayed without holding server threads.
+ * <p>
+ * Subscriptions created with {@link #subscribe} are served under {@code /push/} and checked the way FCM or Mozilla
+ * autopush would check them: VAPID token signature, audience and expiry, {@code aes128gcm} record decryption with
+ * the keys of the subscription, padding delimiter and {@code TTL} header. Invalid requests are answered with 400,
+ * 401, 404 or 413 and counted; valid ones get the configured response. Other paths are answered without checks.
+ */
+public class StubPushServer implements AutoCloseable {
+
+    public static final int MAX_RECORD_SIZE = 4096;
+
+    private static final String PUSH_PATH = "push/";
+
+    private static final Set<Integer> RETRIED = Set.of(429, 503);
+
+    private static final long MAX_TOKEN_LIFETIME = TimeUnit.HOURS.toMillis(24);
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final HttpServer server;
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService responder;
+
+    private final List<Received> received = new CopyOnWriteArrayList<>();
+
+    private final Map<String, String> responseHeaders = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final Map<String, Keys> subscriptions = new ConcurrentHashMap<>();
+
+    private final Map<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+
+    private volatile Function<String, Integer> status = path -> 201;
+
+    private volatile LongSupplier latency = () -> 0;
+
+    private volatile int retryAfter = -1;
+
+    private volatile boolean recording = true;
+
+    private volatile byte[] vapidKey;
+
+    private volatile Consumer<Delivery> listener = delivery -> {
+    };
+
+    public StubPushServer() throws IOException {
+        this(0);
+    }
+
+    public StubPushServer(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        workers = Executors.newCachedThreadPool(daemon("push"));
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        responder = Executors.newSingleThreadScheduledExecutor(daemon("push-responder"));
+        server.start();
+    }
+
+    public URI endpoint(final String path) {
+        return URI.create(origin() + "/" + path);
+    }
+
+    public String origin() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void respondWith(final Function<String, Integer> statusByPath) {
+        this.status = statusByPath;
+    }
+
+    /**
+     * Relative weights of response statuses, e.g. 201 weighted 95 and 429 weighted 5, drawn for every request.
+     */
+    public void statusMix(final Map<Integer, Integer> weights) {
+        NavigableMap<Integer, Integer> cumulative = new TreeMap<>();
+        int total = 0;
+        for (Map.Entry<Integer, Integer> entry : new TreeMap<>(weights).entrySet()) {
+            if (entry.getValue() > 0) {
+                total += entry.getValue();
+                cumulative.put(total, entry.getKey());
+            }
+        }
+        if (cumulative.isEmpty()) {
+            throw new IllegalArgumentException("Status mix must have a positive weight");
+        }
+        int bound = total;
+        respondWith(path -> cumulative.ceilingEntry(ThreadLocalRandom.current().nextInt(bound) + 1).getValue());
+    }
+
+    public void latency(final LongSupplier nanos) {
+        this.latency = nanos;
+    }
+
+    /**
+     * Retry-After seconds sent with 429 and 503, none by default.
+     */
+    public void retryAfter(final int seconds) {
+        this.retryAfter = seconds;
+    }
+
+    public void responseHeader(final String name, final String value) {
+        responseHeaders.put(name, value);
+    }
+
+    public void recording(final boolean enabled) {
+        this.recording = enabled;
+    }
+
+    /**
+     * Creates subscription of a synthetic browser, the server keeps its private key to decrypt messages.
+     */
+    public Subscription subscribe(final String id, final List<String> tags) {
+        KeyPair keyPair = cryptoService.getKeyPairGenerator().generateKeyPair();
+        byte[] auth = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(auth);
+        subscriptions.put(id, new Keys(keyPair, auth));
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return new Subscription(endpoint(PUSH_PATH + id).toString(), null,
+                new SubscriptionKeys(encoder.encodeToString(
+                        CryptoService.toUncompressedECPublicKey((ECPublicKey) keyPair.getPublic())),
+                        encoder.encodeToString(auth)),
+                tags, null, null);
+    }
+
+    /**
+     * Application server key every VAPID token must carry, any valid key is accepted if not set.
+     */
+    public void expectVapidKey(final byte[] uncompressedKey) {
+        this.vapidKey = uncompressedKey.clone();
+    }
+
+    /**
+     * Called on a server thread for every accepted message to a subscription, before the response is sent.
+     */
+    public void onDelivery(final Consumer<Delivery> deliveryListener) {
+        this.listener = deliveryListener;
+    }
+
+    public List<Received> received() {
+        return received;
+    }
+
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    public Map<Integer, Long> responses() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        responses.forEach((response, count) -> counts.put(response, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Invalid requests to subscriptions by reason.
+     */
+    public Map<String, Long> rejections() {
+        Map<String, Long> counts = new TreeMap<>();
+        rejections.forEach((reason, count) -> counts.put(reason, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        responder.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Parses latency distribution: {@code fixed:20ms}, {@code uniform:5ms:50ms} or {@code lognormal:20ms:0.5},
+     * the last one with median and shape.
+     */
+    public static LongSupplier latencyOf(final String spec) {
+        String[] parts = spec.toLowerCase(Locale.ROOT).split(":");
+        switch (parts[0]) {
+            case "fixed" -> {
+                long nanos = nanosOf(parts[1]);
+                return () -> nanos;
+            }
+            case "uniform" -> {
+                long min = nanosOf(parts[1]);
+                long max = nanosOf(parts[2]);
+                return () -> ThreadLocalRandom.current().nextLong(min, max + 1);
+            }
+            case "lognormal" -> {
+                double median = nanosOf(parts[1]);
+                double sigma = Double.parseDouble(parts[2]);
+                return () -> (long) (median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+            }
+            default -> throw new IllegalArgumentException("Unknown latency distribution " + spec);
+        }
+    }
+
+    /**
+     * Parses status mix, e.g. {@code 201:90,410:2,429:5,500:3}.
+     */
+    public static Map<Integer, Integer> statusMixOf(final String spec) {
+        Map<Integer, Integer> weights = new TreeMap<>();
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split(":");
+            weights.merge(Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 1,
+                    Integer::sum);
+        }
+        return weights;
+    }
+
+    private static long nanosOf(final String value) {
+        if (value.endsWith("ms")) {
+            return (long) (Double.parseDouble(value.substring(0, value.length() - 2)) * TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (value.endsWith("s")) {
+            return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * TimeUnit.SECONDS.toNanos(1));
+        }
+        throw new IllegalArgumentException("Duration must be given in ms or s: " + value);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        long arrivedAt = System.nanoTime();
+        String path = exchange.getRequestURI().getPath().substring(1);
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        requestCount.incrementAndGet();
+        if (recording) {
+            received.add(new Received(path, exchange.getRequestHeaders(), body));
+        }
+        int response = path.startsWith(PUSH_PATH) ? push(exchange, path, body, arrivedAt) : status.apply(path);
+        responses.computeIfAbsent(response, key -> new LongAdder()).increment();
+        responseHeaders.forEach(exchange.getResponseHeaders()::set);
+        if (retryAfter >= 0 && RETRIED.contains(response)) {
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfter));
+        }
+        long delay = Math.max(0, latency.getAsLong() - (System.nanoTime() - arrivedAt));
+        if (delay == 0) {
+            respond(exchange, response);
+        } else {
+            responder.schedule(() -> respond(exchange, response), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int response) {
+        try (exchange) {
+            exchange.sendResponseHeaders(response, -1);
+        } catch (IOException ex) {
+            // client has gone, nothing to answer
+        }
+    }
+
+    private int push(final HttpExchange exchange, final String path, final byte[] body, final long arrivedAt) {
+        String id = path.substring(PUSH_PATH.length());
+        Keys keys = subscriptions.get(id);
+        if (keys == null) {
+            return reject(404, "unknown subscription");
+        }
+        if (body.length > MAX_RECORD_SIZE) {
+            return reject(413, "record too large");
+        }
+        if (exchange.getRequestHeaders().getFirst("TTL") == null) {
+            return reject(400, "missing TTL");
+        }
+        if (!"aes128gcm".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            return reject(400, "unsupported content encoding");
+        }
+        if (!verifyVapid(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            return reject(401, "invalid VAPID token");
+        }
+        byte[] payload;
+        try {
+            payload = PayloadCodec.decode(decrypt(body, keys.keyPair(), keys.auth()));
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            return reject(400, "record can't be decrypted");
+        }
+        int response = status.apply(path);
+        if (response == 201) {
+            listener.accept(new Delivery(id, payload, arrivedAt));
+        }
+        return response;
+    }
+
+    private int reject(final int response, final String reason) {
+        rejections.computeIfAbsent(reason, key -> new LongAdder()).increment();
+        return response;
+    }
+
+    private boolean verifyVapid(final String authorization) {
+        if (authorization == null || !authorization.startsWith("vapid ")) {
+            return false;
+        }
+        String token = null;
+        byte[] key = null;
+        for (String parameter : authorization.substring("vapid ".length()).split(",")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].equals("t")) {
+                token = pair[1];
+            } else if (pair.length == 2 && pair[0].equals("k")) {
+                key = Base64.getUrlDecoder().decode(pair[1]);
+            }
+        }
+        byte[] expected = vapidKey;
+        if (token == null || key == null || expected != null && !Arrays.equals(expected, key)) {
+            return false;
+        }
+        try {
+            DecodedJWT jwt = JWT.require(Algorithm.ECDSA256(cryptoService.fromUncompressedECPublicKey(key), null))
+                    .withAudience(origin())
+                    .build()
+                    .verify(token);
+            return jwt.getSubject() != null
+                    && jwt.getExpiresAt().getTime() - System.currentTimeMillis() <= MAX_TOKEN_LIFETIME;
+        } catch (JWTVerificationException | GeneralSecurityException | IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Decrypts single-record {@code aes128gcm} message, RFC 8188 and RFC 8291.
+     */
+    private byte[] decrypt(final byte[] message, final KeyPair uaKeyPair, final byte[] authSecret)
+            throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        byte[] salt = new byte[16];
+        buffer.get(salt);
+        int recordSize = buffer.getInt();
+        byte[] asPublic = new byte[buffer.get()];
+        buffer.get(asPublic);
+        if (buffer.remaining() > recordSize) {
+            throw new GeneralSecurityException("Message has more than one record");
+        }
+
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(uaKeyPair.getPrivate());
+        keyAgreement.doPhase(cryptoService.fromUncompressedECPublicKey(asPublic), true);
+        byte[] prkKey = hmac(authSecret, keyAgreement.generateSecret());
+        byte[] ikm = hmac(prkKey, concat("WebPush: info\0".getBytes(StandardCharsets.UTF_8),
+                CryptoService.toUncompressedECPublicKey((ECPublicKey) uaKeyPair.getPublic()), asPublic, new byte[]{1}));
+        byte[] prk = hmac(salt, ikm);
+        byte[] cek = Arrays.copyOf(hmac(prk, "Content-Encoding: aes128gcm\0\1".getBytes(StandardCharsets.UTF_8)), 16);
+        byte[] nonce = Arrays.copyOf(hmac(prk, "Content-Encoding: nonce\0\1".getBytes(StandardCharsets.UTF_8)), 12);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, nonce));
+        byte[] padded = cipher.doFinal(message, buffer.position(), buffer.remaining());
+
+        int delimiter = padded.length - 1;
+        while (delimiter >= 0 && padded[delimiter] == 0) {
+            delimiter--;
+        }
+        if (delimiter < 0 || padded[delimiter] != 2) {
+            throw new GeneralSecurityException("Last record delimiter is missing");
+        }
+        return Arrays.copyOf(padded, delimiter);
+    }
+
+    private static byte[] hmac(final byte[] key, final byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] concat(final byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(arrays).mapToInt(array -> array.length).sum());
+        Arrays.stream(arrays).forEach(buffer::put);
+        return buffer.array();
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private record Keys(KeyPair keyPair, byte[] auth) {
+    }
+
+    public record Received(String path, Headers headers, byte[] body) {
+    }
+
+    /**
+     * Accepted message.
+     *
+     * @param subscription subscription identifier
+     * @param payload      decrypted and inflated payload
+     * @param arrivedAt    {@link System#nanoTime()} of arrival
+     */
+    public record Delivery(String subscription, byte[] payload, long arrivedAt) {
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.dto.Subscription;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StubPushServerTests {
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private final KeyPair serverKeys = cryptoService.getKeyPairGenerator().generateKeyPair();
+
+    private StubPushServer pushServer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        pushServer = new StubPushServer();
+        pushServer.expectVapidKey(CryptoService.toUncompressedECPublicKey((ECPublicKey) serverKeys.getPublic()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pushServer.close();
+    }
+
+    @Test
+    void acceptsValidMessagesAndRejectsTamperedOnes() throws Exception {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        pushServer.onDelivery(delivery -> delivered.add(new String(delivery.payload(), StandardCharsets.UTF_8)));
+        Subscription subscription = pushServer.subscribe("a", null);
+        byte[] record = encrypt(subscription, "{\"title\":\"Hello\"}");
+
+        assertEquals(201, post(subscription, record, vapid(pushServer.origin())));
+        record[record.length - 1] ^= 1;
+        assertEquals(400, post(subscription, record, vapid(pushServer.origin())));
+        assertEquals(401, post(subscription, encrypt(subscription, "{}"), vapid("https://fcm.googleapis.com")));
+
+        assertEquals(List.of("{\"title\":\"Hello\"}"), delivered);
+        assertEquals(Map.of(201, 1L, 400, 1L, 401, 1L), pushServer.responses());
+    }
+
+    @Test
+    void drawsResponsesFromStatusMix() throws Exception {
+        pushServer.statusMix(StubPushServer.statusMixOf("201:1,429:1"));
+        pushServer.latency(StubPushServer.latencyOf("uniform:1ms:5ms"));
+        pushServer.retryAfter(7);
+        Subscription subscription = pushServer.subscribe("b", null);
+
+        for (int i = 0; i < 50; i++) {
+            HttpResponse<Void> response = send(subscription, encrypt(subscription, "{}"), vapid(pushServer.origin()));
+            if (response.statusCode() == 429) {
+                assertEquals("7", response.headers().firstValue("Retry-After").orElseThrow());
+            }
+        }
+
+        assertEquals(50, pushServer.responses().get(201) + pushServer.responses().get(429));
+    }
+
+    private byte[] encrypt(final Subscription subscription, final String json) throws Exception {
+        byte[] p256dh = Base64.getUrlDecoder().decode(subscription.getKeys().getP256dh());
+        return cryptoService.encrypt(json.getBytes(StandardCharsets.UTF_8),
+                cryptoService.fromUncompressedECPublicKey(p256dh), p256dh,
+                Base64.getUrlDecoder().decode(subscription.getKeys().getAuth()), 0);
+    }
+
+    private String vapid(final String audience) {
+        String token = JWT.create()
+                .withAudience(audience)
+                .withExpiresAt(new Date(System.currentTimeMillis() + 60_000))
+                .withSubject("mailto:test@example.com")
+                .sign(Algorithm.ECDSA256((ECPublicKey) serverKeys.getPublic(), (ECPrivateKey) serverKeys.getPrivate()));
+        return "vapid t=" + token + ", k=" + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(CryptoService.toUncompressedECPublicKey((ECPublicKey) serverKeys.getPublic()));
+    }
+
+    private int post(final Subscription subscription, final byte[] record, final String authorization)
+            throws Exception {
+        return send(subscription, record, authorization).statusCode();
+    }
+
+    private HttpResponse<Void> send(final Subscription subscription, final byte[] record, final String authorization)
+            throws Exception {
+        return client.send(HttpRequest.newBuilder(URI.create(subscription.getEndpoint()))
+                .header("TTL", "60")
+                .header("Content-Encoding", "aes128gcm")
+                .header("Authorization", authorization)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(record))
+                .build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.dto.ImportResult;
+import com.artemoons.webpush.subscription.FileSubscriptionStore;
+import com.artemoons.webpush.subscription.MapSubscriberRegistry;
+import com.artemoons.webpush.subscription.MemorySubscriptionStore;
+import com.artemoons.webpush.subscription.StoreConfiguration;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import com.artemoons.webpush.subscription.SubscriptionStore;
+import com.artemoons.webpush.subscription.SubscriptionTransfer;
+import com.artemoons.webpush.subscription.Targeting;
+import com.artemoons.webpush.subscription.TransferConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.interfaces.ECPublicKey;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SubscriptionTransferTests {
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final SubscriberFactory subscriberFactory = new SubscriberFactory(cryptoService);
+
+    private final SubscriptionStore source = new MemorySubscriptionStore(new MapSubscriberRegistry());
+
+    private final TransferConfiguration configuration = new TransferConfiguration();
+
+    @TempDir
+    private Path directory;
+
+    @BeforeEach
+    void setUp() {
+        configuration.setBatchSize(10);
+        configuration.setValidationThreads(2);
+        for (int i = 0; i < 25; i++) {
+            source.put(subscriber("https://push.example.com/" + i, i % 2 == 0 ? List.of("news") : null));
+        }
+    }
+
+    @Test
+    void movesSubscriptionsInBinaryFormat() throws Exception {
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        assertEquals(25, transfer(source).export(exported, SubscriptionTransfer.Format.BINARY));
+
+        FileSubscriptionStore target = openFileStore();
+        ImportResult result = transfer(target).importFrom(new ByteArrayInputStream(exported.toByteArray()),
+                SubscriptionTransfer.Format.BINARY);
+        target.close();
+        FileSubscriptionStore reopened = openFileStore();
+
+        assertEquals(25, result.getImported());
+        assertNull(result.getError());
+        assertEquals(25, reopened.size());
+        Subscriber original = source.get("https://push.example.com/4");
+        Subscriber moved = reopened.get("https://push.example.com/4");
+        assertArrayEquals(original.getP256dh(), moved.getP256dh());
+        assertArrayEquals(original.getAuth(), moved.getAuth());
+        assertEquals(original.getTargeting().getTags(), moved.getTargeting().getTags());
+        reopened.close();
+    }
+
+    @Test
+    void rejectsInvalidSubscriptionsAndStopsAtMalformedInput() throws Exception {
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        transfer(source).export(exported, SubscriptionTransfer.Format.NDJSON);
+        String input = exported.toString(StandardCharsets.UTF_8)
+                + "{\"endpoint\":\"https://push.example.com/bad\",\"keys\":{\"p256dh\":\"AAAA\",\"auth\":\"AAAA\"}}\n"
+                + "{\"endpoint\":";
+
+        SubscriptionStore target = new MemorySubscriptionStore(new MapSubscriberRegistry());
+        ImportResult result = transfer(target).importFrom(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), SubscriptionTransfer.Format.NDJSON);
+
+        assertEquals(25, result.getImported());
+        assertEquals(1, result.getRejected());
+        assertNotNull(result.getError());
+        assertEquals(25, target.size());
+        assertEquals(source.get("https://push.example.com/7").getEndpoint(),
+                target.get("https://push.example.com/7").getEndpoint());
+    }
+
+    private SubscriptionTransfer transfer(final SubscriptionStore store) {
+        return new SubscriptionTransfer(store, subscriberFactory, Jackson2ObjectMapperBuilder.json().build(),
+                configuration);
+    }
+
+    private FileSubscriptionStore openFileStore() throws Exception {
+        StoreConfiguration storeConfiguration = new StoreConfiguration();
+        storeConfiguration.setDirectory(directory.toString());
+        FileSubscriptionStore store = new FileSubscriptionStore(storeConfiguration, subscriberFactory,
+                new MapSubscriberRegistry());
+        store.open();
+        return store;
+    }
+
+    private Subscriber subscriber(final String endpoint, final List<String> tags) {
+        ECPublicKey publicKey = (ECPublicKey) cryptoService.getKeyPairGenerator().generateKeyPair().getPublic();
+        byte[] auth = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(auth);
+        return subscriberFactory.create(endpoint, null, CryptoService.toUncompressedECPublicKey(publicKey), auth,
+                Targeting.of(tags, null, null));
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.artemoons.webpush;
+
+import com.artemoons.webpush.dto.PushMessage;
+import com.artemoons.webpush.subscription.CompactSubscriberRegistry;
+import com.artemoons.webpush.subscription.FileSubscriptionStore;
+import com.artemoons.webpush.subscription.InvalidExpressionException;
+import com.artemoons.webpush.subscription.MapSubscriberRegistry;
+import com.artemoons.webpush.subscription.MemorySubscriptionStore;
+import com.artemoons.webpush.subscription.RegistryConfiguration;
+import com.artemoons.webpush.subscription.StoreConfiguration;
+import com.artemoons.webpush.subscription.Subscriber;
+import com.artemoons.webpush.subscription.SubscriberFactory;
+import com.artemoons.webpush.subscription.SubscriptionStore;
+import com.artemoons.webpush.subscription.TagExpression;
+import com.artemoons.webpush.subscription.Targeting;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.security.interfaces.ECPublicKey;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TagTargetingTests {
+
+    private final CryptoService cryptoService = new CryptoService();
+
+    private final SubscriberFactory subscriberFactory = new SubscriberFactory(cryptoService);
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void selectsSubscribersByExpression() {
+        SubscriptionStore store = new MemorySubscriptionStore(new MapSubscriberRegistry());
+        store.put(subscriber("1", List.of("news", "sport"), "en-US", "alice"));
+        store.put(subscriber("2", List.of("news"), "de_DE", "bob"));
+        store.put(subscriber("3", List.of("sport", "muted"), "en-GB", null));
+        store.put(subscriber("4", null, null, null));
+
+        assertEquals(Set.of("1", "2"), select(store, "news"));
+        assertEquals(Set.of("1", "3"), select(store, "locale:en"));
+        assertEquals(Set.of("2"), select(store, "locale:DE-de"));
+        assertEquals(Set.of("1", "2"), select(store, "news AND (locale:en OR user:bob)"));
+        assertEquals(Set.of("1"), select(store, "sport && !tag:muted"));
+        assertEquals(Set.of("2", "4"), select(store, "NOT sport"));
+        assertEquals(Set.of("2", "3"), select(store, "user:bob, muted"));
+        assertEquals(Set.of(), select(store, "unknown"));
+    }
+
+    @Test
+    void keepsIndexInSyncWithChanges() {
+        SubscriptionStore store = new MemorySubscriptionStore(new MapSubscriberRegistry());
+        store.put(subscriber("1", List.of("news"), null, null));
+        store.put(subscriber("2", List.of("news"), null, null));
+        store.put(subscriber("1", List.of("sport"), null, null));
+        store.remove("https://push.example.com/2");
+        store.put(subscriber("5", List.of("news"), null, null));
+
+        assertEquals(Set.of("5"), select(store, "news"));
+        assertEquals(Set.of("1"), select(store, "sport"));
+    }
+
+    @Test
+    void selectsFromCompactRegistryBySlot() {
+        SubscriptionStore store = new MemorySubscriptionStore(
+                new CompactSubscriberRegistry(new RegistryConfiguration(), subscriberFactory));
+        store.put(subscriber("1", List.of("news"), null, null));
+        store.put(subscriber("2", List.of("news", "muted"), null, null));
+        store.put(subscriber("3", null, null, null));
+        store.remove("https://push.example.com/2");
+        store.put(subscriber("4", List.of("sport"), null, null));
+
+        assertEquals(Set.of("1"), select(store, "news"));
+        assertEquals(Set.of("4"), select(store, "sport"));
+        assertEquals(Set.of("3", "4"), select(store, "NOT news"));
+        assertEquals(Set.of(), select(store, "muted"));
+    }
+
+    @Test
+    void persistsTargeting() throws Exception {
+        FileSubscriptionStore store = openFileStore();
+        store.put(subscriber("1", List.of("news"), "en-US", "alice"));
+        store.put(subscriber("2", null, null, null));
+        store.close();
+
+        FileSubscriptionStore reopened = openFileStore();
+
+        assertEquals(Set.of("1"), select(reopened, "news AND locale:en AND user:alice"));
+        assertEquals(Set.of("2"), select(reopened, "NOT news"));
+        reopened.close();
+    }
+
+    @Test
+    void rejectsMalformedExpressions() {
+        for (String expression : List.of("", "news AND", "(news", "news)", "AND news", "foo:bar", "a b", "n$")) {
+            assertThrows(InvalidExpressionException.class, () -> TagExpression.parse(expression), expression);
+        }
+    }
+
+    @Test
+    void doesNotDeliverTarget() throws Exception {
+        String json = new ObjectMapper().writeValueAsString(PushMessage.builder()
+                .title("title").body("body").target("news").ttl(60).topic("scores").build());
+
+        assertFalse(json.contains("target"));
+        assertFalse(json.contains("ttl"));
+        assertFalse(json.contains("topic"));
+    }
+
+    private Set<String> select(final SubscriptionStore store, final String expression) {
+        Set<String> selected = new TreeSet<>();
+        store.subscribers(TagExpression.parse(expression))
+                .forEach(subscriber -> selected.add(subscriber.getEndpoint().substring(25)));
+        return selected;
+    }
+
+    private FileSubscriptionStore openFileStore() throws Exception {
+        StoreConfiguration configuration = new StoreConfiguration();
+        configuration.setDirectory(directory.toString());
+        FileSubscriptionStore store = new FileSubscriptionStore(configuration, subscriberFactory,
+                new MapSubscriberRegistry());
+        store.open();
+        return store;
+    }
+
+    private Subscriber subscriber(final String id, final List<String> tags, final String locale,
+                                  final String userId) {
+        ECPublicKey publicKey = (ECPublicKey) cryptoService.getKeyPairGenerator().generateKeyPair().getPublic();
+        byte[] auth = new byte[16];
+        cryptoService.getSecureRandom().nextBytes(auth);
+        return subscriberFactory.create("https://push.example.com/" + id, null,
+                CryptoService.toUncompressedECPublicKey(publicKey), auth, Targeting.of(tags, locale, userId));
+    }
+
+}
@@ -1,11 +1,25 @@
 package com.artemoons.webpush;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Path;
 
 @SpringBootTest
 class WebpushApplicationTests {
 
+    @TempDir
+    private static Path directory;
+
+    @DynamicPropertySource
+    static void dataDirectories(final DynamicPropertyRegistry registry) {
+        registry.add("subscription.store.directory", () -> directory.resolve("subscriptions").toString());
+        registry.add("delivery.queue.directory", () -> directory.resolve("queue").toString());
+    }
+
     @Test
     void contextLoads() {
     }